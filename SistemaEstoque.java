@@ -1,58 +1,3851 @@
 import java.util.*;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.io.*;
+import java.lang.invoke.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.net.*;
+import java.text.DecimalFormatSymbols;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.ResolverStyle;
 
-// Classe que representa um produto no estoque
+// Classe que representa um produto no estoque: depois do cadastro é a vista de uma linha do CatalogoProdutos
 class Produto {
-    String codigo, nome, categoria; // Dados básicos do produto
-    int quantidade; // Quantidade em estoque
-    double preco; // Preço unitário
+    String codigo, nome; // Dados básicos do produto (não mudam depois do cadastro)
+    CatalogoProdutos catalogo; // Catálogo onde estão quantidade, preço e categoria (null antes do cadastro)
+    int id = -1; // Linha do produto no catálogo (atribuída ao adicionar)
+    Pendente pendente; // Dados ainda não copiados para o catálogo (null depois do cadastro)
+    
+    // Dados do produto antes de entrar no catálogo
+    static class Pendente {
+        String categoria;
+        int quantidade;
+        long precoCentavos;
+    }
     
     // Construtor que inicializa todos os atributos do produto
     Produto(String codigo, String nome, String categoria, int quantidade, double preco) {
         this.codigo = codigo;
         this.nome = nome;
-        this.categoria = categoria;
-        this.quantidade = quantidade;
-        this.preco = preco;
+        pendente = new Pendente();
+        pendente.categoria = categoria;
+        pendente.quantidade = quantidade;
+        pendente.precoCentavos = emCentavos(preco);
+    }
+    
+    // Converte o preço para centavos arredondando a forma decimal, como o %.2f exibia (1.005 → 101)
+    static long emCentavos(double preco) {
+        if(!(Math.abs(preco) < 1e15)) return Math.round(preco * 100); // Sem casas decimais representáveis (ou NaN): arredondamento direto
+        return BigDecimal.valueOf(preco).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValue();
+    }
+    
+    // Quantidade em estoque (leitura volátil da coluna)
+    int quantidade() {
+        return catalogo == null ? pendente.quantidade : catalogo.quantidade(id);
+    }
+    
+    // Preço unitário em centavos (base dos totais exatos)
+    long precoCentavos() {
+        return catalogo == null ? pendente.precoCentavos : catalogo.precoCentavos(id);
+    }
+    
+    // Preço unitário
+    double preco() {
+        return precoCentavos() / 100.0;
+    }
+    
+    // Nome da categoria (decodificado do dicionário do catálogo)
+    String categoria() {
+        return catalogo == null ? pendente.categoria : catalogo.categoria(id);
+    }
+    
+    // Alerta quando a quantidade chega a este valor ou abaixo
+    int pontoReposicao() {
+        return catalogo == null ? CatalogoProdutos.PONTO_REPOSICAO_PADRAO : catalogo.pontoReposicao(id);
+    }
+    
+    // Índice das movimentações deste produto (ler sob a trava do produto)
+    HistoricoProduto historico() {
+        return catalogo == null ? CatalogoProdutos.SEM_HISTORICO : catalogo.historico(id);
     }
     
     // Método para exibir informações do produto formatadas
     public String toString() {
-        return "Código: " + codigo + " | Nome: " + nome + " | Categoria: " + categoria + 
-               " | Quantidade: " + quantidade + " | Preço: R$" + String.format("%.2f", preco);
+        return Relatorio.formatarProduto(new StringBuilder(96), this).toString();
+    }
+}
+
+// Índice das movimentações de um produto, em ordem de aplicação (e portanto de instante)
+class HistoricoProduto {
+    static final int[] SEM_POSICOES = new int[0]; // Vetores vazios compartilhados: produto sem movimentação não aloca nada
+    static final long[] SEM_VALORES = new long[0];
+    
+    int[] posicoes = SEM_POSICOES; // Posição de cada movimentação no histórico geral
+    long[] instantes = SEM_VALORES; // Instante de cada movimentação (não decrescente)
+    long[] saldos = SEM_VALORES; // Saldo acumulado (entradas - saídas) até cada movimentação, inclusive
+    int tamanho; // Quantidade de movimentações do produto
+    int descartadasAte; // Movimentações em posições menores já saíram do índice (estão nos segmentos arquivados)
+    long saldoDescartado; // Saldo das movimentações descartadas (os saldos acumulados continuam contando desde o início)
+    long ultimoDescartado = Long.MIN_VALUE; // Instante da última movimentação descartada (consultas até ele leem os segmentos)
+    int descartadas; // Quantas movimentações do produto já saíram do índice (gravado no estado do arquivo)
+    
+    // Acrescenta movimentação com sua variação de estoque (positiva na entrada, negativa na saída)
+    void adicionar(int posicao, long instante, int variacao) {
+        if(tamanho == posicoes.length) {
+            int capacidade = Math.max(4, tamanho * 2);
+            posicoes = Arrays.copyOf(posicoes, capacidade);
+            instantes = Arrays.copyOf(instantes, capacidade);
+            saldos = Arrays.copyOf(saldos, capacidade);
+        }
+        posicoes[tamanho] = posicao;
+        instantes[tamanho] = instante;
+        saldos[tamanho] = saldoAntes(tamanho) + variacao; // Continua do saldo descartado se o índice ficou vazio
+        tamanho++;
+    }
+    
+    // Último instante registrado (ou o menor long se não houver movimentações)
+    long ultimoInstante() {
+        return tamanho == 0 ? ultimoDescartado : instantes[tamanho - 1];
+    }
+    
+    // Tira do índice as movimentações em posições < limite (já arquivadas), liberando a memória delas
+    void descartarAte(int limite) {
+        int descartar = 0;
+        while(descartar < tamanho && posicoes[descartar] < limite) descartar++; // Posições crescem com a ordem de aplicação
+        descartadasAte = Math.max(descartadasAte, limite);
+        if(descartar == 0) return;
+        saldoDescartado = saldos[descartar - 1];
+        ultimoDescartado = instantes[descartar - 1];
+        descartadas += descartar;
+        int restantes = tamanho - descartar, capacidade = Math.max(4, restantes);
+        posicoes = Arrays.copyOfRange(posicoes, descartar, descartar + capacidade);
+        instantes = Arrays.copyOfRange(instantes, descartar, descartar + capacidade);
+        saldos = Arrays.copyOfRange(saldos, descartar, descartar + capacidade);
+        tamanho = restantes;
+    }
+    
+    // Conta movimentação reproduzida do diário que já está num segmento arquivado (posição < limite) sem trazê-la ao
+    // índice; vem antes de qualquer movimentação ainda em memória do produto
+    void descartarArquivada(int limite, long instante, int variacao) {
+        descartadasAte = Math.max(descartadasAte, limite);
+        saldoDescartado += variacao;
+        ultimoDescartado = instante;
+        descartadas++;
+    }
+    
+    // Primeiro índice cujo instante é ≥ ao informado (busca binária)
+    int primeiroAPartirDe(long instante) {
+        int baixo = 0, alto = tamanho;
+        while(baixo < alto) {
+            int meio = (baixo + alto) >>> 1;
+            if(instantes[meio] < instante) baixo = meio + 1;
+            else alto = meio;
+        }
+        return baixo;
     }
+    
+    // Primeiro índice cujo instante é > ao informado
+    int primeiroDepoisDe(long instante) {
+        return instante == Long.MAX_VALUE ? tamanho : primeiroAPartirDe(instante + 1);
+    }
+    
+    // Saldo acumulado antes do índice informado (inclui as movimentações descartadas)
+    long saldoAntes(int indice) {
+        return indice == 0 ? saldoDescartado : saldos[indice - 1];
+    }
+}
+
+// Consumo (saídas) de um produto, atualizado em O(1) a cada retirada: taxa por média móvel exponencial e unidades
+// retiradas por dia numa janela deslizante; criado na primeira saída do produto
+class ConsumoProduto {
+    static final long DIA = 86_400_000L; // Milissegundos por dia
+    static final double CONSTANTE_DIAS = 7; // Peso de uma saída cai para 1/e depois de 7 dias
+    static final int DIAS_JANELA = 28; // Dias guardados na janela deslizante
+    
+    double taxa; // Unidades por dia logo após a última saída
+    long ultimoInstante = Long.MIN_VALUE; // Instante da última saída
+    long ultimoDia; // Dia (desde 1970) da última saída
+    int[] porDia = new int[DIAS_JANELA]; // Unidades retiradas por dia, em anel (posição = dia % DIAS_JANELA)
+    
+    // Registra uma saída (instantes não decrescentes, como no histórico do produto)
+    void registrar(int quantidade, long instante) {
+        if(ultimoInstante != Long.MIN_VALUE) taxa = taxaEm(instante); // Decai desde a saída anterior
+        taxa += quantidade / CONSTANTE_DIAS;
+        ultimoInstante = Math.max(ultimoInstante, instante);
+        long dia = Math.floorDiv(ultimoInstante, DIA);
+        for(long d = Math.max(ultimoDia + 1, dia - DIAS_JANELA + 1); d <= dia; d++) { // Zera os dias que saíram da janela (no máximo DIAS_JANELA)
+            porDia[Math.floorMod(d, DIAS_JANELA)] = 0;
+        }
+        ultimoDia = Math.max(ultimoDia, dia);
+        porDia[Math.floorMod(dia, DIAS_JANELA)] += quantidade;
+    }
+    
+    // Taxa de consumo (unidades por dia) no instante, decaindo desde a última saída
+    double taxaEm(long agora) {
+        return taxa * Math.exp(-Math.max(0, agora - ultimoInstante) / (CONSTANTE_DIAS * DIA));
+    }
+    
+    // Unidades retiradas nos últimos dias (de 1 a DIAS_JANELA), contando o dia de agora
+    long saidasNosUltimos(int dias, long agora) {
+        long hoje = Math.floorDiv(agora, DIA), total = 0;
+        for(long d = Math.max(hoje - dias + 1, ultimoDia - DIAS_JANELA + 1); d <= Math.min(hoje, ultimoDia); d++) {
+            total += porDia[Math.floorMod(d, DIAS_JANELA)];
+        }
+        return total;
+    }
+    
+    // Dias até zerar o estoque no ritmo atual (infinito sem consumo)
+    double diasAteZerar(int quantidade, long agora) {
+        double taxaAtual = taxaEm(agora);
+        return taxaAtual > 0 ? quantidade / taxaAtual : Double.POSITIVE_INFINITY;
+    }
+}
+
+// Página de resultados de uma consulta paginada
+class Pagina<T> {
+    ArrayList<T> itens = new ArrayList<>(); // Itens desta página
+    long total; // Total de itens em todas as páginas
+    int numero, tamanho; // Número da página (a partir de 0) e itens por página
+    
+    Pagina(int numero, int tamanho) {
+        this.numero = numero;
+        this.tamanho = tamanho;
+    }
+    
+    long totalPaginas() {
+        return (total + tamanho - 1) / tamanho;
+    }
+}
+
+// Recebe avisos quando um produto cruza o ponto de reposição (chamado sob a trava do produto: deve ser rápido)
+interface OuvinteReposicao {
+    // atual <= ponto de reposição: entrou em falta; atual > ponto: voltou a ficar abastecido
+    void cruzouPontoReposicao(Produto produto, int quantidadeAnterior, int quantidadeAtual);
 }
 
-// Classe que representa uma movimentação de estoque
+// Classe que representa uma movimentação de estoque (linha lida do histórico)
 class Movimentacao {
-    String produto, tipo, observacao, data; // Dados da movimentação
+    static final byte ENTRADA = 1, SAIDA = 2; // Tipos de movimentação
+    static final DateTimeFormatter FORMATO_DATA = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss"); // Formatador compartilhado (imutável)
+    String produto, observacao; // Código do produto e observação
+    byte tipo; // ENTRADA ou SAIDA
+    int quantidade; // Quantidade movimentada
+    long instante; // Momento da movimentação em milissegundos desde 1970
+    
+    // Construtor que inicializa todos os atributos da movimentação
+    Movimentacao(String produto, byte tipo, int quantidade, String observacao, long instante) {
+        this.produto = produto;
+        this.tipo = tipo;
+        this.quantidade = quantidade;
+        this.observacao = observacao;
+        this.instante = instante;
+    }
+    
+    // Nome do tipo como exibido nos relatórios
+    static String nomeTipo(byte tipo) {
+        return tipo == ENTRADA ? "ENTRADA" : "SAÍDA";
+    }
+    
+    // Formata o instante como dd/MM/yyyy HH:mm:ss no fuso local
+    static String formatarData(long instante) {
+        return FORMATO_DATA.format(Instant.ofEpochMilli(instante).atZone(ZoneId.systemDefault()));
+    }
+    
+    // Método para exibir a movimentação formatada (a data só é formatada aqui)
+    public String toString() {
+        return Relatorio.formatarMovimentacao(new StringBuilder(96), formatarData(instante), produto, tipo, quantidade, observacao).toString();
+    }
+}
+
+// Linha de um pedido: movimentação de um produto aplicada junto com as demais linhas (tudo ou nada)
+class LinhaPedido {
+    String codigo, observacao; // Código do produto e observação da movimentação
+    byte tipo; // Movimentacao.ENTRADA ou SAIDA
     int quantidade; // Quantidade movimentada
     
-    // Construtor que cria uma movimentação com data atual
-    Movimentacao(String produto, String tipo, int quantidade, String observacao) {
-        this.produto = produto;
-        this.tipo = tipo;
-        this.quantidade = quantidade;
-        this.observacao = observacao;
-        // Formatação melhorada da data
-        this.data = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").format(new Date());
+    LinhaPedido(String codigo, byte tipo, int quantidade, String observacao) {
+        this.codigo = codigo;
+        this.tipo = tipo;
+        this.quantidade = quantidade;
+        this.observacao = observacao;
+    }
+}
+
+// Lista crescente de ids de produtos (postagens de um n-grama)
+class ListaIds {
+    int[] ids = new int[4]; // Ids em ordem crescente
+    int tamanho; // Quantidade de ids usados
+    
+    // Acrescenta id no fim da lista, ignorando repetição do último
+    void adicionar(int id) {
+        if(tamanho > 0 && ids[tamanho - 1] == id) return; // N-grama repetido no mesmo texto
+        if(tamanho == ids.length) ids = Arrays.copyOf(ids, tamanho * 2);
+        ids[tamanho++] = id;
+    }
+    
+    // Procura id a partir da posição informada (busca galopante); retorna posição ou -(inserção)-1
+    int procurar(int id, int inicio) {
+        int passo = 1, fim = inicio;
+        while(fim < tamanho && ids[fim] < id) { // Avança em saltos crescentes
+            inicio = fim;
+            fim += passo;
+            passo <<= 1;
+        }
+        return Arrays.binarySearch(ids, inicio, Math.min(fim + 1, tamanho), id);
+    }
+}
+
+// Índice invertido de n-gramas (1 a 3 caracteres) para busca por trecho de texto
+class IndiceNGramas {
+    static final int TAMANHO_MAXIMO = 3; // Trigramas
+    HashMap<Long, ListaIds> postagens = new HashMap<>(); // N-grama → ids dos textos que o contêm
+    ArrayList<String> textos = new ArrayList<>(); // Texto em minúsculas de cada id (para conferência)
+    
+    // Indexa o texto do próximo id (ids são sequenciais a partir de 0)
+    void adicionar(String texto) {
+        int id = textos.size();
+        String minusculo = texto.toLowerCase(); // Mesma conversão usada na consulta
+        textos.add(minusculo);
+        for(int inicio = 0; inicio < minusculo.length(); inicio++) {
+            for(int tamanho = 1; tamanho <= TAMANHO_MAXIMO && inicio + tamanho <= minusculo.length(); tamanho++) {
+                postagens.computeIfAbsent(chave(minusculo, inicio, tamanho), k -> new ListaIds()).adicionar(id);
+            }
+        }
+    }
+    
+    // Retorna ids (em ordem de cadastro) cujos textos contêm o termo; limite 0 = sem limite
+    ArrayList<Integer> buscar(String termo, int limite) {
+        ArrayList<Integer> resultado = new ArrayList<>();
+        String minusculo = termo.toLowerCase();
+        if(minusculo.isEmpty()) return resultado;
+        
+        if(minusculo.length() <= TAMANHO_MAXIMO) { // Termo curto: a lista do n-grama já é a resposta exata
+            ListaIds lista = postagens.get(chave(minusculo, 0, minusculo.length()));
+            if(lista == null) return resultado;
+            int total = limite > 0 ? Math.min(limite, lista.tamanho) : lista.tamanho;
+            for(int i = 0; i < total; i++) resultado.add(lista.ids[i]);
+            return resultado;
+        }
+        
+        // Termo longo: intersecção das listas dos trigramas, começando pela menor
+        HashSet<Long> vistos = new HashSet<>();
+        ArrayList<ListaIds> listas = new ArrayList<>();
+        for(int inicio = 0; inicio + TAMANHO_MAXIMO <= minusculo.length(); inicio++) {
+            long chave = chave(minusculo, inicio, TAMANHO_MAXIMO);
+            if(!vistos.add(chave)) continue;
+            ListaIds lista = postagens.get(chave);
+            if(lista == null) return resultado; // Algum trigrama não existe: nenhum resultado
+            listas.add(lista);
+        }
+        listas.sort(Comparator.comparingInt(lista -> lista.tamanho));
+        
+        ListaIds menor = listas.get(0);
+        int[] cursores = new int[listas.size()];
+        candidatos:
+        for(int i = 0; i < menor.tamanho; i++) {
+            int id = menor.ids[i];
+            for(int j = 1; j < listas.size(); j++) {
+                int posicao = listas.get(j).procurar(id, cursores[j]);
+                if(posicao < 0) { // Ausente nesta lista: guarda ponto de inserção e descarta
+                    cursores[j] = -posicao - 1;
+                    continue candidatos;
+                }
+                cursores[j] = posicao;
+            }
+            if(!textos.get(id).contains(minusculo)) continue; // Trigramas presentes fora de ordem
+            resultado.add(id);
+            if(limite > 0 && resultado.size() == limite) break;
+        }
+        return resultado;
+    }
+    
+    // Empacota até 3 caracteres e o tamanho do n-grama em um long
+    static long chave(String texto, int inicio, int tamanho) {
+        long chave = tamanho;
+        for(int i = 0; i < TAMANHO_MAXIMO; i++) {
+            chave = (chave << 16) | (i < tamanho ? texto.charAt(inicio + i) : 0);
+        }
+        return chave;
+    }
+}
+
+// Diário binário só de acréscimo com produtos e movimentações (persistência entre execuções)
+class Diario implements Closeable {
+    // Política de sincronização com o disco (fsync)
+    enum Sincronizacao { SEMPRE, GRUPO, PERIODICA }
+    
+    // Recebe os registros durante a reprodução do diário
+    interface Leitor {
+        void produto(String codigo, String nome, String categoria, int quantidade, double preco) throws IOException;
+        void movimentacao(int produtoId, boolean entrada, int quantidade, String observacao, long instante) throws IOException;
+        void pontoReposicao(int produtoId, int ponto) throws IOException;
+    }
+    
+    static final int MAGICO = 0x45535451; // "ESTQ"
+    static final int VERSAO = 1;
+    static final int CABECALHO = 8; // Mágico + versão
+    static final byte REGISTRO_PRODUTO = 1, REGISTRO_MOVIMENTACAO = 2, REGISTRO_PONTO_REPOSICAO = 3, REGISTRO_PEDIDO = 4;
+    static final long JANELA_MAPEAMENTO = 256L << 20; // Trecho do arquivo mapeado por vez na reprodução
+    
+    FileChannel canal; // Canal do arquivo em modo de acréscimo
+    ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024); // Registros ainda não escritos no arquivo
+    CRC32 crc = new CRC32(); // Soma de verificação de cada registro
+    Sincronizacao sincronizacao; // Política de fsync
+    int tamanhoGrupo; // Registros por fsync no modo GRUPO
+    int pendentes; // Registros escritos desde o último fsync
+    HashSet<Thread> emLote = new HashSet<>(); // Threads com lote aberto: o fsync delas fica para o fim do lote (partições têm lotes simultâneos)
+    ScheduledExecutorService agendador; // Fsync periódico no modo PERIODICA
+    IOException falha; // Primeira falha de escrita: o que está no buffer e no arquivo fica incerto, então o diário recusa novas gravações
+    
+    private Diario(FileChannel canal, Sincronizacao sincronizacao, int tamanhoGrupo) {
+        this.canal = canal;
+        this.sincronizacao = sincronizacao;
+        this.tamanhoGrupo = Math.max(1, tamanhoGrupo);
+    }
+    
+    // Abre (ou cria) o diário, reproduz os registros existentes no leitor e posiciona para acréscimo
+    static Diario abrir(Path arquivo, Sincronizacao sincronizacao, int tamanhoGrupo, long intervaloMs, Leitor leitor) throws IOException {
+        FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long fimValido;
+            if(canal.size() == 0) { // Arquivo novo: grava cabeçalho
+                ByteBuffer cabecalho = ByteBuffer.allocate(CABECALHO).putInt(MAGICO).putInt(VERSAO).flip();
+                while(cabecalho.hasRemaining()) canal.write(cabecalho);
+                canal.force(true);
+                fimValido = CABECALHO;
+            } else {
+                fimValido = reproduzir(canal, leitor);
+            }
+            if(fimValido < canal.size()) canal.truncate(fimValido); // Descarta registro incompleto no fim (queda durante escrita)
+            canal.position(fimValido);
+        } catch(IOException | RuntimeException erro) {
+            canal.close();
+            throw erro;
+        }
+        
+        Diario diario = new Diario(canal, sincronizacao, tamanhoGrupo);
+        if(sincronizacao == Sincronizacao.PERIODICA) {
+            diario.agendador = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+                Thread thread = new Thread(tarefa, "diario-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long intervalo = Math.max(1, intervaloMs);
+            diario.agendador.scheduleWithFixedDelay(diario::sincronizarSilencioso, intervalo, intervalo, TimeUnit.MILLISECONDS);
+        }
+        return diario;
+    }
+    
+    // Lê o arquivo por mapeamento em memória; retorna a posição logo após o último registro válido
+    static long reproduzir(FileChannel canal, Leitor leitor) throws IOException {
+        long tamanhoArquivo = canal.size();
+        if(tamanhoArquivo < CABECALHO) throw new IOException("Diário inválido: cabeçalho incompleto");
+        ByteBuffer cabecalho = ByteBuffer.allocate(CABECALHO);
+        while(cabecalho.hasRemaining() && canal.read(cabecalho, cabecalho.position()) > 0) { }
+        cabecalho.flip();
+        if(cabecalho.getInt() != MAGICO) throw new IOException("Arquivo não é um diário de estoque");
+        if(cabecalho.getInt() != VERSAO) throw new IOException("Versão de diário não suportada");
+        
+        CRC32 verificador = new CRC32();
+        byte[] texto = new byte[256]; // Buffer reutilizado para decodificar strings
+        MappedByteBuffer janela = null;
+        long inicioJanela = 0, posicao = CABECALHO;
+        
+        while(posicao + 8 <= tamanhoArquivo) { // Tamanho + CRC de cada registro
+            if(janela == null || posicao + 8 > inicioJanela + janela.capacity()) {
+                inicioJanela = posicao;
+                janela = canal.map(FileChannel.MapMode.READ_ONLY, inicioJanela, Math.min(JANELA_MAPEAMENTO, tamanhoArquivo - inicioJanela));
+            }
+            int deslocamento = (int) (posicao - inicioJanela);
+            int tamanho = janela.getInt(deslocamento);
+            int crcEsperado = janela.getInt(deslocamento + 4);
+            if(tamanho <= 0 || tamanho > JANELA_MAPEAMENTO - 8 || posicao + 8 + tamanho > tamanhoArquivo) {
+                if(tamanho > 0 && posicao + 8 + tamanho > tamanhoArquivo || restoZerado(canal, posicao, tamanhoArquivo)) break; // Registro incompleto no fim
+                throw corrompido(posicao);
+            }
+            if(posicao + 8 + tamanho > inicioJanela + janela.capacity()) { // Registro atravessa a janela: remapeia a partir dele
+                inicioJanela = posicao;
+                janela = canal.map(FileChannel.MapMode.READ_ONLY, inicioJanela, Math.min(JANELA_MAPEAMENTO, tamanhoArquivo - inicioJanela));
+                deslocamento = 0;
+            }
+            
+            ByteBuffer registro = janela.duplicate();
+            registro.limit(deslocamento + 8 + tamanho).position(deslocamento + 8);
+            verificador.reset();
+            verificador.update(registro.duplicate());
+            if((int) verificador.getValue() != crcEsperado) { // Só o último registro pode ter ficado pela metade
+                if(restoZerado(canal, posicao + 8 + tamanho, tamanhoArquivo)) break;
+                throw corrompido(posicao);
+            }
+            
+            byte tipo = registro.get();
+            if(tipo == REGISTRO_PRODUTO) {
+                String codigo = lerTexto(registro, texto);
+                String nome = lerTexto(registro, texto);
+                String categoria = lerTexto(registro, texto);
+                leitor.produto(codigo, nome, categoria, registro.getInt(), registro.getDouble());
+            } else if(tipo == REGISTRO_MOVIMENTACAO) {
+                long instante = registro.getLong();
+                int produtoId = registro.getInt();
+                boolean entrada = registro.get() == 0;
+                int quantidade = registro.getInt();
+                leitor.movimentacao(produtoId, entrada, quantidade, lerTexto(registro, texto), instante);
+            } else if(tipo == REGISTRO_PONTO_REPOSICAO) {
+                leitor.pontoReposicao(registro.getInt(), registro.getInt());
+            } else if(tipo == REGISTRO_PEDIDO) { // Um registro (um CRC) por pedido: na queda entra inteiro ou não entra
+                long instante = registro.getLong();
+                for(int linhas = registro.getInt(); linhas > 0; linhas--) {
+                    int produtoId = registro.getInt();
+                    boolean entrada = registro.get() == 0;
+                    int quantidade = registro.getInt();
+                    leitor.movimentacao(produtoId, entrada, quantidade, lerTexto(registro, texto), instante);
+                }
+            } else {
+                throw new IOException("Diário corrompido: tipo de registro desconhecido " + tipo);
+            }
+            posicao += 8 + tamanho;
+        }
+        return posicao;
+    }
+    
+    // Se o arquivo só tem zeros de 'de' até o fim (nada depois de um registro interrompido)
+    static boolean restoZerado(FileChannel canal, long de, long tamanhoArquivo) throws IOException {
+        ByteBuffer trecho = ByteBuffer.allocate(64 * 1024);
+        for(long posicao = de; posicao < tamanhoArquivo; ) {
+            trecho.clear();
+            int lidos = canal.read(trecho, posicao);
+            if(lidos <= 0) break;
+            for(int i = 0; i < lidos; i++) if(trecho.get(i) != 0) return false;
+            posicao += lidos;
+        }
+        return true;
+    }
+    
+    // Registro inválido com registros válidos depois: o diário é recusado sem alterar o arquivo (truncar apagaria o que vem depois)
+    static IOException corrompido(long posicao) {
+        return new IOException("Diário corrompido na posição " + posicao + " (há registros depois dele); o arquivo não foi alterado");
+    }
+    
+    // Decodifica string UTF-8 prefixada pelo tamanho
+    static String lerTexto(ByteBuffer registro, byte[] texto) {
+        int tamanho = registro.getInt();
+        if(tamanho > texto.length) texto = new byte[tamanho];
+        registro.get(texto, 0, tamanho);
+        return new String(texto, 0, tamanho, StandardCharsets.UTF_8);
+    }
+    
+    // Acrescenta cadastro de produto
+    synchronized void gravarProduto(Produto produto) throws IOException {
+        byte[] codigo = produto.codigo.getBytes(StandardCharsets.UTF_8);
+        byte[] nome = produto.nome.getBytes(StandardCharsets.UTF_8);
+        byte[] categoria = produto.categoria().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer registro = iniciarRegistro(1 + 12 + codigo.length + nome.length + categoria.length + 4 + 8);
+        registro.put(REGISTRO_PRODUTO);
+        registro.putInt(codigo.length).put(codigo);
+        registro.putInt(nome.length).put(nome);
+        registro.putInt(categoria.length).put(categoria);
+        registro.putInt(produto.quantidade()).putDouble(produto.preco());
+        concluirRegistro(registro);
+    }
+    
+    // Acrescenta movimentação de estoque
+    synchronized void gravarMovimentacao(int produtoId, boolean entrada, int quantidade, String observacao, long instante) throws IOException {
+        byte[] texto = observacao.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer registro = iniciarRegistro(1 + 8 + 4 + 1 + 4 + 4 + texto.length);
+        registro.put(REGISTRO_MOVIMENTACAO);
+        registro.putLong(instante).putInt(produtoId).put((byte) (entrada ? 0 : 1)).putInt(quantidade);
+        registro.putInt(texto.length).put(texto);
+        concluirRegistro(registro);
+    }
+    
+    // Acrescenta todas as movimentações de um pedido em um único registro
+    synchronized void gravarPedido(int[] produtoIds, List<LinhaPedido> linhas, long instante) throws IOException {
+        byte[][] textos = new byte[linhas.size()][];
+        int tamanho = 1 + 8 + 4;
+        for(int i = 0; i < textos.length; i++) {
+            textos[i] = linhas.get(i).observacao.getBytes(StandardCharsets.UTF_8);
+            tamanho += 4 + 1 + 4 + 4 + textos[i].length;
+        }
+        ByteBuffer registro = iniciarRegistro(tamanho);
+        registro.put(REGISTRO_PEDIDO).putLong(instante).putInt(textos.length);
+        for(int i = 0; i < textos.length; i++) {
+            LinhaPedido linha = linhas.get(i);
+            registro.putInt(produtoIds[i]).put((byte) (linha.tipo == Movimentacao.ENTRADA ? 0 : 1)).putInt(linha.quantidade);
+            registro.putInt(textos[i].length).put(textos[i]);
+        }
+        concluirRegistro(registro);
+    }
+    
+    // Acrescenta alteração do ponto de reposição de um produto
+    synchronized void gravarPontoReposicao(int produtoId, int ponto) throws IOException {
+        ByteBuffer registro = iniciarRegistro(1 + 4 + 4);
+        registro.put(REGISTRO_PONTO_REPOSICAO).putInt(produtoId).putInt(ponto);
+        concluirRegistro(registro);
+    }
+    
+    // Reserva espaço para o registro (tamanho + CRC + conteúdo) e devolve o buffer posicionado no conteúdo
+    private ByteBuffer iniciarRegistro(int tamanho) throws IOException {
+        if(falha != null) throw new IOException("Diário desativado após falha de gravação: " + falha.getMessage(), falha);
+        if(buffer.remaining() < 8 + tamanho) descarregar();
+        ByteBuffer destino = buffer.remaining() >= 8 + tamanho ? buffer : ByteBuffer.allocate(8 + tamanho); // Registro maior que o buffer
+        destino.mark();
+        destino.putInt(tamanho).putInt(0); // CRC preenchido ao concluir
+        return destino;
+    }
+    
+    // Calcula o CRC do registro recém-escrito e aplica a política de sincronização
+    private void concluirRegistro(ByteBuffer registro) throws IOException {
+        int fim = registro.position();
+        registro.reset();
+        int inicio = registro.position();
+        ByteBuffer conteudo = registro.duplicate();
+        conteudo.limit(fim).position(inicio + 8);
+        crc.reset();
+        crc.update(conteudo);
+        registro.putInt(inicio + 4, (int) crc.getValue());
+        registro.position(fim);
+        if(registro != buffer) { // Registro avulso (grande): escreve direto
+            descarregar();
+            registro.flip();
+            try {
+                while(registro.hasRemaining()) canal.write(registro);
+            } catch(IOException erro) {
+                falha = erro;
+                throw erro;
+            }
+        }
+        
+        pendentes++;
+        if(emLote.contains(Thread.currentThread())) return; // Registro de outra thread não espera o lote alheio
+        if(sincronizacao == Sincronizacao.SEMPRE || (sincronizacao == Sincronizacao.GRUPO && pendentes >= tamanhoGrupo)) {
+            sincronizar();
+        }
+    }
+    
+    // Adia o fsync dos próximos registros da thread atual até concluirLote (importação em massa, lotes das partições)
+    synchronized void iniciarLote() {
+        emLote.add(Thread.currentThread());
+    }
+    
+    // Encerra o lote com um único fsync (que também cobre registros de outros lotes ainda abertos)
+    synchronized void concluirLote() throws IOException {
+        emLote.remove(Thread.currentThread());
+        if(sincronizacao != Sincronizacao.PERIODICA) sincronizar();
+    }
+    
+    // Escreve no arquivo o que estiver no buffer (sem fsync)
+    private void descarregar() throws IOException {
+        buffer.flip();
+        try {
+            while(buffer.hasRemaining()) canal.write(buffer);
+        } catch(IOException erro) {
+            falha = erro;
+            throw erro;
+        }
+        buffer.clear();
+    }
+    
+    // Escreve o buffer e força os dados para o disco
+    synchronized void sincronizar() throws IOException {
+        if(!canal.isOpen()) return;
+        if(falha != null) throw new IOException("Diário desativado após falha de gravação: " + falha.getMessage(), falha);
+        descarregar();
+        try {
+            if(pendentes > 0) canal.force(false);
+        } catch(IOException erro) {
+            falha = erro;
+            throw erro;
+        }
+        pendentes = 0;
+    }
+    
+    // Sincronização chamada pelo agendador (erros só são exibidos)
+    void sincronizarSilencioso() {
+        try {
+            sincronizar();
+        } catch(IOException erro) {
+            System.out.println("❌ Erro ao sincronizar o diário: " + erro.getMessage());
+        }
+    }
+    
+    // Sincroniza pendências e fecha o arquivo
+    public synchronized void close() throws IOException {
+        if(agendador != null) agendador.shutdownNow();
+        if(!canal.isOpen()) return;
+        try {
+            sincronizar();
+        } finally {
+            canal.close();
+        }
+    }
+}
+
+// Lista só de acréscimo que aceita escritas de várias threads sem trava (blocos de tamanho fixo)
+class ListaConcorrente<T> implements Iterable<T> {
+    static final int BITS_BLOCO = 14; // 16384 elementos por bloco
+    static final int TAMANHO_BLOCO = 1 << BITS_BLOCO;
+    
+    AtomicInteger reservados = new AtomicInteger(); // Posições já reservadas por escritores
+    volatile AtomicReferenceArray<T>[] blocos = novosBlocos(4); // Cópia substituída a cada bloco novo
+    
+    @SuppressWarnings("unchecked")
+    static <T> AtomicReferenceArray<T>[] novosBlocos(int tamanho) {
+        return (AtomicReferenceArray<T>[]) new AtomicReferenceArray<?>[tamanho];
+    }
+    
+    // Acrescenta elemento e retorna sua posição (ordem global de chegada)
+    int add(T elemento) {
+        int posicao = reservados.getAndIncrement(); // Único ponto de disputa entre escritores
+        if(posicao < 0) throw new IllegalStateException("Lista cheia");
+        AtomicReferenceArray<T>[] atuais = blocos;
+        int bloco = posicao >>> BITS_BLOCO;
+        AtomicReferenceArray<T> destino = bloco < atuais.length ? atuais[bloco] : null;
+        if(destino == null) destino = criarBloco(bloco);
+        destino.set(posicao & (TAMANHO_BLOCO - 1), elemento); // Escrita volátil publica o elemento
+        return posicao;
+    }
+    
+    // Cria o bloco (se outra thread ainda não criou) republicando o vetor de blocos
+    private synchronized AtomicReferenceArray<T> criarBloco(int bloco) {
+        AtomicReferenceArray<T>[] atuais = blocos;
+        if(bloco < atuais.length && atuais[bloco] != null) return atuais[bloco];
+        AtomicReferenceArray<T>[] novos = Arrays.copyOf(atuais, Math.max(atuais.length, Integer.highestOneBit(bloco) * 2));
+        novos[bloco] = new AtomicReferenceArray<>(TAMANHO_BLOCO);
+        blocos = novos;
+        return novos[bloco];
+    }
+    
+    // Retorna o elemento da posição; espera se o escritor que a reservou ainda não terminou
+    T get(int posicao) {
+        if(posicao < 0 || posicao >= reservados.get()) throw new IndexOutOfBoundsException("Posição " + posicao);
+        while(true) {
+            AtomicReferenceArray<T>[] atuais = blocos;
+            int bloco = posicao >>> BITS_BLOCO;
+            if(bloco < atuais.length && atuais[bloco] != null) {
+                T elemento = atuais[bloco].get(posicao & (TAMANHO_BLOCO - 1));
+                if(elemento != null) return elemento;
+            }
+            Thread.onSpinWait(); // Escrita em andamento: é questão de nanossegundos
+        }
+    }
+    
+    int size() {
+        return reservados.get();
+    }
+    
+    boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    // Percorre os elementos existentes no início da iteração
+    public Iterator<T> iterator() {
+        int total = size();
+        return new Iterator<T>() {
+            int posicao;
+            
+            public boolean hasNext() {
+                return posicao < total;
+            }
+            
+            public T next() {
+                if(posicao >= total) throw new NoSuchElementException();
+                return get(posicao++);
+            }
+        };
+    }
+}
+
+// Catálogo em colunas primitivas por blocos: quantidade, preço em centavos, categoria codificada e ponto de reposição
+// de cada produto ficam em vetores paralelos indexados pelo id; o Produto é só a vista de uma linha
+class CatalogoProdutos implements Iterable<Produto> {
+    static final int BITS_BLOCO = 14; // 16384 produtos por bloco
+    static final int TAMANHO_BLOCO = 1 << BITS_BLOCO;
+    static final int PONTO_REPOSICAO_PADRAO = 5;
+    static final VarHandle INTEIROS = MethodHandles.arrayElementVarHandle(int[].class); // Quantidade e ponto de reposição voláteis
+    static final HistoricoProduto SEM_HISTORICO = new HistoricoProduto(); // Produto sem movimentação (nunca recebe acréscimos)
+    
+    // Colunas de um bloco de produtos
+    static class Bloco {
+        int[] quantidades = new int[TAMANHO_BLOCO]; // Quantidade em estoque (alterada sob a trava do produto)
+        long[] precos = new long[TAMANHO_BLOCO]; // Preço unitário em centavos
+        int[] categorias = new int[TAMANHO_BLOCO]; // Id da categoria no dicionário
+        int[] pontosReposicao = new int[TAMANHO_BLOCO]; // Alerta de reposição
+        HistoricoProduto[] historicos = new HistoricoProduto[TAMANHO_BLOCO]; // Criado na primeira movimentação do produto
+        ConsumoProduto[] consumos = new ConsumoProduto[TAMANHO_BLOCO]; // Criado na primeira saída do produto
+        Produto[] vistas = new Produto[TAMANHO_BLOCO]; // Vista de cada linha (identidade e trava do produto)
+    }
+    
+    volatile int tamanho; // Linhas publicadas (escrito depois de preencher a linha)
+    volatile Bloco[] blocos = new Bloco[4]; // Cópia substituída a cada bloco novo
+    ConcurrentHashMap<String, Integer> idsCategorias = new ConcurrentHashMap<>(); // Categoria → id
+    ListaConcorrente<String> categorias = new ListaConcorrente<>(); // Id → categoria (cada nome guardado uma vez)
+    
+    // Copia os dados do produto para uma linha nova e o transforma na vista dessa linha; retorna o id
+    synchronized int adicionar(Produto produto) {
+        int id = tamanho;
+        if(id == Integer.MAX_VALUE) throw new IllegalStateException("Catálogo cheio");
+        int indice = id >>> BITS_BLOCO, linha = id & (TAMANHO_BLOCO - 1);
+        Bloco[] atuais = blocos;
+        if(indice >= atuais.length || atuais[indice] == null) {
+            atuais = Arrays.copyOf(atuais, Math.max(atuais.length, indice * 2));
+            atuais[indice] = new Bloco();
+            blocos = atuais;
+        }
+        Bloco bloco = atuais[indice];
+        Produto.Pendente dados = produto.pendente;
+        Integer categoria = idsCategorias.get(dados.categoria);
+        if(categoria == null) { // Só este método acrescenta: não há corrida entre get e put
+            categoria = categorias.add(dados.categoria);
+            idsCategorias.put(dados.categoria, categoria);
+        }
+        bloco.quantidades[linha] = dados.quantidade;
+        bloco.precos[linha] = dados.precoCentavos;
+        bloco.categorias[linha] = categoria;
+        bloco.pontosReposicao[linha] = PONTO_REPOSICAO_PADRAO;
+        bloco.vistas[linha] = produto;
+        produto.id = id;
+        produto.catalogo = this;
+        produto.pendente = null;
+        tamanho = id + 1; // Publica a linha depois das colunas
+        return id;
+    }
+    
+    // Bloco do id (ids já publicados)
+    private Bloco bloco(int id) {
+        if(id < 0 || id >= tamanho) throw new IndexOutOfBoundsException("Produto " + id);
+        return blocos[id >>> BITS_BLOCO];
+    }
+    
+    Produto get(int id) {
+        return bloco(id).vistas[id & (TAMANHO_BLOCO - 1)];
+    }
+    
+    int size() {
+        return tamanho;
+    }
+    
+    boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    int quantidade(int id) {
+        return (int) INTEIROS.getVolatile(bloco(id).quantidades, id & (TAMANHO_BLOCO - 1));
+    }
+    
+    // Altera a quantidade (chamar sob a trava do produto)
+    void definirQuantidade(int id, int quantidade) {
+        INTEIROS.setVolatile(bloco(id).quantidades, id & (TAMANHO_BLOCO - 1), quantidade);
+    }
+    
+    long precoCentavos(int id) {
+        return bloco(id).precos[id & (TAMANHO_BLOCO - 1)];
+    }
+    
+    int categoriaId(int id) {
+        return bloco(id).categorias[id & (TAMANHO_BLOCO - 1)];
+    }
+    
+    String categoria(int id) {
+        return categorias.get(categoriaId(id));
+    }
+    
+    int pontoReposicao(int id) {
+        return (int) INTEIROS.getVolatile(bloco(id).pontosReposicao, id & (TAMANHO_BLOCO - 1));
+    }
+    
+    void definirPontoReposicao(int id, int ponto) {
+        INTEIROS.setVolatile(bloco(id).pontosReposicao, id & (TAMANHO_BLOCO - 1), ponto);
+    }
+    
+    // Histórico do produto para leitura (chamar sob a trava do produto)
+    HistoricoProduto historico(int id) {
+        HistoricoProduto historico = bloco(id).historicos[id & (TAMANHO_BLOCO - 1)];
+        return historico == null ? SEM_HISTORICO : historico;
+    }
+    
+    // Histórico do produto para acrescentar, criado na primeira movimentação (chamar sob a trava do produto)
+    HistoricoProduto historicoParaAcrescentar(int id) {
+        HistoricoProduto[] historicos = bloco(id).historicos;
+        int linha = id & (TAMANHO_BLOCO - 1);
+        if(historicos[linha] == null) historicos[linha] = new HistoricoProduto();
+        return historicos[linha];
+    }
+    
+    // Consumo do produto (null se nunca teve saída; ler sob a trava do produto)
+    ConsumoProduto consumo(int id) {
+        return bloco(id).consumos[id & (TAMANHO_BLOCO - 1)];
+    }
+    
+    // Soma uma saída ao consumo do produto (chamar sob a trava do produto)
+    void registrarConsumo(int id, int quantidade, long instante) {
+        ConsumoProduto[] consumos = bloco(id).consumos;
+        int linha = id & (TAMANHO_BLOCO - 1);
+        if(consumos[linha] == null) consumos[linha] = new ConsumoProduto();
+        consumos[linha].registrar(quantidade, instante);
+    }
+    
+    // Totais de uma varredura do catálogo
+    static class Totais {
+        long quantidade, valorCentavos; // Todos os produtos
+        long abaixo, valorAbaixoCentavos; // Produtos com quantidade ≤ limite
+        long semEstoque; // Produtos com quantidade zero
+        
+        void somar(Totais outro) {
+            quantidade += outro.quantidade;
+            valorCentavos += outro.valorCentavos;
+            abaixo += outro.abaixo;
+            valorAbaixoCentavos += outro.valorAbaixoCentavos;
+            semEstoque += outro.semEstoque;
+        }
+    }
+    
+    // Varredura de uma faixa de blocos; divide ao meio até restar um bloco por tarefa
+    @SuppressWarnings("serial") // Tarefa nunca é serializada
+    static class Varredura extends RecursiveTask<Totais> {
+        Bloco[] blocos;
+        int primeiro, ultimo, total, limite; // Blocos [primeiro, ultimo), linhas publicadas e limite de estoque baixo
+        
+        Varredura(Bloco[] blocos, int primeiro, int ultimo, int total, int limite) {
+            this.blocos = blocos;
+            this.primeiro = primeiro;
+            this.ultimo = ultimo;
+            this.total = total;
+            this.limite = limite;
+        }
+        
+        protected Totais compute() {
+            if(ultimo - primeiro == 1) return somarBlocos(blocos, primeiro, ultimo, total, limite);
+            int meio = (primeiro + ultimo) >>> 1;
+            Varredura esquerda = new Varredura(blocos, primeiro, meio, total, limite);
+            esquerda.fork();
+            Totais totais = new Varredura(blocos, meio, ultimo, total, limite).compute();
+            totais.somar(esquerda.join());
+            return totais;
+        }
+    }
+    
+    static final int MINIMO_PARALELO = 4 * TAMANHO_BLOCO; // Abaixo disso dividir em tarefas custa mais que varrer
+    
+    // Soma quantidades e valores e conta produtos com quantidade ≤ limite e sem estoque, só pelas colunas
+    // (fork-join por blocos em catálogos grandes; foto sem trava: alterações em andamento podem ou não entrar)
+    Totais totalizar(int limite) {
+        int total = tamanho;
+        Bloco[] atuais = blocos;
+        int quantidadeBlocos = (total + TAMANHO_BLOCO - 1) >>> BITS_BLOCO;
+        if(total < MINIMO_PARALELO || ForkJoinPool.getCommonPoolParallelism() < 2) return somarBlocos(atuais, 0, quantidadeBlocos, total, limite);
+        return ForkJoinPool.commonPool().invoke(new Varredura(atuais, 0, quantidadeBlocos, total, limite));
+    }
+    
+    // Varredura sequencial dos blocos [primeiro, ultimo)
+    static Totais somarBlocos(Bloco[] blocos, int primeiro, int ultimo, int total, int limite) {
+        Totais totais = new Totais();
+        for(int indice = primeiro; indice < ultimo; indice++) {
+            Bloco bloco = blocos[indice];
+            int linhas = Math.min(TAMANHO_BLOCO, total - (indice << BITS_BLOCO));
+            int[] quantidades = bloco.quantidades;
+            long[] precos = bloco.precos;
+            long quantidade = 0, valor = 0, abaixo = 0, valorAbaixo = 0, semEstoque = 0; // Acumuladores locais: o laço só lê vetores
+            for(int linha = 0; linha < linhas; linha++) {
+                int unidades = quantidades[linha];
+                long valorLinha = precos[linha] * unidades;
+                quantidade += unidades;
+                valor += valorLinha;
+                if(unidades <= limite) { // Raro: desvio bem previsto sai mais barato que somar sempre
+                    abaixo++;
+                    valorAbaixo += valorLinha;
+                    if(unidades == 0) semEstoque++;
+                }
+            }
+            totais.quantidade += quantidade;
+            totais.valorCentavos += valor;
+            totais.abaixo += abaixo;
+            totais.valorAbaixoCentavos += valorAbaixo;
+            totais.semEstoque += semEstoque;
+        }
+        return totais;
+    }
+    
+    // Percorre os produtos existentes no início da iteração
+    public Iterator<Produto> iterator() {
+        int total = size();
+        return new Iterator<Produto>() {
+            int id;
+            
+            public boolean hasNext() {
+                return id < total;
+            }
+            
+            public Produto next() {
+                if(id >= total) throw new NoSuchElementException();
+                return get(id++);
+            }
+        };
+    }
+}
+
+// Fotos das quantidades de todos os produtos em posições fixas do histórico: o estoque em uma data passada sai
+// da foto mais próxima antes da data mais as movimentações seguintes, sem reproduzir o histórico inteiro
+class PontosControle {
+    static final int INTERVALO_PADRAO = 1 << 20; // Movimentações entre fotos (no mínimo o número de produtos: fotos somam ≤ 4 bytes por movimentação)
+    
+    // Quantidades depois de aplicar as movimentações [0, posicao)
+    static class Foto {
+        int posicao; // Movimentações cobertas pela foto
+        long maiorInstante; // Maior instante entre elas (cresce de uma foto para a seguinte)
+        int[] quantidades; // Por id do produto (produtos cadastrados depois da foto usam a quantidade de cadastro)
+    }
+    
+    SistemaEstoque sistema;
+    int intervalo = INTERVALO_PADRAO;
+    ArrayList<Foto> fotos = new ArrayList<>();
+    int[] iniciais = new int[0]; // Quantidade de cada produto no cadastro, antes de qualquer movimentação
+    
+    PontosControle(SistemaEstoque sistema) {
+        this.sistema = sistema;
+        Foto inicio = new Foto();
+        inicio.maiorInstante = Long.MIN_VALUE;
+        inicio.quantidades = iniciais;
+        fotos.add(inicio);
+    }
+    
+    // Quantidades de todos os produtos no instante (por id); produtos cadastrados depois dele aparecem com a quantidade de cadastro
+    synchronized int[] estoqueEm(long instante) {
+        atualizar();
+        int total = sistema.movimentacoes.size(); // Lido antes dos produtos: toda movimentação até aqui é de produto já cadastrado
+        int produtos = sistema.produtos.size();
+        int baixo = 0, alto = fotos.size() - 1; // Última foto sem movimentação posterior ao instante
+        while(baixo < alto) {
+            int meio = (baixo + alto + 1) >>> 1;
+            if(fotos.get(meio).maiorInstante <= instante) baixo = meio;
+            else alto = meio - 1;
+        }
+        Foto foto = fotos.get(baixo);
+        int[] quantidades = completar(foto.quantidades, produtos);
+        sistema.movimentacoes.aplicarAte(instante, foto.posicao, total, quantidades);
+        return quantidades;
+    }
+    
+    // Cria as fotos que faltam para o histórico atual (cada uma parte da anterior e aplica só o intervalo seguinte)
+    synchronized void atualizar() {
+        int total = sistema.movimentacoes.size();
+        Foto ultima = fotos.get(fotos.size() - 1);
+        int passo = Math.max(intervalo, sistema.produtos.size());
+        while(total - ultima.posicao >= passo) {
+            Foto nova = new Foto();
+            nova.posicao = ultima.posicao + passo;
+            nova.quantidades = completar(ultima.quantidades, sistema.produtos.size());
+            sistema.movimentacoes.aplicarAte(Long.MAX_VALUE, ultima.posicao, nova.posicao, nova.quantidades);
+            nova.maiorInstante = Math.max(ultima.maiorInstante, sistema.movimentacoes.maiorInstante(ultima.posicao, nova.posicao));
+            fotos.add(nova);
+            ultima = nova;
+        }
+    }
+    
+    // Cópia das quantidades estendida até o número de produtos com as quantidades de cadastro
+    private int[] completar(int[] quantidades, int produtos) {
+        if(iniciais.length < produtos) {
+            int conhecidos = iniciais.length;
+            iniciais = Arrays.copyOf(iniciais, produtos);
+            for(int id = conhecidos; id < produtos; id++) {
+                Produto produto = sistema.produtos.get(id);
+                synchronized(produto) { // Quantidade e histórico do produto na mesma foto
+                    HistoricoProduto historico = produto.historico();
+                    iniciais[id] = (int) (produto.quantidade() - historico.saldoAntes(historico.tamanho));
+                }
+            }
+        }
+        int[] copia = Arrays.copyOf(quantidades, produtos);
+        System.arraycopy(iniciais, quantidades.length, copia, quantidades.length, produtos - Math.min(produtos, quantidades.length));
+        return copia;
+    }
+}
+
+// Totais de uma categoria mantidos a cada cadastro e movimentação (relatório por categoria sem varrer o catálogo)
+class ResumoCategoria {
+    String nome; // Nome da categoria
+    LongAdder produtos = new LongAdder(), unidades = new LongAdder(); // Produtos cadastrados e unidades em estoque
+    LongAdder valorCentavos = new LongAdder(); // Soma de preço × quantidade
+    LongAdder emFalta = new LongAdder(); // Produtos com quantidade ≤ ponto de reposição
+    LongAdder entradas = new LongAdder(), saidas = new LongAdder(); // Movimentações por tipo
+    LongAdder unidadesEntrada = new LongAdder(), unidadesSaida = new LongAdder(); // Unidades movimentadas por tipo
+    ConcurrentSkipListSet<Long> porQuantidade = new ConcurrentSkipListSet<>(); // Produtos da categoria por quantidade (quantidade << 32 | id)
+    
+    ResumoCategoria(String nome) {
+        this.nome = nome;
+    }
+    
+    // Ids dos produtos com mais unidades, do maior para o menor
+    ArrayList<Integer> maioresEstoques(int limite) {
+        ArrayList<Integer> ids = new ArrayList<>();
+        for(long chave : porQuantidade.descendingSet()) {
+            if(ids.size() == limite) break;
+            ids.add((int) chave);
+        }
+        return ids;
+    }
+}
+
+// Importação em massa de produtos e movimentações a partir de arquivos CSV (sem o menu interativo)
+class ImportadorCsv {
+    static final int TAMANHO_LOTE = 10_000; // Linhas aplicadas por lote
+    
+    SistemaEstoque sistema; // Sistema que recebe os dados
+    char separador; // Separador de campos (padrão ';', pois a vírgula é decimal)
+    ArrayList<String> campos = new ArrayList<>(); // Campos da linha atual (reutilizado)
+    StringBuilder campo = new StringBuilder(); // Campo em construção (reutilizado)
+    long aceitas, rejeitadas; // Contadores da última importação
+    
+    ImportadorCsv(SistemaEstoque sistema, char separador) {
+        this.sistema = sistema;
+        this.separador = separador;
+    }
+    
+    // Importa produtos (codigo;nome;categoria;quantidade;preco) com as mesmas regras do cadastro
+    void importarProdutos(Path arquivo, Path rejeicoes) throws IOException {
+        importar(arquivo, rejeicoes, true);
+    }
+    
+    // Importa movimentações (codigo;ENTRADA|SAIDA;quantidade;observacao) com as mesmas regras de entrada/saída
+    void importarMovimentacoes(Path arquivo, Path rejeicoes) throws IOException {
+        importar(arquivo, rejeicoes, false);
+    }
+    
+    // Lê o arquivo em fluxo, acumulando lotes de linhas; falhas vão para o arquivo de rejeitadas
+    private void importar(Path arquivo, Path rejeicoes, boolean produtos) throws IOException {
+        aceitas = 0;
+        rejeitadas = 0;
+        String[] lote = new String[TAMANHO_LOTE];
+        try(BufferedReader leitor = new BufferedReader(new InputStreamReader(Files.newInputStream(arquivo), StandardCharsets.UTF_8), 1 << 16);
+            BufferedWriter rejeitadasArquivo = Files.newBufferedWriter(rejeicoes, StandardCharsets.UTF_8)) {
+            long numeroLinha = 0, primeiraDoLote = 1;
+            int noLote = 0;
+            String linha;
+            while((linha = leitor.readLine()) != null) {
+                numeroLinha++;
+                if(numeroLinha == 1 && !linha.isEmpty() && linha.charAt(0) == '\uFEFF') linha = linha.substring(1); // BOM
+                if(numeroLinha == 1 && cabecalho(linha)) {
+                    primeiraDoLote = 2;
+                    continue;
+                }
+                lote[noLote++] = linha;
+                if(noLote == TAMANHO_LOTE) {
+                    aplicarLote(lote, noLote, primeiraDoLote, produtos, rejeitadasArquivo);
+                    primeiraDoLote = numeroLinha + 1;
+                    noLote = 0;
+                }
+            }
+            if(noLote > 0) aplicarLote(lote, noLote, primeiraDoLote, produtos, rejeitadasArquivo);
+        }
+    }
+    
+    // Primeira linha começando por "codigo"/"código" é cabeçalho
+    private boolean cabecalho(String linha) {
+        String inicio = linha.trim().toLowerCase();
+        return inicio.startsWith("codigo") || inicio.startsWith("código");
+    }
+    
+    // Aplica um lote: produtos sob uma única trava do catálogo e um único fsync por lote
+    private void aplicarLote(String[] lote, int tamanho, long primeiraLinha, boolean produtos, BufferedWriter rejeitadasArquivo) throws IOException {
+        Diario diario = sistema.diario;
+        if(diario != null) diario.iniciarLote();
+        boolean travar = produtos && sistema.particoes == null; // Com partições quem cadastra é a escritora (que trava sozinha)
+        if(travar) sistema.travaCatalogo.writeLock().lock();
+        try {
+            for(int i = 0; i < tamanho; i++) {
+                String linha = lote[i];
+                lote[i] = null;
+                if(linha.trim().isEmpty()) continue; // Linhas em branco são ignoradas
+                String erro = produtos ? aplicarProduto(linha) : aplicarMovimentacao(linha);
+                if(erro == null) {
+                    aceitas++;
+                } else {
+                    rejeitadas++;
+                    rejeitadasArquivo.write(String.valueOf(primeiraLinha + i) + separador + erro + separador + linha);
+                    rejeitadasArquivo.newLine();
+                }
+            }
+        } finally {
+            if(travar) sistema.travaCatalogo.writeLock().unlock();
+            if(diario != null) diario.concluirLote();
+        }
+    }
+    
+    // Valida e cadastra um produto; retorna o motivo da rejeição ou null
+    String aplicarProduto(String linha) {
+        if(!dividir(linha, 5, 5)) return "Esperados 5 campos: codigo;nome;categoria;quantidade;preco";
+        String motivo = exigirTextos(campos.get(0), campos.get(1), campos.get(2)); // Antes dos números, como no menu
+        if(motivo != null) return motivo;
+        int quantidade;
+        double preco;
+        try {
+            quantidade = Integer.parseInt(campos.get(3));
+            preco = Double.parseDouble(campos.get(4).replace(',', '.'));
+        } catch(NumberFormatException erro) {
+            return "Número inválido";
+        }
+        return cadastrar(campos.get(0), campos.get(1), campos.get(2), quantidade, preco);
+    }
+    
+    // Código, nome e categoria obrigatórios; retorna o motivo da rejeição ou null
+    static String exigirTextos(String codigo, String nome, String categoria) {
+        if(codigo.isEmpty()) return "Código é obrigatório";
+        if(nome.isEmpty()) return "Nome é obrigatório";
+        if(categoria.isEmpty()) return "Categoria é obrigatória";
+        return null;
+    }
+    
+    // Valida os números e cadastra o produto com os campos já interpretados; retorna o motivo da rejeição ou null
+    String cadastrar(String codigo, String nome, String categoria, int quantidade, double preco) {
+        String motivo = exigirTextos(codigo, nome, categoria);
+        if(motivo != null) return motivo;
+        if(quantidade < 0) return "Quantidade não pode ser negativa";
+        if(Double.isNaN(preco) || Double.isInfinite(preco)) return "Preço inválido";
+        if(preco < 0) return "Preço não pode ser negativo";
+        
+        Produto produto = new Produto(codigo, nome, categoria, 0, preco);
+        if(!sistema.cadastrarProduto(produto)) return "Código já existe";
+        if(quantidade > 0) sistema.registrarEntrada(produto, quantidade, "Cadastro inicial com estoque");
+        return null;
+    }
+    
+    // Valida e aplica uma movimentação; retorna o motivo da rejeição ou null
+    private String aplicarMovimentacao(String linha) {
+        if(!dividir(linha, 3, 4)) return "Esperados 3 ou 4 campos: codigo;tipo;quantidade;observacao";
+        Produto produto = sistema.buscar(campos.get(0));
+        if(produto == null) return "Produto não encontrado";
+        byte tipo = tipoMovimentacao(campos.get(1));
+        boolean entrada = tipo == Movimentacao.ENTRADA;
+        if(tipo == 0) return "Tipo deve ser ENTRADA ou SAIDA";
+        int quantidade;
+        try {
+            quantidade = Integer.parseInt(campos.get(2));
+        } catch(NumberFormatException erro) {
+            return "Número inválido";
+        }
+        if(quantidade <= 0) return "Quantidade deve ser positiva";
+        return movimentar(produto, entrada, quantidade, campos.size() > 3 ? campos.get(3) : "");
+    }
+    
+    // Aplica entrada ou saída com a observação padrão quando vazia; retorna o motivo da rejeição ou null
+    String movimentar(Produto produto, boolean entrada, int quantidade, String observacao) {
+        if(entrada) {
+            sistema.registrarEntrada(produto, quantidade, observacao.isEmpty() ? "Reposição de estoque" : observacao);
+        } else if(!sistema.registrarSaida(produto, quantidade, observacao.isEmpty() ? "Saída de produtos" : observacao)) {
+            return "Estoque insuficiente! Disponível: " + produto.quantidade();
+        }
+        return null;
+    }
+    
+    // Tipo de movimentação escrito por extenso (0 se inválido)
+    static byte tipoMovimentacao(String texto) {
+        String tipo = texto.toUpperCase();
+        if(tipo.equals("ENTRADA")) return Movimentacao.ENTRADA;
+        return tipo.equals("SAIDA") || tipo.equals("SAÍDA") ? Movimentacao.SAIDA : 0;
+    }
+    
+    // Interpreta uma linha de pedido (codigo;tipo;quantidade;observacao); retorna o motivo da rejeição ou null
+    String lerLinhaPedido(String linha, List<LinhaPedido> destino) {
+        if(!dividir(linha, 3, 4)) return "Esperados 3 ou 4 campos: codigo;tipo;quantidade;observacao";
+        byte tipo = tipoMovimentacao(campos.get(1));
+        if(tipo == 0) return "Tipo deve ser ENTRADA ou SAIDA";
+        int quantidade;
+        try {
+            quantidade = Integer.parseInt(campos.get(2));
+        } catch(NumberFormatException erro) {
+            return "Número inválido";
+        }
+        String observacao = campos.size() > 3 ? campos.get(3) : "";
+        if(observacao.isEmpty()) observacao = tipo == Movimentacao.ENTRADA ? "Reposição de estoque" : "Saída de produtos";
+        destino.add(new LinhaPedido(campos.get(0), tipo, quantidade, observacao));
+        return null;
+    }
+    
+    // Divide a linha em campos (aspas duplas permitem separador dentro do campo); retorna se a quantidade é válida
+    boolean dividir(String linha, int minimo, int maximo) {
+        campos.clear();
+        campo.setLength(0);
+        boolean entreAspas = false;
+        for(int i = 0; i < linha.length(); i++) {
+            char c = linha.charAt(i);
+            if(entreAspas) {
+                if(c != '"') campo.append(c);
+                else if(i + 1 < linha.length() && linha.charAt(i + 1) == '"') campo.append(linha.charAt(++i)); // Aspas escapadas ("")
+                else entreAspas = false;
+            } else if(c == '"') {
+                entreAspas = true;
+            } else if(c == separador) {
+                campos.add(campo.toString().trim());
+                campo.setLength(0);
+            } else {
+                campo.append(c);
+            }
+        }
+        campos.add(campo.toString().trim());
+        return campos.size() >= minimo && campos.size() <= maximo;
+    }
+}
+
+// Segmentos imutáveis e comprimidos com os blocos antigos do histórico, um arquivo por bloco de movimentações;
+// na memória fica só a faixa de instantes de cada segmento e um cache pequeno dos últimos blocos lidos
+class ArquivoMovimentacoes {
+    static final int MAGICO = 0x45535453; // "ESTS"
+    static final int MAGICO_ESTADO = 0x45535441; // "ESTA"
+    static final int VERSAO = 2; // 2: textos das observações dentro do segmento
+    static final int CABECALHO = 48; // Mágico, versão, índice, linhas, menor e maior instante, tamanhos, CRC
+    static final int CABECALHO_ESTADO = 16; // Mágico, versão, blocos, produtos
+    static final int BLOCOS_EM_CACHE = 4;
+    
+    // Até onde o arquivo chegou: na reprodução do diário, as primeiras movimentações de cada produto (as que estão nos
+    // segmentos) são puladas em vez de voltar à memória
+    static class Estado {
+        final int blocos; // Blocos [0, blocos) arquivados
+        final int[] arquivadas; // Movimentações de cada produto (por id) nesses blocos
+        
+        Estado(int blocos, int[] arquivadas) {
+            this.blocos = blocos;
+            this.arquivadas = arquivadas;
+        }
+    }
+    
+    // Bloco lido por último (consulta sem trava nas leituras seguidas do mesmo bloco)
+    static class Lido {
+        final int indice;
+        final HistoricoMovimentacoes.Bloco bloco;
+        
+        Lido(int indice, HistoricoMovimentacoes.Bloco bloco) {
+            this.indice = indice;
+            this.bloco = bloco;
+        }
+    }
+    
+    Path diretorio; // Onde ficam os segmentos
+    HistoricoMovimentacoes historico; // Dicionário de observações (o segmento guarda os textos, não os ids desta execução)
+    long[] menores = new long[16], maiores = new long[16]; // Faixa de instantes de cada segmento (por índice do bloco)
+    Lido[] cache = new Lido[BLOCOS_EM_CACHE]; // Substituição circular
+    int proximoNoCache;
+    volatile Lido ultimoLido;
+    long bytesGravados; // Tamanho dos segmentos arquivados por este processo (ou reaproveitados)
+    
+    ArquivoMovimentacoes(Path diretorio, HistoricoMovimentacoes historico) throws IOException {
+        this.diretorio = Files.createDirectories(diretorio);
+        this.historico = historico;
+    }
+    
+    // Arquivo do segmento de um bloco
+    Path caminho(int indice) {
+        return diretorio.resolve(String.format("segmento-%08d.mov", indice));
+    }
+    
+    // Arquivo do estado (blocos arquivados e movimentações de cada produto neles)
+    Path caminhoEstado() {
+        return diretorio.resolve("arquivados.estado");
+    }
+    
+    // Grava o bloco completo num segmento novo (ou reaproveita o existente com o mesmo conteúdo) e guarda sua faixa
+    void gravar(int indice, HistoricoMovimentacoes.Bloco bloco) throws IOException {
+        byte[] dados = codificar(bloco);
+        Deflater compressor = new Deflater(Deflater.BEST_SPEED);
+        compressor.setInput(dados);
+        compressor.finish();
+        byte[] comprimido = new byte[dados.length / 2 + 64];
+        int tamanho = 0;
+        while(!compressor.finished()) {
+            if(tamanho == comprimido.length) comprimido = Arrays.copyOf(comprimido, tamanho * 2);
+            tamanho += compressor.deflate(comprimido, tamanho, comprimido.length - tamanho);
+        }
+        compressor.end();
+        CRC32 crc = new CRC32();
+        crc.update(comprimido, 0, tamanho);
+        long menor = bloco.menorInstante.get(), maior = bloco.maiorInstante.get();
+        ByteBuffer cabecalho = ByteBuffer.allocate(CABECALHO).putInt(MAGICO).putInt(VERSAO).putInt(indice).putInt(HistoricoMovimentacoes.TAMANHO_BLOCO)
+                .putLong(menor).putLong(maior).putInt(dados.length).putInt(tamanho).putLong(crc.getValue());
+        
+        Path destino = caminho(indice);
+        if(!igualAoExistente(destino, cabecalho.array(), tamanho)) { // Diário reproduzido de novo: segmento já gravado antes
+            substituir(destino, ByteBuffer.allocate(CABECALHO + tamanho).put(cabecalho.array()).put(comprimido, 0, tamanho).flip());
+        }
+        registrarFaixa(indice, menor, maior, CABECALHO + tamanho);
+    }
+    
+    // Grava num temporário e troca pelo destino de uma vez (nunca fica meio gravado)
+    private void substituir(Path destino, ByteBuffer conteudo) throws IOException {
+        Path temporario = diretorio.resolve(destino.getFileName() + ".tmp");
+        try(FileChannel canal = FileChannel.open(temporario, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while(conteudo.hasRemaining()) canal.write(conteudo);
+            canal.force(true);
+        }
+        Files.move(temporario, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Guarda a faixa de instantes do segmento (consultas por período pulam segmentos sem lê-los)
+    private synchronized void registrarFaixa(int indice, long menor, long maior, long bytes) {
+        if(indice >= menores.length) {
+            menores = Arrays.copyOf(menores, Math.max(indice + 1, menores.length * 2));
+            maiores = Arrays.copyOf(maiores, menores.length);
+        }
+        menores[indice] = menor;
+        maiores[indice] = maior;
+        bytesGravados += bytes;
+    }
+    
+    // Segmento já existe com o mesmo cabeçalho (inclui o CRC dos dados) e o mesmo tamanho?
+    private boolean igualAoExistente(Path destino, byte[] cabecalho, int tamanho) throws IOException {
+        if(!Files.exists(destino) || Files.size(destino) != CABECALHO + tamanho) return false;
+        return Arrays.equals(lerCabecalho(destino).array(), cabecalho);
+    }
+    
+    private static ByteBuffer lerCabecalho(Path segmento) throws IOException {
+        try(FileChannel canal = FileChannel.open(segmento, StandardOpenOption.READ)) {
+            ByteBuffer cabecalho = ByteBuffer.allocate(CABECALHO);
+            while(cabecalho.hasRemaining() && canal.read(cabecalho) > 0) { }
+            return cabecalho.flip();
+        }
+    }
+    
+    // Grava o estado depois dos segmentos que ele cita (uma queda entre os dois só deixa segmentos a mais, regravados depois)
+    void gravarEstado(Estado estado) throws IOException {
+        ByteBuffer conteudo = ByteBuffer.allocate(CABECALHO_ESTADO + estado.arquivadas.length * 4 + 8);
+        conteudo.putInt(MAGICO_ESTADO).putInt(VERSAO).putInt(estado.blocos).putInt(estado.arquivadas.length);
+        for(int arquivadas : estado.arquivadas) conteudo.putInt(arquivadas);
+        CRC32 crc = new CRC32();
+        crc.update(conteudo.array(), 0, conteudo.position());
+        substituir(caminhoEstado(), conteudo.putLong(crc.getValue()).flip());
+    }
+    
+    // Estado gravado pela execução anterior (nenhum bloco se ainda não há); confere os segmentos citados e guarda suas faixas
+    Estado lerEstado() throws IOException {
+        if(!Files.exists(caminhoEstado())) return new Estado(0, new int[0]);
+        ByteBuffer conteudo = ByteBuffer.wrap(Files.readAllBytes(caminhoEstado()));
+        if(conteudo.remaining() < CABECALHO_ESTADO + 8 || conteudo.getInt() != MAGICO_ESTADO || conteudo.getInt() != VERSAO) {
+            throw new IOException("Estado do arquivo inválido");
+        }
+        int blocos = conteudo.getInt(), produtos = conteudo.getInt();
+        if(blocos < 0 || produtos < 0 || conteudo.remaining() != produtos * 4L + 8) throw new IOException("Estado do arquivo incompleto");
+        int[] arquivadas = new int[produtos];
+        long total = 0;
+        for(int i = 0; i < produtos; i++) total += arquivadas[i] = conteudo.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(conteudo.array(), 0, conteudo.position());
+        if(crc.getValue() != conteudo.getLong() || total != (long) blocos << HistoricoMovimentacoes.BITS_BLOCO) {
+            throw new IOException("Estado do arquivo corrompido");
+        }
+        for(int indice = 0; indice < blocos; indice++) {
+            Path segmento = caminho(indice);
+            if(!Files.exists(segmento)) throw new IOException("Segmento " + indice + " não encontrado");
+            ByteBuffer cabecalho = lerCabecalho(segmento);
+            if(cabecalho.remaining() < CABECALHO || cabecalho.getInt() != MAGICO || cabecalho.getInt() != VERSAO || cabecalho.getInt() != indice
+                    || cabecalho.getInt() != HistoricoMovimentacoes.TAMANHO_BLOCO) {
+                throw new IOException("Segmento " + indice + " inválido");
+            }
+            registrarFaixa(indice, cabecalho.getLong(), cabecalho.getLong(), Files.size(segmento));
+        }
+        return new Estado(blocos, arquivadas);
+    }
+    
+    // Bloco arquivado (do cache ou lido do segmento)
+    HistoricoMovimentacoes.Bloco ler(int indice) {
+        Lido lido = ultimoLido;
+        if(lido != null && lido.indice == indice) return lido.bloco;
+        synchronized(this) {
+            for(Lido emCache : cache) {
+                if(emCache != null && emCache.indice == indice) {
+                    ultimoLido = emCache;
+                    return emCache.bloco;
+                }
+            }
+            try {
+                lido = new Lido(indice, carregar(indice));
+            } catch(IOException erro) {
+                throw new UncheckedIOException(erro);
+            }
+            cache[proximoNoCache] = lido;
+            proximoNoCache = (proximoNoCache + 1) % BLOCOS_EM_CACHE;
+            ultimoLido = lido;
+            return lido.bloco;
+        }
+    }
+    
+    // Lê, confere e descomprime um segmento
+    private HistoricoMovimentacoes.Bloco carregar(int indice) throws IOException {
+        ByteBuffer conteudo = ByteBuffer.wrap(Files.readAllBytes(caminho(indice)));
+        if(conteudo.remaining() < CABECALHO || conteudo.getInt() != MAGICO || conteudo.getInt() != VERSAO || conteudo.getInt() != indice
+                || conteudo.getInt() != HistoricoMovimentacoes.TAMANHO_BLOCO) {
+            throw new IOException("Segmento " + indice + " inválido");
+        }
+        long menor = conteudo.getLong(), maior = conteudo.getLong();
+        int tamanhoOriginal = conteudo.getInt(), tamanho = conteudo.getInt();
+        long esperado = conteudo.getLong();
+        if(tamanho != conteudo.remaining()) throw new IOException("Segmento " + indice + " incompleto");
+        CRC32 crc = new CRC32();
+        crc.update(conteudo.array(), CABECALHO, tamanho);
+        if(crc.getValue() != esperado) throw new IOException("Segmento " + indice + " corrompido");
+        byte[] dados = new byte[tamanhoOriginal];
+        Inflater descompressor = new Inflater();
+        try {
+            descompressor.setInput(conteudo.array(), CABECALHO, tamanho);
+            if(descompressor.inflate(dados) != tamanhoOriginal) throw new IOException("Segmento " + indice + " incompleto");
+        } catch(DataFormatException erro) {
+            throw new IOException("Segmento " + indice + " corrompido", erro);
+        } finally {
+            descompressor.end();
+        }
+        HistoricoMovimentacoes.Bloco bloco = decodificar(ByteBuffer.wrap(dados));
+        bloco.menorInstante.set(menor);
+        bloco.maiorInstante.set(maior);
+        return bloco;
+    }
+    
+    // Colunas em sequência: instantes como diferença do anterior, demais como inteiros de tamanho variável, tipos crus;
+    // no fim os textos das observações do bloco, que a coluna de observações indexa (ids do dicionário mudam entre execuções)
+    byte[] codificar(HistoricoMovimentacoes.Bloco bloco) {
+        HashMap<Integer, Integer> locais = new HashMap<>(); // Id no dicionário → índice no segmento
+        ArrayList<byte[]> textos = new ArrayList<>();
+        int[] observacoes = new int[HistoricoMovimentacoes.TAMANHO_BLOCO];
+        int bytesTextos = 0;
+        for(int i = 0; i < observacoes.length; i++) {
+            Integer local = locais.get(bloco.observacoes[i]);
+            if(local == null) {
+                byte[] texto = historico.observacoes.get(bloco.observacoes[i]).getBytes(StandardCharsets.UTF_8);
+                local = textos.size();
+                locais.put(bloco.observacoes[i], local);
+                textos.add(texto);
+                bytesTextos += 5 + texto.length;
+            }
+            observacoes[i] = local;
+        }
+        ByteBuffer saida = ByteBuffer.allocate(HistoricoMovimentacoes.TAMANHO_BLOCO * 40 + 5 + bytesTextos); // Pior caso: 10 + 3 × 5 bytes + 1 por linha
+        long anterior = 0;
+        for(long instante : bloco.instantes) {
+            variavel(saida, (instante - anterior) << 1 ^ (instante - anterior) >> 63); // Zigue-zague: diferenças negativas pequenas
+            anterior = instante;
+        }
+        for(int produto : bloco.produtos) variavel(saida, produto & 0xFFFFFFFFL);
+        for(int quantidade : bloco.quantidades) variavel(saida, quantidade & 0xFFFFFFFFL);
+        for(int observacao : observacoes) variavel(saida, observacao);
+        saida.put(bloco.tipos);
+        variavel(saida, textos.size());
+        for(byte[] texto : textos) {
+            variavel(saida, texto.length);
+            saida.put(texto);
+        }
+        return Arrays.copyOf(saida.array(), saida.position());
+    }
+    
+    HistoricoMovimentacoes.Bloco decodificar(ByteBuffer entrada) {
+        HistoricoMovimentacoes.Bloco bloco = new HistoricoMovimentacoes.Bloco();
+        long anterior = 0;
+        for(int i = 0; i < HistoricoMovimentacoes.TAMANHO_BLOCO; i++) {
+            long zigue = variavel(entrada);
+            anterior += zigue >>> 1 ^ -(zigue & 1);
+            bloco.instantes[i] = anterior;
+        }
+        for(int i = 0; i < HistoricoMovimentacoes.TAMANHO_BLOCO; i++) bloco.produtos[i] = (int) variavel(entrada);
+        for(int i = 0; i < HistoricoMovimentacoes.TAMANHO_BLOCO; i++) bloco.quantidades[i] = (int) variavel(entrada);
+        for(int i = 0; i < HistoricoMovimentacoes.TAMANHO_BLOCO; i++) bloco.observacoes[i] = (int) variavel(entrada);
+        entrada.get(bloco.tipos);
+        int[] ids = new int[(int) variavel(entrada)]; // Índice no segmento → id no dicionário desta execução
+        for(int i = 0; i < ids.length; i++) {
+            byte[] texto = new byte[(int) variavel(entrada)];
+            entrada.get(texto);
+            ids[i] = historico.idObservacao(new String(texto, StandardCharsets.UTF_8));
+        }
+        for(int i = 0; i < HistoricoMovimentacoes.TAMANHO_BLOCO; i++) bloco.observacoes[i] = ids[bloco.observacoes[i]];
+        return bloco;
+    }
+    
+    // Inteiro sem sinal em grupos de 7 bits (bit alto = continua)
+    static void variavel(ByteBuffer saida, long valor) {
+        while((valor & ~0x7FL) != 0) {
+            saida.put((byte) ((valor & 0x7F) | 0x80));
+            valor >>>= 7;
+        }
+        saida.put((byte) valor);
+    }
+    
+    static long variavel(ByteBuffer entrada) {
+        long valor = 0;
+        for(int deslocamento = 0; ; deslocamento += 7) {
+            byte b = entrada.get();
+            valor |= (long) (b & 0x7F) << deslocamento;
+            if(b >= 0) return valor;
+        }
+    }
+}
+
+// Histórico de movimentações em colunas primitivas por blocos; várias threads acrescentam sem trava
+class HistoricoMovimentacoes implements Iterable<Movimentacao> {
+    static final int BITS_BLOCO = 14; // 16384 movimentações por bloco
+    static final int TAMANHO_BLOCO = 1 << BITS_BLOCO;
+    static final VarHandle TIPOS = MethodHandles.arrayElementVarHandle(byte[].class); // Publicação da linha
+    
+    // Colunas de um bloco de movimentações
+    static class Bloco {
+        long[] instantes = new long[TAMANHO_BLOCO]; // Milissegundos desde 1970
+        int[] produtos = new int[TAMANHO_BLOCO]; // Id do produto
+        int[] quantidades = new int[TAMANHO_BLOCO]; // Quantidade movimentada
+        int[] observacoes = new int[TAMANHO_BLOCO]; // Id da observação no dicionário
+        byte[] tipos = new byte[TAMANHO_BLOCO]; // ENTRADA/SAIDA; 0 = linha reservada ainda não publicada
+        AtomicLong menorInstante = new AtomicLong(Long.MAX_VALUE); // Faixa de instantes do bloco (consultas por período
+        AtomicLong maiorInstante = new AtomicLong(Long.MIN_VALUE); // pulam blocos fora da faixa)
+        
+        // Amplia a faixa de instantes do bloco (quase sempre só leitura: o instante já está na faixa)
+        void incluirInstante(long instante) {
+            if(instante < menorInstante.get()) menorInstante.accumulateAndGet(instante, Math::min);
+            if(instante > maiorInstante.get()) maiorInstante.accumulateAndGet(instante, Math::max);
+        }
+    }
+    
+    CatalogoProdutos catalogo; // Resolve id do produto em código ao exibir
+    AtomicInteger reservados = new AtomicInteger(); // Linhas já reservadas por escritores
+    volatile Bloco[] blocos = new Bloco[4]; // Cópia substituída a cada bloco novo
+    ConcurrentHashMap<String, Integer> idsObservacoes = new ConcurrentHashMap<>(); // Observação → id
+    ListaConcorrente<String> observacoes = new ListaConcorrente<>(); // Id → observação (cada texto guardado uma vez)
+    LongAdder entradas = new LongAdder(), saidas = new LongAdder(); // Quantidade de movimentações por tipo
+    LongAdder unidadesEntrada = new LongAdder(), unidadesSaida = new LongAdder(); // Unidades movimentadas por tipo
+    ArquivoMovimentacoes arquivo; // Segmentos em disco dos blocos antigos (null = histórico inteiro na memória)
+    volatile int blocosArquivados; // Blocos [0, blocosArquivados) só existem nos segmentos
+    final Object travaArquivamento = new Object(); // Um arquivamento por vez (a gravação não segura a trava dos blocos)
+    int[] arquivadasPendentes; // Na reprodução do diário: movimentações de cada produto ainda a pular (já estão nos segmentos)
+    
+    HistoricoMovimentacoes(CatalogoProdutos catalogo) {
+        this.catalogo = catalogo;
+    }
+    
+    // Acrescenta movimentação e retorna sua posição no histórico
+    int adicionar(int produtoId, byte tipo, int quantidade, String observacao, long instante) {
+        int posicao = reservar(1);
+        escrever(posicao, produtoId, tipo, quantidade, observacao, instante);
+        return posicao;
+    }
+    
+    // Reserva posições consecutivas (as movimentações de um pedido ficam juntas no histórico); retorna a primeira
+    int reservar(int quantidade) {
+        int posicao = reservados.getAndAdd(quantidade);
+        if(posicao < 0 || posicao + quantidade < 0) throw new IllegalStateException("Histórico cheio");
+        return posicao;
+    }
+    
+    // Preenche e publica a movimentação de uma posição reservada
+    void escrever(int posicao, int produtoId, byte tipo, int quantidade, String observacao, long instante) {
+        int observacaoId = idObservacao(observacao);
+        Bloco[] atuais = blocos;
+        int indice = posicao >>> BITS_BLOCO;
+        Bloco bloco = indice < atuais.length ? atuais[indice] : null;
+        if(bloco == null) bloco = criarBloco(indice);
+        int linha = posicao & (TAMANHO_BLOCO - 1);
+        bloco.instantes[linha] = instante;
+        bloco.produtos[linha] = produtoId;
+        bloco.quantidades[linha] = quantidade;
+        bloco.observacoes[linha] = observacaoId;
+        bloco.incluirInstante(instante);
+        TIPOS.setRelease(bloco.tipos, linha, tipo); // Publica a linha depois das demais colunas
+        catalogo.historicoParaAcrescentar(produtoId).adicionar(posicao, instante, tipo == Movimentacao.ENTRADA ? quantidade : -quantidade);
+        contar(produtoId, tipo, quantidade, instante);
+    }
+    
+    // Estatísticas acumuladas (relatório sem varrer o histórico) e consumo do produto
+    private void contar(int produtoId, byte tipo, int quantidade, long instante) {
+        if(tipo == Movimentacao.ENTRADA) {
+            entradas.increment();
+            unidadesEntrada.add(quantidade);
+        } else {
+            catalogo.registrarConsumo(produtoId, quantidade, instante);
+            saidas.increment();
+            unidadesSaida.add(quantidade);
+        }
+    }
+    
+    // Id da observação no dicionário (o texto é guardado na primeira vez)
+    int idObservacao(String observacao) {
+        return idsObservacoes.computeIfAbsent(observacao, texto -> observacoes.add(texto));
+    }
+    
+    // Antes de reproduzir o diário: os blocos que a execução anterior arquivou continuam só nos segmentos, com suas
+    // posições reservadas, e as primeiras movimentações de cada produto no diário (as que estão neles) serão puladas
+    void retomarArquivo() throws IOException {
+        ArquivoMovimentacoes.Estado estado = arquivo.lerEstado();
+        blocosArquivados = estado.blocos;
+        reservados.set(estado.blocos << BITS_BLOCO);
+        arquivadasPendentes = estado.arquivadas;
+    }
+    
+    // Movimentação reproduzida do diário que já está num segmento? Conta nos totais e no saldo descartado do produto sem
+    // voltar à memória (a ordem por produto no diário é a mesma do histórico)
+    boolean pularArquivada(int produtoId, byte tipo, int quantidade, long instante) {
+        if(arquivadasPendentes == null || produtoId >= arquivadasPendentes.length || arquivadasPendentes[produtoId] == 0) return false;
+        arquivadasPendentes[produtoId]--;
+        catalogo.historicoParaAcrescentar(produtoId).descartarArquivada(blocosArquivados << BITS_BLOCO, instante,
+                tipo == Movimentacao.ENTRADA ? quantidade : -quantidade);
+        contar(produtoId, tipo, quantidade, instante);
+        return true;
+    }
+    
+    // Fim da reprodução: toda movimentação arquivada precisa ter aparecido no diário
+    void conferirArquivadas() throws IOException {
+        if(arquivadasPendentes == null) return;
+        long faltando = 0;
+        for(int pendentes : arquivadasPendentes) faltando += pendentes;
+        arquivadasPendentes = null;
+        if(faltando > 0) throw new IOException("Arquivo de movimentações não corresponde ao diário: " + faltando + " movimentações arquivadas não estão nele");
+    }
+    
+    // Cria o bloco (se outra thread ainda não criou) republicando o vetor de blocos
+    private synchronized Bloco criarBloco(int indice) {
+        Bloco[] atuais = blocos;
+        if(indice < atuais.length && atuais[indice] != null) return atuais[indice];
+        Bloco[] novos = Arrays.copyOf(atuais, Math.max(atuais.length, Integer.highestOneBit(indice) * 2));
+        novos[indice] = new Bloco();
+        blocos = novos;
+        return novos[indice];
+    }
+    
+    // Bloco da posição, esperando a publicação se o escritor ainda não terminou (blocos arquivados vêm do segmento)
+    private Bloco publicado(int posicao) {
+        if(posicao < 0 || posicao >= reservados.get()) throw new IndexOutOfBoundsException("Posição " + posicao);
+        int linha = posicao & (TAMANHO_BLOCO - 1);
+        while(true) {
+            Bloco[] atuais = blocos;
+            int indice = posicao >>> BITS_BLOCO;
+            if(indice < atuais.length && atuais[indice] != null && (byte) TIPOS.getAcquire(atuais[indice].tipos, linha) != 0) return atuais[indice];
+            if(indice < blocosArquivados) return arquivo.ler(indice); // Lido depois dos blocos: quem viu a vaga vazia vê o contador novo
+            Thread.onSpinWait();
+        }
+    }
+    
+    // A faixa de instantes do bloco alcança o período? (blocos arquivados respondem sem ler o segmento)
+    private boolean alcanca(int indice, long inicio, long fim) {
+        if(indice < blocosArquivados) return arquivo.maiores[indice] >= inicio && arquivo.menores[indice] <= fim;
+        Bloco bloco = publicado(indice << BITS_BLOCO); // Espera o bloco existir se acabou de ser reservado
+        return bloco.maiorInstante.get() >= inicio && bloco.menorInstante.get() <= fim;
+    }
+    
+    // Grava em segmentos os blocos completos cuja movimentação mais nova é anterior ao limite, do mais antigo ao mais novo,
+    // tira esses blocos da memória e descarta suas posições dos índices por produto; retorna os blocos arquivados
+    int arquivar(long limite) throws IOException {
+        if(arquivo == null) return 0;
+        synchronized(travaArquivamento) {
+            int arquivados = 0;
+            try {
+                while(true) {
+                    int indice = blocosArquivados, inicioBloco = indice << BITS_BLOCO;
+                    if((long) inicioBloco + TAMANHO_BLOCO > reservados.get()) break; // Só blocos completos
+                    Bloco bloco = publicado(inicioBloco);
+                    for(int posicao = inicioBloco; posicao < inicioBloco + TAMANHO_BLOCO; posicao++) publicado(posicao); // Pedidos publicam fora de ordem
+                    if(bloco.maiorInstante.get() >= limite) break; // Blocos seguintes são ainda mais novos
+                    arquivo.gravar(indice, bloco);
+                    synchronized(this) { // Mesma trava de criarBloco: a troca do vetor não perde bloco novo
+                        blocosArquivados = indice + 1;
+                        Bloco[] novos = blocos.clone();
+                        novos[indice] = null;
+                        blocos = novos;
+                    }
+                    int limitePosicao = inicioBloco + TAMANHO_BLOCO;
+                    for(int linha = 0; linha < TAMANHO_BLOCO; linha++) {
+                        Produto produto = catalogo.get(bloco.produtos[linha]);
+                        synchronized(produto) { // Mesma trava de quem acrescenta e consulta o índice do produto
+                            produto.historico().descartarAte(limitePosicao);
+                        }
+                    }
+                    arquivados++;
+                }
+            } finally {
+                if(arquivados > 0) arquivo.gravarEstado(estadoArquivado()); // Também se um bloco seguinte falhou
+            }
+            return arquivados;
+        }
+    }
+    
+    // Blocos arquivados e quantas movimentações de cada produto estão neles (só o arquivamento muda esses números)
+    private ArquivoMovimentacoes.Estado estadoArquivado() {
+        int[] arquivadas = new int[catalogo.size()];
+        for(int id = 0; id < arquivadas.length; id++) arquivadas[id] = catalogo.historico(id).descartadas;
+        return new ArquivoMovimentacoes.Estado(blocosArquivados, arquivadas);
+    }
+    
+    // Posições arquivadas do produto (abaixo de ate) com instante em [inicio, fim], lendo só os segmentos que alcançam o período
+    int[] posicoesArquivadas(int produtoId, long inicio, long fim, int ate) {
+        int[] posicoes = HistoricoProduto.SEM_POSICOES;
+        int encontradas = 0;
+        int blocos = Math.min(blocosArquivados, (ate + TAMANHO_BLOCO - 1) >>> BITS_BLOCO);
+        for(int indice = 0; indice < blocos; indice++) {
+            if(!alcanca(indice, inicio, fim)) continue;
+            Bloco bloco = arquivo.ler(indice);
+            int fimBloco = Math.min(ate - (indice << BITS_BLOCO), TAMANHO_BLOCO);
+            for(int linha = 0; linha < fimBloco; linha++) {
+                if(bloco.produtos[linha] != produtoId || bloco.instantes[linha] < inicio || bloco.instantes[linha] > fim) continue;
+                if(encontradas == posicoes.length) posicoes = Arrays.copyOf(posicoes, Math.max(16, encontradas * 2));
+                posicoes[encontradas++] = (indice << BITS_BLOCO) + linha;
+            }
+        }
+        return Arrays.copyOf(posicoes, encontradas);
+    }
+    
+    // Variação de estoque da movimentação (positiva na entrada, negativa na saída)
+    int variacao(int posicao) {
+        Bloco bloco = publicado(posicao);
+        int linha = posicao & (TAMANHO_BLOCO - 1);
+        return bloco.tipos[linha] == Movimentacao.ENTRADA ? bloco.quantidades[linha] : -bloco.quantidades[linha];
+    }
+    
+    int size() {
+        return reservados.get();
+    }
+    
+    boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    byte tipo(int posicao) {
+        return publicado(posicao).tipos[posicao & (TAMANHO_BLOCO - 1)];
+    }
+    
+    int quantidade(int posicao) {
+        return publicado(posicao).quantidades[posicao & (TAMANHO_BLOCO - 1)];
+    }
+    
+    int produtoId(int posicao) {
+        return publicado(posicao).produtos[posicao & (TAMANHO_BLOCO - 1)];
+    }
+    
+    long instante(int posicao) {
+        return publicado(posicao).instantes[posicao & (TAMANHO_BLOCO - 1)];
+    }
+    
+    String observacao(int posicao) {
+        return observacoes.get(publicado(posicao).observacoes[posicao & (TAMANHO_BLOCO - 1)]);
+    }
+    
+    // Movimentações de todos os produtos no período [inicio, fim], lendo só os blocos cuja faixa de instantes o alcança
+    Pagina<Movimentacao> noPeriodo(long inicio, long fim, int pagina, int tamanhoPagina) {
+        Pagina<Movimentacao> resultado = new Pagina<>(pagina, tamanhoPagina);
+        long pular = (long) pagina * tamanhoPagina;
+        int total = size();
+        for(int indice = 0; indice << BITS_BLOCO < total; indice++) {
+            if(!alcanca(indice, inicio, fim)) continue; // Bloco fora do período (arquivado ou não)
+            int inicioBloco = indice << BITS_BLOCO, fimBloco = Math.min(total, inicioBloco + TAMANHO_BLOCO);
+            for(int posicao = inicioBloco; posicao < fimBloco; posicao++) {
+                long instante = instante(posicao);
+                if(instante < inicio || instante > fim) continue;
+                if(resultado.total >= pular && resultado.itens.size() < tamanhoPagina) resultado.itens.add(get(posicao));
+                resultado.total++;
+            }
+        }
+        return resultado;
+    }
+    
+    // Saldo (entradas - saídas) de cada produto com movimentação no período, por id do produto
+    TreeMap<Integer, Long> saldoPorProduto(long inicio, long fim) {
+        TreeMap<Integer, Long> saldos = new TreeMap<>();
+        int total = size();
+        for(int indice = 0; indice << BITS_BLOCO < total; indice++) {
+            if(!alcanca(indice, inicio, fim)) continue; // Bloco fora do período (arquivado ou não)
+            Bloco bloco = publicado(indice << BITS_BLOCO);
+            int inicioBloco = indice << BITS_BLOCO, fimBloco = Math.min(total, inicioBloco + TAMANHO_BLOCO);
+            for(int posicao = inicioBloco; posicao < fimBloco; posicao++) {
+                long instante = instante(posicao);
+                if(instante < inicio || instante > fim) continue;
+                int linha = posicao & (TAMANHO_BLOCO - 1);
+                int variacao = bloco.tipos[linha] == Movimentacao.ENTRADA ? bloco.quantidades[linha] : -bloco.quantidades[linha];
+                saldos.merge(bloco.produtos[linha], (long) variacao, Long::sum);
+            }
+        }
+        return saldos;
+    }
+    
+    // Soma nas quantidades (por id do produto) as movimentações das posições [de, ate) com instante ≤ ao informado,
+    // pulando blocos que começam depois dele
+    void aplicarAte(long instante, int de, int ate, int[] quantidades) {
+        if(de >= ate) return;
+        for(int inicioBloco = de & -TAMANHO_BLOCO; inicioBloco < ate; inicioBloco += TAMANHO_BLOCO) {
+            if(!alcanca(inicioBloco >>> BITS_BLOCO, Long.MIN_VALUE, instante)) continue; // Bloco inteiro depois do instante
+            Bloco bloco = publicado(Math.max(de, inicioBloco)); // Espera a primeira linha do trecho ser publicada
+            int fimBloco = Math.min(ate, inicioBloco + TAMANHO_BLOCO);
+            for(int posicao = Math.max(de, inicioBloco); posicao < fimBloco; posicao++) {
+                publicado(posicao);
+                int linha = posicao & (TAMANHO_BLOCO - 1);
+                if(bloco.instantes[linha] > instante) continue;
+                quantidades[bloco.produtos[linha]] += bloco.tipos[linha] == Movimentacao.ENTRADA ? bloco.quantidades[linha] : -bloco.quantidades[linha];
+            }
+        }
+    }
+    
+    // Maior instante das posições [de, ate)
+    long maiorInstante(int de, int ate) {
+        long maior = Long.MIN_VALUE;
+        for(int posicao = de; posicao < ate; posicao++) maior = Math.max(maior, instante(posicao));
+        return maior;
+    }
+    
+    // Monta a movimentação da posição (só para exibição)
+    Movimentacao get(int posicao) {
+        Bloco bloco = publicado(posicao);
+        int linha = posicao & (TAMANHO_BLOCO - 1);
+        return new Movimentacao(catalogo.get(bloco.produtos[linha]).codigo, bloco.tipos[linha], bloco.quantidades[linha],
+                observacoes.get(bloco.observacoes[linha]), bloco.instantes[linha]);
+    }
+    
+    // Percorre as movimentações existentes no início da iteração
+    public Iterator<Movimentacao> iterator() {
+        int total = size();
+        return new Iterator<Movimentacao>() {
+            int posicao;
+            
+            public boolean hasNext() {
+                return posicao < total;
+            }
+            
+            public Movimentacao next() {
+                if(posicao >= total) throw new NoSuchElementException();
+                return get(posicao++);
+            }
+        };
+    }
+}
+
+// Mede as operações principais em catálogos sintéticos: vazão, tempo médio e bytes alocados por operação
+class Desempenho {
+    static final String[] PALAVRAS = {"Caneta", "Lápis", "Caderno", "Borracha", "Régua", "Mouse", "Teclado", "Monitor", "Cabo",
+            "Fone", "Cadeira", "Mesa", "Garrafa", "Copo", "Prato", "Toalha", "Lençol", "Parafuso", "Martelo", "Alicate"};
+    static final String[] CATEGORIAS = {"Papelaria", "Informática", "Móveis", "Cozinha", "Cama e Banho", "Ferramentas",
+            "Eletrônicos", "Escritório", "Limpeza", "Brinquedos", "Esporte", "Jardim"};
+    static final int INDICES = 1 << 16; // Entradas sorteadas de antemão (máscara barata no laço medido)
+    static final long LOTE_MAXIMO_NS = 1_000_000; // Lote cresce até levar ~1 ms entre leituras do relógio
+    static volatile long sumidouro; // Consome os resultados para o JIT não eliminar o trabalho medido
+    
+    // Operação medida; recebe um índice sorteado e devolve algo derivado do resultado
+    interface Operacao {
+        long executar(int indice);
+    }
+    
+    int aquecimentos, iteracoes; // Rodadas descartadas e medidas por operação
+    long duracaoNs; // Duração de cada rodada
+    long semente; // Mesma semente = mesmo catálogo e mesma sequência de acessos
+    com.sun.management.ThreadMXBean memoria; // Bytes alocados pela thread (null se a JVM não oferecer)
+    BufferedWriter resultado; // CSV opcional com os números (base para comparar versões)
+    
+    Desempenho(int aquecimentos, int iteracoes, long duracaoMs, long semente) {
+        this.aquecimentos = aquecimentos;
+        this.iteracoes = iteracoes;
+        this.duracaoNs = duracaoMs * 1_000_000;
+        this.semente = semente;
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            memoria = (com.sun.management.ThreadMXBean) bean;
+            memoria.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+    
+    // Executa as medições para cada tamanho de catálogo
+    void executar(int[] tamanhos) throws IOException {
+        System.out.println("\n=== DESEMPENHO ===");
+        System.out.println("ℹ Java " + System.getProperty("java.version") + " | heap máximo " + Runtime.getRuntime().maxMemory() / (1024 * 1024)
+                + " MB | " + aquecimentos + " aquecimento(s) + " + iteracoes + " medição(ões) de " + duracaoNs / 1_000_000 + " ms por operação");
+        if(resultado != null) resultado.write("produtos;operacao;ops_por_s;ns_por_op;bytes_por_op;mb_alocados_por_s\n");
+        for(int tamanho : tamanhos) {
+            try {
+                medirCatalogo(tamanho);
+            } catch(OutOfMemoryError erro) {
+                System.out.println("❌ Erro: Memória insuficiente para " + tamanho + " produtos (aumente -Xmx)");
+            }
+            System.gc(); // Não deixa o catálogo anterior pesar na próxima medição
+        }
+    }
+    
+    // Monta o catálogo sintético e mede cada operação sobre ele
+    void medirCatalogo(int tamanho) throws IOException {
+        long inicio = System.nanoTime();
+        SistemaEstoque sistema = catalogo(tamanho, semente);
+        System.out.println("\n📊 Catálogo com " + tamanho + " produtos (montado em " + (System.nanoTime() - inicio) / 1_000_000 + " ms)");
+        System.out.println(String.format("   %-26s %14s %12s %10s %10s", "Operação", "ops/s", "ns/op", "B/op", "MB/s"));
+        
+        Random aleatorio = new Random(semente + 1);
+        int[] indices = new int[INDICES]; // Produtos acessados, sorteados fora do laço medido
+        String[] codigos = new String[INDICES];
+        String[] termos = new String[INDICES];
+        for(int i = 0; i < INDICES; i++) {
+            indices[i] = aleatorio.nextInt(tamanho);
+            codigos[i] = sistema.produtos.get(indices[i]).codigo.toLowerCase(); // Busca normaliza o código
+            String palavra = PALAVRAS[aleatorio.nextInt(PALAVRAS.length)];
+            int comeco = aleatorio.nextInt(palavra.length() - 2);
+            termos[i] = palavra.substring(comeco, comeco + 3);
+        }
+        
+        medir(tamanho, "buscar (código)", i -> { Produto produto = sistema.buscar(codigos[i]); return produto == null ? 0 : produto.id; });
+        medir(tamanho, "consultar (nome, 20)", i -> sistema.pesquisar(2, termos[i], 20).size());
+        medir(tamanho, "estoqueBaixo (≤ 5)", i -> sistema.produtosAbaixoDe(5).size());
+        medir(tamanho, "totais de listar", i -> sistema.quantidadeTotal.sum() + sistema.valorTotalCentavos.sum());
+        medir(tamanho, "varredura (valor e ≤ 5)", i -> { CatalogoProdutos.Totais totais = sistema.produtos.totalizar(5); return totais.valorCentavos + totais.abaixo; });
+        medir(tamanho, "estatísticas do relatório", i -> sistema.movimentacoes.entradas.sum() + sistema.movimentacoes.saidas.sum()
+                + sistema.movimentacoes.unidadesEntrada.sum() + sistema.movimentacoes.unidadesSaida.sum());
+        medir(tamanho, "registrar movimentação", i -> {
+            Produto produto = sistema.produtos.get(indices[i]);
+            if((i & 1) == 0) {
+                sistema.registrarEntrada(produto, 1, "Desempenho");
+                return 1;
+            }
+            return sistema.registrarSaida(produto, 1, "Desempenho") ? 1 : 0;
+        });
+    }
+    
+    // Catálogo determinístico (códigos únicos, nomes e categorias de listas fixas), sem diário
+    static SistemaEstoque catalogo(int tamanho, long semente) {
+        SistemaEstoque sistema = new SistemaEstoque();
+        Random aleatorio = new Random(semente);
+        for(int i = 0; i < tamanho; i++) {
+            String nome = PALAVRAS[aleatorio.nextInt(PALAVRAS.length)] + " " + PALAVRAS[aleatorio.nextInt(PALAVRAS.length)];
+            sistema.adicionarProduto(new Produto("SKU" + i, nome, CATEGORIAS[aleatorio.nextInt(CATEGORIAS.length)],
+                    aleatorio.nextInt(1000), (1 + aleatorio.nextInt(99_999)) / 100.0));
+        }
+        return sistema;
+    }
+    
+    // Aquece, mede e imprime uma operação
+    void medir(int tamanho, String nome, Operacao operacao) throws IOException {
+        for(int i = 0; i < aquecimentos; i++) rodada(operacao);
+        long operacoes = 0, nanos = 0, bytes = 0;
+        for(int i = 0; i < iteracoes; i++) {
+            long[] medida = rodada(operacao);
+            operacoes += medida[0];
+            nanos += medida[1];
+            bytes += medida[2];
+        }
+        double porSegundo = operacoes * 1e9 / nanos;
+        double nsPorOperacao = (double) nanos / operacoes;
+        String bytesPorOperacao = memoria == null ? "n/d" : String.format("%.1f", (double) bytes / operacoes);
+        String megasPorSegundo = memoria == null ? "n/d" : String.format("%.1f", bytes * 1e9 / nanos / (1024 * 1024));
+        System.out.println(String.format("   %-26s %14.1f %12.1f %10s %10s", nome, porSegundo, nsPorOperacao, bytesPorOperacao, megasPorSegundo));
+        if(resultado != null) {
+            resultado.write(tamanho + ";" + nome + ";" + String.format(Locale.ROOT, "%.1f;%.1f", porSegundo, nsPorOperacao) + ";"
+                    + bytesPorOperacao.replace(',', '.') + ";" + megasPorSegundo.replace(',', '.') + "\n");
+        }
+    }
+    
+    // Uma rodada: repete a operação em lotes crescentes até esgotar a duração; devolve {operações, ns, bytes}
+    long[] rodada(Operacao operacao) {
+        long bytesAntes = alocados();
+        long inicio = System.nanoTime(), fim = inicio + duracaoNs, agora;
+        long operacoes = 0, acumulado = 0;
+        int lote = 1; // Poucas leituras do relógio nas operações rápidas, sem estourar a duração nas lentas
+        while(true) {
+            long comecoLote = System.nanoTime();
+            for(int k = 0; k < lote; k++) acumulado += operacao.executar((int) (operacoes + k) & (INDICES - 1));
+            operacoes += lote;
+            agora = System.nanoTime();
+            if(agora >= fim) break;
+            if(agora - comecoLote < LOTE_MAXIMO_NS && lote < (1 << 20)) lote <<= 1;
+        }
+        long bytes = alocados() - bytesAntes;
+        sumidouro += acumulado;
+        return new long[] {operacoes, agora - inicio, bytes};
+    }
+    
+    // Total de bytes já alocados pela thread atual
+    private long alocados() {
+        return memoria == null ? 0 : memoria.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
+
+// Simula tráfego de armazém em memória: mistura configurável de operações, SKUs com popularidade Zipf e várias threads
+class Simulacao {
+    static final String[] OPERACOES = {"buscar", "consultar", "entrada", "saída", "relatório"};
+    static final int BUSCAR = 0, CONSULTAR = 1, ENTRADA = 2, SAIDA = 3, RELATORIO = 4;
+    static final double[] PERCENTIS = {0.50, 0.99, 0.999};
+    static volatile long sumidouro; // Consome os resultados para o JIT não eliminar o trabalho
+    
+    int produtos, operacoes; // Tamanho do catálogo e operações por rodada (divididas entre as threads)
+    int[] mistura; // Peso de cada tipo de operação, na ordem de OPERACOES
+    long semente; // Mesma semente e mesmas opções = mesma carga
+    double[] acumulada; // Distribuição Zipf acumulada por posição de popularidade
+    int[] permutacao; // Posição de popularidade -> id do produto (os populares ficam espalhados pelo catálogo)
+    String[] termos; // Termos de busca por nome (trechos de 3 letras das palavras do catálogo)
+    int particoes; // Partições do motor particionado (0 = desligado)
+    BufferedWriter resultado; // CSV opcional com os números
+    
+    Simulacao(int produtos, int operacoes, int[] mistura, double expoente, long semente) {
+        this.produtos = produtos;
+        this.operacoes = operacoes;
+        this.mistura = mistura;
+        this.semente = semente;
+        acumulada = new double[produtos];
+        double soma = 0;
+        for(int i = 0; i < produtos; i++) acumulada[i] = soma += 1 / Math.pow(i + 1, expoente);
+        for(int i = 0; i < produtos; i++) acumulada[i] /= soma;
+        permutacao = new int[produtos];
+        Random aleatorio = new Random(semente + 2);
+        for(int i = 0; i < produtos; i++) { // Fisher-Yates
+            int j = aleatorio.nextInt(i + 1);
+            permutacao[i] = permutacao[j];
+            permutacao[j] = i;
+        }
+        ArrayList<String> trechos = new ArrayList<>();
+        for(String palavra : Desempenho.PALAVRAS) {
+            for(int i = 0; i + 3 <= palavra.length(); i++) trechos.add(palavra.substring(i, i + 3));
+        }
+        termos = trechos.toArray(new String[0]);
+    }
+    
+    // Carga de uma thread, sorteada antes de medir: tipo da operação e produto (ou termo) de cada passo
+    static class Carga {
+        byte[] tipos;
+        int[] alvos;
+        int[] quantidades;
+        long[][] latencias = new long[OPERACOES.length][]; // Nanossegundos por operação, separados por tipo
+        int[] contagem = new int[OPERACOES.length];
+        int recusadas; // Saídas sem estoque suficiente
+    }
+    
+    // Executa uma rodada para cada quantidade de threads, cada uma sobre um catálogo novo
+    void executar(int[] threads) throws IOException, InterruptedException {
+        System.out.println("\n=== SIMULAÇÃO ===");
+        System.out.println("ℹ " + produtos + " produtos | " + operacoes + " operações por rodada | mistura " + descreverMistura()
+                + (particoes > 0 ? " | " + particoes + " partições" : ""));
+        if(resultado != null) resultado.write("threads;operacao;quantidade;p50_us;p99_us;p999_us;max_us;ops_por_s\n");
+        for(int quantidade : threads) rodada(quantidade);
+    }
+    
+    // Roda a carga em paralelo e imprime vazão e percentis de latência por tipo de operação
+    void rodada(int threads) throws IOException, InterruptedException {
+        SistemaEstoque sistema = Desempenho.catalogo(produtos, semente);
+        if(particoes > 0) sistema.particoes = new Particoes(sistema, particoes);
+        Carga[] cargas = new Carga[threads];
+        for(int t = 0; t < threads; t++) cargas[t] = gerar(operacoes / threads + (t < operacoes % threads ? 1 : 0), semente * 31 + t);
+        
+        CountDownLatch largada = new CountDownLatch(1);
+        Thread[] trabalhadores = new Thread[threads];
+        AtomicReference<Throwable> falha = new AtomicReference<>();
+        for(int t = 0; t < threads; t++) {
+            Carga carga = cargas[t];
+            trabalhadores[t] = new Thread(() -> {
+                try {
+                    largada.await();
+                    aplicar(sistema, carga);
+                } catch(Throwable erro) {
+                    falha.compareAndSet(null, erro);
+                }
+            }, "simulacao-" + t);
+            trabalhadores[t].start();
+        }
+        long inicio = System.nanoTime();
+        largada.countDown();
+        for(Thread trabalhador : trabalhadores) trabalhador.join();
+        long duracao = System.nanoTime() - inicio;
+        if(sistema.particoes != null) sistema.particoes.close();
+        if(falha.get() != null) throw new IllegalStateException("Falha na simulação", falha.get());
+        
+        double porSegundo = operacoes * 1e9 / duracao;
+        int recusadas = 0;
+        for(Carga carga : cargas) recusadas += carga.recusadas;
+        System.out.println("\n📊 " + threads + " thread(s): " + operacoes + " operações em " + duracao / 1_000_000 + " ms ("
+                + String.format("%.0f", porSegundo) + " ops/s, " + recusadas + " saídas recusadas por falta de estoque)");
+        System.out.println(String.format("   %-12s %10s %10s %10s %10s %10s", "Operação", "quantidade", "p50 (µs)", "p99 (µs)", "p999 (µs)", "máx (µs)"));
+        for(int tipo = 0; tipo < OPERACOES.length; tipo++) {
+            int total = 0;
+            for(Carga carga : cargas) total += carga.contagem[tipo];
+            if(total == 0) continue;
+            long[] todas = new long[total];
+            int pos = 0;
+            for(Carga carga : cargas) {
+                System.arraycopy(carga.latencias[tipo], 0, todas, pos, carga.contagem[tipo]);
+                pos += carga.contagem[tipo];
+            }
+            Arrays.sort(todas);
+            double[] micros = new double[PERCENTIS.length + 1];
+            for(int p = 0; p < PERCENTIS.length; p++) micros[p] = todas[(int) Math.ceil(PERCENTIS[p] * total) - 1] / 1000.0;
+            micros[PERCENTIS.length] = todas[total - 1] / 1000.0;
+            System.out.println(String.format("   %-12s %10d %10.1f %10.1f %10.1f %10.1f", OPERACOES[tipo], total, micros[0], micros[1], micros[2], micros[3]));
+            if(resultado != null) {
+                resultado.write(threads + ";" + OPERACOES[tipo] + ";" + total + ";" + String.format(Locale.ROOT, "%.1f;%.1f;%.1f;%.1f;%.0f",
+                        micros[0], micros[1], micros[2], micros[3], porSegundo) + "\n");
+            }
+        }
+        
+        ArrayList<String> divergencias = sistema.verificarTotais(); // Carga concorrente não pode desalinhar os totais
+        if(divergencias.isEmpty()) System.out.println("✅ Totais conferem com os produtos e o histórico");
+        else for(String divergencia : divergencias) System.out.println("❌ " + divergencia);
+    }
+    
+    // Sorteia a sequência de operações de uma thread (fora da medição)
+    Carga gerar(int quantidade, long sementeThread) {
+        Random aleatorio = new Random(sementeThread);
+        int somaPesos = 0;
+        for(int peso : mistura) somaPesos += peso;
+        Carga carga = new Carga();
+        carga.tipos = new byte[quantidade];
+        carga.alvos = new int[quantidade];
+        carga.quantidades = new int[quantidade];
+        int[] porTipo = new int[OPERACOES.length];
+        for(int i = 0; i < quantidade; i++) {
+            int sorteio = aleatorio.nextInt(somaPesos), tipo = 0;
+            while(sorteio >= mistura[tipo]) sorteio -= mistura[tipo++];
+            carga.tipos[i] = (byte) tipo;
+            carga.alvos[i] = tipo == CONSULTAR ? aleatorio.nextInt(termos.length) : sortearProduto(aleatorio);
+            carga.quantidades[i] = 1 + aleatorio.nextInt(10);
+            porTipo[tipo]++;
+        }
+        for(int tipo = 0; tipo < OPERACOES.length; tipo++) carga.latencias[tipo] = new long[porTipo[tipo]];
+        return carga;
+    }
+    
+    // Produto sorteado pela popularidade Zipf
+    int sortearProduto(Random aleatorio) {
+        int posicao = Arrays.binarySearch(acumulada, aleatorio.nextDouble());
+        if(posicao < 0) posicao = -posicao - 1;
+        return permutacao[Math.min(posicao, produtos - 1)];
+    }
+    
+    // Aplica a carga da thread medindo cada operação
+    void aplicar(SistemaEstoque sistema, Carga carga) {
+        long acumulado = 0;
+        for(int i = 0; i < carga.tipos.length; i++) {
+            int tipo = carga.tipos[i], alvo = carga.alvos[i], quantidade = carga.quantidades[i];
+            long inicio = System.nanoTime();
+            switch(tipo) {
+                case BUSCAR:
+                    acumulado += sistema.buscar(sistema.produtos.get(alvo).codigo).id;
+                    break;
+                case CONSULTAR:
+                    acumulado += sistema.pesquisar(2, termos[alvo], 20).size();
+                    break;
+                case ENTRADA:
+                    sistema.registrarEntrada(sistema.produtos.get(alvo), quantidade, "Simulação");
+                    break;
+                case SAIDA:
+                    if(!sistema.registrarSaida(sistema.produtos.get(alvo), quantidade, "Simulação")) carga.recusadas++;
+                    break;
+                default: // Relatório: estoque baixo pelo índice e totais do resumo
+                    acumulado += sistema.indiceQuantidades.headSet(SistemaEstoque.chaveQuantidade(5, -1), true).size()
+                            + sistema.quantidadeTotal.sum() + sistema.valorTotalCentavos.sum() + sistema.movimentacoes.entradas.sum();
+            }
+            carga.latencias[tipo][carga.contagem[tipo]++] = System.nanoTime() - inicio;
+        }
+        sumidouro += acumulado;
+    }
+    
+    // Mistura como texto (ex.: buscar 40%, consultar 10%...)
+    String descreverMistura() {
+        int soma = 0;
+        for(int peso : mistura) soma += peso;
+        StringJoiner texto = new StringJoiner(", ");
+        for(int tipo = 0; tipo < OPERACOES.length; tipo++) {
+            if(mistura[tipo] > 0) texto.add(OPERACOES[tipo] + " " + Math.round(100.0 * mistura[tipo] / soma) + "%");
+        }
+        return texto.toString();
+    }
+}
+
+// Contadores de chamadas e erros e histogramas de latência por operação; sem alocação ao registrar, publicados também via JMX
+class Metricas implements DynamicMBean {
+    static final String NOME_JMX = "SistemaEstoque:type=Metricas";
+    static final long SEM_AMOSTRA = Long.MIN_VALUE; // Chamada contada, mas sem medir o tempo
+    static final int FAIXAS = 256; // Faixas logarítmicas: 4 subdivisões por potência de 2 (erro máximo de 25%)
+    
+    // Operações medidas; as frequentes só cronometram uma a cada 'amostragem' chamadas (duas leituras do relógio pesam nelas)
+    enum Operacao {
+        CADASTRAR("cadastrar", "Cadastrar", 1), ENTRADA("entrada", "Entrada", 16), SAIDA("saída", "Saida", 16),
+        BUSCAR("buscar", "Buscar", 16), CONSULTAR("consultar", "Consultar", 16), ESTOQUE_BAIXO("estoqueBaixo", "EstoqueBaixo", 1),
+        RELATORIO("relatório", "Relatorio", 1), PEDIDO("pedido", "Pedido", 1), PREVISAO("previsão", "Previsao", 1),
+        CATEGORIAS("categorias", "Categorias", 1);
+        
+        final String nome, atributo; // Nome exibido e prefixo dos atributos JMX
+        final int mascara; // amostragem - 1 (amostragem é potência de 2)
+        
+        Operacao(String nome, String atributo, int amostragem) {
+            this.nome = nome;
+            this.atributo = atributo;
+            this.mascara = amostragem - 1;
+        }
+    }
+    
+    // Tipos de erro contados separadamente
+    enum Erro {
+        ESTOQUE_INSUFICIENTE("estoque insuficiente", "ErrosEstoqueInsuficiente"),
+        PRODUTO_NAO_ENCONTRADO("produto não encontrado", "ErrosProdutoNaoEncontrado"),
+        CODIGO_DUPLICADO("código duplicado", "ErrosCodigoDuplicado"),
+        DADOS_INVALIDOS("dados inválidos", "ErrosDadosInvalidos");
+        
+        final String nome, atributo;
+        
+        Erro(String nome, String atributo) {
+            this.nome = nome;
+            this.atributo = atributo;
+        }
+    }
+    
+    // Medidas de uma operação
+    static class Medidor {
+        final LongAdder chamadas = new LongAdder(), erros = new LongAdder(), nanos = new LongAdder(); // nanos = soma das amostras
+        final LongAccumulator maximo = new LongAccumulator(Math::max, 0);
+        final AtomicLongArray faixas = new AtomicLongArray(FAIXAS);
+    }
+    
+    static final Operacao[] OPERACOES = Operacao.values(); // Cópias únicas (values() aloca a cada chamada)
+    static final Erro[] ERROS = Erro.values();
+    static final String[] MEDIDAS = {"Chamadas", "Erros", "MediaMicros", "P50Micros", "P99Micros", "P999Micros", "MaximoMicros"};
+    final Medidor[] medidores = new Medidor[OPERACOES.length];
+    final LongAdder[] errosPorTipo = new LongAdder[ERROS.length];
+    
+    Metricas() {
+        for(int i = 0; i < medidores.length; i++) medidores[i] = new Medidor();
+        for(int i = 0; i < errosPorTipo.length; i++) errosPorTipo[i] = new LongAdder();
+    }
+    
+    // Conta a chamada e devolve o instante inicial (ou SEM_AMOSTRA se esta chamada não for cronometrada)
+    long iniciar(Operacao operacao) {
+        medidores[operacao.ordinal()].chamadas.increment();
+        if((ThreadLocalRandom.current().nextInt() & operacao.mascara) != 0) return SEM_AMOSTRA;
+        return System.nanoTime();
+    }
+    
+    // Registra a latência da chamada iniciada em 'inicio'
+    void concluir(Operacao operacao, long inicio) {
+        concluir(operacao, inicio, 0);
+    }
+    
+    // Registra a latência descontando o tempo de espera pelo usuário (paginação)
+    void concluir(Operacao operacao, long inicio, long esperaNs) {
+        if(inicio == SEM_AMOSTRA) return;
+        long nanos = Math.max(0, System.nanoTime() - inicio - esperaNs);
+        Medidor medidor = medidores[operacao.ordinal()];
+        medidor.faixas.incrementAndGet(faixa(nanos));
+        medidor.nanos.add(nanos);
+        medidor.maximo.accumulate(nanos);
+    }
+    
+    // Conta um erro da operação
+    void erro(Operacao operacao, Erro erro) {
+        medidores[operacao.ordinal()].erros.increment();
+        errosPorTipo[erro.ordinal()].increment();
+    }
+    
+    // Chamada recusada antes de fazer qualquer trabalho (conta chamada e erro)
+    void falha(Operacao operacao, Erro erro) {
+        medidores[operacao.ordinal()].chamadas.increment();
+        erro(operacao, erro);
+    }
+    
+    // Faixa do histograma para a latência (valores < 4 ns têm faixa própria)
+    static int faixa(long nanos) {
+        if(nanos < 4) return (int) nanos;
+        int expoente = 63 - Long.numberOfLeadingZeros(nanos);
+        return (expoente << 2) | (int) ((nanos >>> (expoente - 2)) & 3);
+    }
+    
+    // Maior latência que cai na faixa
+    static long limiteFaixa(int faixa) {
+        if(faixa < 4) return faixa;
+        int expoente = faixa >> 2;
+        return ((4L + (faixa & 3) + 1) << (expoente - 2)) - 1;
+    }
+    
+    // Latência (ns) abaixo da qual estão 'percentil' das amostras (0 se não houver amostras; nunca acima do máximo)
+    long percentil(Operacao operacao, double percentil) {
+        long maximo = medidores[operacao.ordinal()].maximo.get();
+        AtomicLongArray faixas = medidores[operacao.ordinal()].faixas;
+        long[] copia = new long[FAIXAS];
+        long total = 0;
+        for(int i = 0; i < FAIXAS; i++) total += copia[i] = faixas.get(i);
+        if(total == 0) return 0;
+        long alvo = (long) Math.ceil(percentil * total), acumulado = 0;
+        for(int i = 0; i < FAIXAS; i++) {
+            acumulado += copia[i];
+            if(acumulado >= alvo) return Math.min(limiteFaixa(i), maximo);
+        }
+        return maximo;
+    }
+    
+    // Latência média das amostras em ns
+    double media(Operacao operacao) {
+        Medidor medidor = medidores[operacao.ordinal()];
+        long amostras = 0;
+        for(int i = 0; i < FAIXAS; i++) amostras += medidor.faixas.get(i);
+        return amostras == 0 ? 0 : (double) medidor.nanos.sum() / amostras;
+    }
+    
+    long chamadas(Operacao operacao) {
+        return medidores[operacao.ordinal()].chamadas.sum();
+    }
+    
+    long erros(Operacao operacao) {
+        return medidores[operacao.ordinal()].erros.sum();
+    }
+    
+    long erros(Erro erro) {
+        return errosPorTipo[erro.ordinal()].sum();
+    }
+    
+    // Zera todas as medidas
+    void zerar() {
+        for(Medidor medidor : medidores) {
+            medidor.chamadas.reset();
+            medidor.erros.reset();
+            medidor.nanos.reset();
+            medidor.maximo.reset();
+            for(int i = 0; i < FAIXAS; i++) medidor.faixas.set(i, 0);
+        }
+        for(LongAdder erros : errosPorTipo) erros.reset();
+    }
+    
+    // Valor de uma medida pelo nome do atributo JMX (ex.: BuscarP99Micros, ErrosCodigoDuplicado)
+    public Object getAttribute(String atributo) throws AttributeNotFoundException {
+        for(Erro erro : ERROS) {
+            if(erro.atributo.equals(atributo)) return erros(erro);
+        }
+        for(Operacao operacao : OPERACOES) {
+            if(!atributo.startsWith(operacao.atributo)) continue;
+            switch(atributo.substring(operacao.atributo.length())) {
+                case "Chamadas": return chamadas(operacao);
+                case "Erros": return erros(operacao);
+                case "MediaMicros": return media(operacao) / 1000;
+                case "P50Micros": return percentil(operacao, 0.50) / 1000.0;
+                case "P99Micros": return percentil(operacao, 0.99) / 1000.0;
+                case "P999Micros": return percentil(operacao, 0.999) / 1000.0;
+                case "MaximoMicros": return medidores[operacao.ordinal()].maximo.get() / 1000.0;
+            }
+        }
+        throw new AttributeNotFoundException(atributo);
+    }
+    
+    public AttributeList getAttributes(String[] atributos) {
+        AttributeList lista = new AttributeList();
+        for(String atributo : atributos) {
+            try {
+                lista.add(new Attribute(atributo, getAttribute(atributo)));
+            } catch(AttributeNotFoundException erro) {
+                // Atributo desconhecido fica fora da lista, como manda a interface
+            }
+        }
+        return lista;
+    }
+    
+    public void setAttribute(Attribute atributo) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Atributo somente leitura: " + atributo.getName());
+    }
+    
+    public AttributeList setAttributes(AttributeList atributos) {
+        return new AttributeList(); // Nenhum atributo é gravável
+    }
+    
+    public Object invoke(String operacao, Object[] parametros, String[] assinatura) throws ReflectionException {
+        if(operacao.equals("zerar") && (parametros == null || parametros.length == 0)) {
+            zerar();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(operacao));
+    }
+    
+    // Descreve os atributos (contadores são Long, latências em microssegundos são Double) e a operação zerar
+    public MBeanInfo getMBeanInfo() {
+        ArrayList<MBeanAttributeInfo> atributos = new ArrayList<>();
+        for(Operacao operacao : OPERACOES) {
+            for(String medida : MEDIDAS) {
+                boolean contador = medida.equals("Chamadas") || medida.equals("Erros");
+                atributos.add(new MBeanAttributeInfo(operacao.atributo + medida, contador ? "java.lang.Long" : "java.lang.Double",
+                        medida + " de " + operacao.nome, true, false, false));
+            }
+        }
+        for(Erro erro : ERROS) {
+            atributos.add(new MBeanAttributeInfo(erro.atributo, "java.lang.Long", "Erros de " + erro.nome, true, false, false));
+        }
+        MBeanOperationInfo[] operacoes = {new MBeanOperationInfo("zerar", "Zera todas as métricas", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)};
+        return new MBeanInfo(getClass().getName(), "Métricas das operações do estoque", atributos.toArray(new MBeanAttributeInfo[0]), null, operacoes, null);
+    }
+}
+
+// Servidor TCP de linhas só na interface local: uma thread por conexão (virtual quando a JVM oferece) sobre o núcleo thread-safe
+// Protocolo (UTF-8, um comando por linha, campos separados por ';' como na importação):
+//   PING | BUSCAR codigo | CADASTRAR codigo;nome;categoria;quantidade;preco | ENTRADA codigo;quantidade[;obs]
+//   SAIDA codigo;quantidade[;obs] | CONSULTAR tipo;termo[;limite] | ESTOQUEBAIXO limite | RESUMO | SAIR
+//   PEDIDO codigo;tipo;quantidade[;obs]|codigo;tipo;quantidade[;obs]|... (todas as linhas ou nenhuma)
+// Respostas: "OK [dados]", "ERRO motivo" ou "LISTA n" seguida de n linhas de produto
+class ServidorEstoque implements Closeable {
+    static final int PORTA_PADRAO = 7070;
+    static final int FILA_CONEXOES = 4096; // Conexões aguardando accept (rajadas de muitos clientes)
+    static final int PILHA_THREAD = 256 * 1024; // Pilha menor para as threads de plataforma (sem threads virtuais)
+    
+    SistemaEstoque sistema;
+    ServerSocket servidor;
+    ExecutorService conexoes; // Uma tarefa por conexão
+    boolean threadsVirtuais; // Executor de threads virtuais (Java 21+) ou de plataforma
+    Set<Socket> abertas = ConcurrentHashMap.newKeySet(); // Fechadas no desligamento para liberar as threads bloqueadas em leitura
+    
+    ServidorEstoque(SistemaEstoque sistema, int porta) throws IOException {
+        this.sistema = sistema;
+        servidor = new ServerSocket(porta, FILA_CONEXOES, InetAddress.getLoopbackAddress()); // Nunca exposto fora da máquina
+        conexoes = criarExecutor();
+        threadsVirtuais = !(conexoes instanceof ThreadPoolExecutor);
+    }
+    
+    // Uma thread virtual por tarefa quando disponível (procurada por reflexão: o código compila em Java 17); senão threads de plataforma
+    static ExecutorService criarExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException erro) {
+            AtomicInteger contador = new AtomicInteger();
+            return Executors.newCachedThreadPool(tarefa -> {
+                Thread thread = new Thread(null, tarefa, "conexao-" + contador.incrementAndGet(), PILHA_THREAD);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    // Porta efetivamente aberta (útil com porta 0)
+    int porta() {
+        return servidor.getLocalPort();
+    }
+    
+    // Aceita conexões até o servidor ser fechado
+    void aceitar() {
+        while(!servidor.isClosed()) {
+            Socket socket;
+            try {
+                socket = servidor.accept();
+            } catch(IOException erro) {
+                if(servidor.isClosed()) break;
+                continue; // Falha de uma conexão não derruba o servidor
+            }
+            try {
+                conexoes.execute(() -> atender(socket));
+            } catch(RejectedExecutionException erro) {
+                fecharSilenciosamente(socket); // Servidor sendo desligado
+            }
+        }
+    }
+    
+    // Atende uma conexão: lê comandos e responde; só esvazia o buffer quando não há mais comandos já recebidos
+    void atender(Socket socket) {
+        abertas.add(socket);
+        ImportadorCsv interpretador = new ImportadorCsv(sistema, ';'); // Separador de campos da conexão (não é thread-safe)
+        try(Socket conexao = socket;
+            BufferedReader entrada = new BufferedReader(new InputStreamReader(conexao.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter saida = new BufferedWriter(new OutputStreamWriter(conexao.getOutputStream(), StandardCharsets.UTF_8))) {
+            conexao.setTcpNoDelay(true);
+            String linha;
+            while((linha = entrada.readLine()) != null) {
+                String resposta;
+                try {
+                    resposta = processar(linha, interpretador);
+                } catch(UncheckedIOException erro) { // Diário ou arquivo em disco falhou: responde o erro e mantém a conexão
+                    resposta = "ERRO Falha de acesso ao disco: " + erro.getCause().getMessage();
+                }
+                if(resposta == null) break; // SAIR
+                saida.write(resposta);
+                saida.write('\n');
+                if(!entrada.ready()) saida.flush(); // Comandos enviados em sequência recebem respostas num único envio
+            }
+            saida.flush();
+        } catch(IOException erro) {
+            // Cliente desconectou: encerra só esta conexão
+        } finally {
+            abertas.remove(socket);
+        }
+    }
+    
+    // Executa um comando e devolve a resposta (null para encerrar a conexão)
+    String processar(String linha, ImportadorCsv interpretador) {
+        int espaco = linha.indexOf(' ');
+        String comando = (espaco < 0 ? linha : linha.substring(0, espaco)).trim().toUpperCase(Locale.ROOT);
+        String argumentos = espaco < 0 ? "" : linha.substring(espaco + 1).trim();
+        switch(comando) {
+            case "PING":
+                return "OK";
+            case "BUSCAR": {
+                Produto produto = sistema.buscar(argumentos);
+                if(produto == null) return "ERRO Produto não encontrado";
+                return Relatorio.produtoCsv(new StringBuilder("OK "), produto).toString();
+            }
+            case "CADASTRAR": {
+                String erro = interpretador.aplicarProduto(argumentos);
+                return erro == null ? "OK" : "ERRO " + erro;
+            }
+            case "ENTRADA":
+            case "SAIDA": {
+                if(!interpretador.dividir(argumentos, 2, 3)) return "ERRO Esperados 2 ou 3 campos: codigo;quantidade;observacao";
+                Produto produto = sistema.buscar(interpretador.campos.get(0));
+                if(produto == null) return "ERRO Produto não encontrado";
+                int quantidade = inteiro(interpretador.campos.get(1));
+                if(quantidade <= 0) return "ERRO Quantidade deve ser um número positivo";
+                String erro = interpretador.movimentar(produto, comando.equals("ENTRADA"), quantidade,
+                        interpretador.campos.size() > 2 ? interpretador.campos.get(2) : "");
+                return erro == null ? "OK" : "ERRO " + erro;
+            }
+            case "CONSULTAR": {
+                if(!interpretador.dividir(argumentos, 2, 3)) return "ERRO Esperados 2 ou 3 campos: tipo;termo;limite";
+                int tipo = inteiro(interpretador.campos.get(0));
+                int limite = interpretador.campos.size() > 2 ? inteiro(interpretador.campos.get(2)) : 0;
+                if(tipo < 1 || tipo > 3) return "ERRO Tipo deve ser 1 (código), 2 (nome) ou 3 (categoria)";
+                if(limite < 0) return "ERRO Limite deve ser um número não negativo";
+                return lista(sistema.pesquisar(tipo, interpretador.campos.get(1), limite));
+            }
+            case "PEDIDO": {
+                ArrayList<LinhaPedido> linhas = new ArrayList<>();
+                for(String texto : separarLinhas(argumentos)) {
+                    String erro = interpretador.lerLinhaPedido(texto, linhas);
+                    if(erro != null) return "ERRO Linha " + (linhas.size() + 1) + ": " + erro;
+                }
+                ArrayList<String> rejeicoes = sistema.registrarPedido(linhas);
+                return rejeicoes.isEmpty() ? "OK " + linhas.size() : "ERRO " + String.join(" | ", rejeicoes);
+            }
+            case "ESTOQUEBAIXO": {
+                int limite = inteiro(argumentos);
+                if(limite < 0) return "ERRO Limite deve ser um número não negativo";
+                return lista(sistema.produtosAbaixoDe(limite));
+            }
+            case "RESUMO":
+                return resumo(sistema);
+            case "SAIR":
+                return null;
+            default:
+                return "ERRO Comando desconhecido: " + comando;
+        }
+    }
+    
+    // Separa as linhas do pedido em '|' fora de aspas (as aspas ficam para a divisão dos campos)
+    static ArrayList<String> separarLinhas(String texto) {
+        ArrayList<String> linhas = new ArrayList<>();
+        boolean entreAspas = false;
+        int inicio = 0;
+        for(int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if(c == '"') entreAspas = !entreAspas;
+            else if(c == '|' && !entreAspas) {
+                linhas.add(texto.substring(inicio, i));
+                inicio = i + 1;
+            }
+        }
+        linhas.add(texto.substring(inicio));
+        return linhas;
+    }
+    
+    // Resposta com os totais do estoque e do histórico
+    static String resumo(SistemaEstoque sistema) {
+        return "OK produtos=" + sistema.produtos.size() + ";itens=" + sistema.quantidadeTotal.sum()
+                + ";valor=" + Relatorio.formatarCentavos(sistema.valorTotalCentavos.sum())
+                + ";entradas=" + sistema.movimentacoes.entradas.sum() + ";saidas=" + sistema.movimentacoes.saidas.sum();
+    }
+    
+    // Resposta com várias linhas de produto
+    static String lista(List<Produto> produtos) {
+        StringBuilder resposta = new StringBuilder(32 + produtos.size() * 64).append("LISTA ").append(produtos.size());
+        for(Produto produto : produtos) Relatorio.produtoCsv(resposta.append('\n'), produto);
+        return resposta.toString();
+    }
+    
+    // Número inteiro do argumento (-1 se inválido)
+    private static int inteiro(String texto) {
+        try {
+            return Integer.parseInt(texto.trim());
+        } catch(NumberFormatException erro) {
+            return -1;
+        }
+    }
+    
+    // Para de aceitar, derruba as conexões abertas e espera as threads terminarem
+    public void close() {
+        fecharSilenciosamente(servidor);
+        conexoes.shutdown();
+        for(Socket socket : abertas) fecharSilenciosamente(socket);
+        try {
+            conexoes.awaitTermination(5, TimeUnit.SECONDS);
+        } catch(InterruptedException erro) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    static void fecharSilenciosamente(Closeable recurso) {
+        try {
+            recurso.close();
+        } catch(IOException erro) {
+            // Já fechado ou conexão perdida
+        }
+    }
+}
+
+// Modo roteiro: executa um comando por linha (arquivo ou entrada padrão) sem menu nem perguntas, com uma resposta por linha
+// no formato do servidor ("OK ...", "LISTA n" + linhas CSV); erros trazem o número da linha: "ERRO 12 motivo"
+class Roteiro {
+    static final byte SIMPLES = 0, ENTRE_ASPAS = 1, ESCAPADO = 2; // Tipos de token (ESCAPADO = entre aspas com "" dentro)
+    
+    SistemaEstoque sistema;
+    ImportadorCsv interpretador; // Mesmas regras da importação e do servidor
+    boolean porExtenso; // Aceita números por extenso ("dois", "cem")
+    String linha; // Linha atual
+    long numeroLinha; // Linha atual no roteiro (começa em 1)
+    int tokens; // Tokens da linha atual
+    int[] inicios = new int[16], fins = new int[16]; // Posições de cada token na linha (sem as aspas; reutilizados)
+    byte[] tipos = new byte[16];
+    StringBuilder construcao = new StringBuilder(); // Token com aspas escapadas (reutilizado)
+    long comandos, erros; // Contadores do roteiro
+    
+    Roteiro(SistemaEstoque sistema, boolean porExtenso) {
+        this.sistema = sistema;
+        this.porExtenso = porExtenso;
+        interpretador = new ImportadorCsv(sistema, ';');
+    }
+    
+    // Executa todas as linhas até o fim da entrada ou SAIR; linhas em branco e começando por # são ignoradas
+    void executar(BufferedReader entrada, Writer saida) throws IOException {
+        long inicio = System.nanoTime();
+        String texto;
+        while((texto = entrada.readLine()) != null) {
+            numeroLinha++;
+            boolean valida = dividir(texto);
+            if(valida && (tokens == 0 || linha.charAt(inicios[0]) == '#' && tipos[0] == SIMPLES)) continue;
+            comandos++;
+            String resposta;
+            try {
+                resposta = valida ? processar() : erro("Aspas sem fechamento");
+            } catch(UncheckedIOException falha) { // Diário ou arquivo em disco falhou: conta como erro e segue
+                resposta = erro("Falha de acesso ao disco: " + falha.getCause().getMessage());
+            }
+            if(resposta == null) break; // SAIR
+            saida.write(resposta);
+            saida.write('\n');
+            if(!entrada.ready()) saida.flush(); // Quem envia linha a linha recebe cada resposta; arquivos saem em blocos
+        }
+        saida.write("FIM comandos=" + comandos + ";erros=" + erros + ";ms=" + (System.nanoTime() - inicio) / 1_000_000 + "\n");
+        saida.flush();
+    }
+    
+    // Executa o comando da linha já dividida e devolve a resposta (null para SAIR)
+    String processar() {
+        if(igual(0, "ENTRADA") || igual(0, "SAIDA") || igual(0, "SAÍDA")) {
+            if(tokens < 3 || tokens > 4) return erro("Esperado: " + texto(0) + " codigo quantidade [observacao]");
+            Produto produto = sistema.buscar(texto(1));
+            if(produto == null) return erro("Produto não encontrado");
+            long quantidade = inteiro(2);
+            if(quantidade <= 0 || quantidade > Integer.MAX_VALUE) return erro("Quantidade deve ser um número positivo");
+            String motivo = interpretador.movimentar(produto, igual(0, "ENTRADA"), (int) quantidade, tokens > 3 ? texto(3) : "");
+            return motivo == null ? "OK" : erro(motivo);
+        }
+        if(igual(0, "CADASTRAR")) {
+            if(tokens != 6) return erro("Esperado: CADASTRAR codigo nome categoria quantidade preco");
+            String codigo = texto(1), nome = texto(2), categoria = texto(3);
+            String motivo = ImportadorCsv.exigirTextos(codigo, nome, categoria);
+            if(motivo != null) return erro(motivo);
+            long quantidade = inteiro(4);
+            double preco = decimal(5);
+            if(quantidade == Long.MIN_VALUE || quantidade > Integer.MAX_VALUE || quantidade < Integer.MIN_VALUE || Double.isNaN(preco)) return erro("Número inválido");
+            motivo = interpretador.cadastrar(codigo, nome, categoria, (int) quantidade, preco);
+            return motivo == null ? "OK" : erro(motivo);
+        }
+        if(igual(0, "PEDIDO")) return pedido();
+        if(igual(0, "BUSCAR")) {
+            if(tokens != 2) return erro("Esperado: BUSCAR codigo");
+            Produto produto = sistema.buscar(texto(1));
+            if(produto == null) return erro("Produto não encontrado");
+            return Relatorio.produtoCsv(new StringBuilder("OK "), produto).toString();
+        }
+        if(igual(0, "CONSULTAR")) {
+            if(tokens < 3 || tokens > 4) return erro("Esperado: CONSULTAR tipo termo [limite]");
+            long tipo = inteiro(1), limite = tokens > 3 ? inteiro(3) : 0;
+            if(tipo < 1 || tipo > 3) return erro("Tipo deve ser 1 (código), 2 (nome) ou 3 (categoria)");
+            if(limite < 0 || limite > Integer.MAX_VALUE) return erro("Limite deve ser um número não negativo");
+            return ServidorEstoque.lista(sistema.pesquisar((int) tipo, texto(2), (int) limite));
+        }
+        if(igual(0, "ESTOQUEBAIXO")) {
+            long limite = tokens == 2 ? inteiro(1) : -1;
+            if(limite < 0 || limite > Integer.MAX_VALUE) return erro("Esperado: ESTOQUEBAIXO limite (número não negativo)");
+            return ServidorEstoque.lista(sistema.produtosAbaixoDe((int) limite));
+        }
+        if(igual(0, "ESTOQUEEM")) {
+            if(tokens < 2 || tokens > 3) return erro("Esperado: ESTOQUEEM codigo [dd/MM/yyyy]");
+            Produto produto = sistema.buscar(texto(1));
+            if(produto == null) return erro("Produto não encontrado");
+            long instante = Long.MAX_VALUE;
+            if(tokens > 2) {
+                try {
+                    instante = SistemaEstoque.limiteDoDia(LocalDate.parse(texto(2), SistemaEstoque.FORMATO_DIA), true);
+                } catch(DateTimeException erro) {
+                    return erro("Data inválida! Use dd/MM/yyyy");
+                }
+            }
+            return "OK " + sistema.quantidadeEm(produto, instante);
+        }
+        if(igual(0, "RESUMO")) return ServidorEstoque.resumo(sistema);
+        if(igual(0, "SAIR")) return null;
+        return erro("Comando desconhecido: " + texto(0));
+    }
+    
+    // PEDIDO codigo tipo quantidade [observacao] | codigo tipo quantidade [observacao] | ...
+    private String pedido() {
+        ArrayList<LinhaPedido> linhas = new ArrayList<>();
+        int inicio = 1;
+        for(int i = 1; i <= tokens; i++) {
+            if(i < tokens && !(igual(i, "|") && tipos[i] == SIMPLES)) continue;
+            int campos = i - inicio;
+            if(campos < 3 || campos > 4) return erro("Linha " + (linhas.size() + 1) + ": esperado codigo tipo quantidade [observacao]");
+            byte tipo = ImportadorCsv.tipoMovimentacao(texto(inicio + 1));
+            if(tipo == 0) return erro("Linha " + (linhas.size() + 1) + ": Tipo deve ser ENTRADA ou SAIDA");
+            long quantidade = inteiro(inicio + 2);
+            if(quantidade == Long.MIN_VALUE || quantidade > Integer.MAX_VALUE || quantidade < Integer.MIN_VALUE) {
+                return erro("Linha " + (linhas.size() + 1) + ": Número inválido");
+            }
+            String observacao = campos > 3 ? texto(inicio + 3) : "";
+            if(observacao.isEmpty()) observacao = tipo == Movimentacao.ENTRADA ? "Reposição de estoque" : "Saída de produtos";
+            linhas.add(new LinhaPedido(texto(inicio), tipo, (int) quantidade, observacao));
+            inicio = i + 1;
+        }
+        ArrayList<String> rejeicoes = sistema.registrarPedido(linhas);
+        return rejeicoes.isEmpty() ? "OK " + linhas.size() : erro(String.join(" | ", rejeicoes));
+    }
+    
+    // Resposta de erro com o número da linha
+    private String erro(String motivo) {
+        erros++;
+        return "ERRO " + numeroLinha + " " + motivo;
+    }
+    
+    // Divide a linha em tokens numa única passada, guardando só as posições: espaços separam, aspas duplas agrupam
+    // (com "" para uma aspa dentro); retorna false se alguma aspa não foi fechada
+    boolean dividir(String texto) {
+        linha = texto;
+        tokens = 0;
+        int tamanho = texto.length(), i = 0;
+        while(true) {
+            while(i < tamanho && texto.charAt(i) <= ' ') i++; // Espaços e tabulações
+            if(i == tamanho) return true;
+            if(texto.charAt(i) != '"') {
+                int inicio = i;
+                while(i < tamanho && texto.charAt(i) > ' ') i++;
+                guardar(inicio, i, SIMPLES);
+                continue;
+            }
+            int inicio = ++i;
+            byte tipo = ENTRE_ASPAS;
+            while(true) {
+                if(i == tamanho) return false;
+                if(texto.charAt(i) == '"') {
+                    if(i + 1 < tamanho && texto.charAt(i + 1) == '"') {
+                        tipo = ESCAPADO;
+                        i += 2;
+                        continue;
+                    }
+                    break;
+                }
+                i++;
+            }
+            guardar(inicio, i++, tipo);
+        }
+    }
+    
+    // Acrescenta a posição de um token (os vetores crescem só em linhas maiores que as anteriores)
+    private void guardar(int inicio, int fim, byte tipo) {
+        if(tokens == inicios.length) {
+            inicios = Arrays.copyOf(inicios, tokens * 2);
+            fins = Arrays.copyOf(fins, tokens * 2);
+            tipos = Arrays.copyOf(tipos, tokens * 2);
+        }
+        inicios[tokens] = inicio;
+        fins[tokens] = fim;
+        tipos[tokens++] = tipo;
+    }
+    
+    // Compara o token com a palavra (sem diferenciar maiúsculas) sem criar String
+    boolean igual(int indice, String palavra) {
+        int tamanho = fins[indice] - inicios[indice];
+        return tamanho == palavra.length() && linha.regionMatches(true, inicios[indice], palavra, 0, tamanho);
+    }
+    
+    // Texto do token, sem as aspas
+    String texto(int indice) {
+        if(tipos[indice] != ESCAPADO) return linha.substring(inicios[indice], fins[indice]);
+        construcao.setLength(0);
+        for(int i = inicios[indice]; i < fins[indice]; i++) {
+            construcao.append(linha.charAt(i));
+            if(linha.charAt(i) == '"') i++; // Pula a segunda aspa do par
+        }
+        return construcao.toString();
+    }
+    
+    // Número inteiro do token lido direto da linha (Long.MIN_VALUE se inválido)
+    long inteiro(int indice) {
+        int i = inicios[indice], fim = fins[indice];
+        boolean negativo = i < fim && linha.charAt(i) == '-';
+        if(negativo) i++;
+        if(i == fim || fim - i > 18) return porExtenso(indice); // Até 18 dígitos cabem em long sem estouro
+        long valor = 0;
+        for(; i < fim; i++) {
+            char c = linha.charAt(i);
+            if(c < '0' || c > '9') return porExtenso(indice);
+            valor = valor * 10 + (c - '0');
+        }
+        return negativo ? -valor : valor;
+    }
+    
+    // Número decimal do token, com vírgula ou ponto (NaN se inválido)
+    double decimal(int indice) {
+        String texto = texto(indice).replace(',', '.');
+        if(porExtenso) texto = SistemaEstoque.converterPalavra(texto);
+        try {
+            double valor = Double.parseDouble(texto);
+            return Double.isInfinite(valor) ? Double.NaN : valor;
+        } catch(NumberFormatException erro) {
+            return Double.NaN;
+        }
+    }
+    
+    // Número por extenso do token quando a opção está ligada (Long.MIN_VALUE se não for um)
+    private long porExtenso(int indice) {
+        if(!porExtenso) return Long.MIN_VALUE;
+        String numero = SistemaEstoque.NUMEROS_POR_EXTENSO.get(texto(indice).toLowerCase(Locale.ROOT));
+        return numero == null ? Long.MIN_VALUE : Long.parseLong(numero);
+    }
+}
+
+// Cliente do servidor de estoque: modo interativo (comandos do teclado) ou carga com muitas conexões simultâneas
+class ClienteEstoque {
+    static volatile long sumidouro;
+    
+    // Envia cada linha digitada e imprime a resposta
+    static void interativo(int porta) throws IOException {
+        try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), porta);
+            BufferedReader entrada = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer saida = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            System.out.println("✅ Conectado a " + socket.getRemoteSocketAddress() + " (SAIR encerra)");
+            BufferedReader teclado = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String comando;
+            while((comando = teclado.readLine()) != null) {
+                if(comando.trim().isEmpty()) continue;
+                saida.write(comando + "\n");
+                saida.flush();
+                String resposta = lerResposta(entrada);
+                if(resposta == null) break; // Servidor encerrou (SAIR)
+                System.out.println(resposta);
+            }
+        }
+    }
+    
+    // Lê uma resposta completa (a linha LISTA traz o número de linhas seguintes); null se a conexão fechou
+    static String lerResposta(BufferedReader entrada) throws IOException {
+        String linha = entrada.readLine();
+        if(linha == null || !linha.startsWith("LISTA ")) return linha;
+        StringBuilder resposta = new StringBuilder(linha);
+        int linhas = Integer.parseInt(linha.substring(6).trim());
+        for(int i = 0; i < linhas; i++) resposta.append('\n').append(entrada.readLine());
+        return resposta.toString();
+    }
+    
+    // Abre todas as conexões, espera todas estarem prontas e dispara as requisições; imprime vazão e percentis de ida e volta
+    // Retorna o número de requisições que falharam
+    static long carga(int porta, int conexoes, int requisicoes, String comando) throws InterruptedException {
+        ExecutorService clientes = ServidorEstoque.criarExecutor();
+        CountDownLatch prontas = new CountDownLatch(conexoes), largada = new CountDownLatch(1), concluidas = new CountDownLatch(conexoes);
+        long[][] latencias = new long[conexoes][];
+        AtomicLong falhas = new AtomicLong();
+        for(int c = 0; c < conexoes; c++) {
+            int indice = c;
+            clientes.execute(() -> {
+                long[] tempos = new long[requisicoes];
+                int feitas = 0;
+                boolean pronta = false;
+                try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), porta);
+                    BufferedReader entrada = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    Writer saida = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                    socket.setTcpNoDelay(true);
+                    pronta = true;
+                    prontas.countDown();
+                    largada.await();
+                    for(; feitas < requisicoes; feitas++) {
+                        long inicio = System.nanoTime();
+                        saida.write(comando + "\n");
+                        saida.flush();
+                        String resposta = lerResposta(entrada);
+                        tempos[feitas] = System.nanoTime() - inicio;
+                        if(resposta == null || resposta.startsWith("ERRO")) falhas.incrementAndGet();
+                    }
+                } catch(IOException | InterruptedException erro) {
+                    falhas.addAndGet(requisicoes - feitas);
+                    if(!pronta) prontas.countDown(); // Conexão recusada não trava a largada
+                } finally {
+                    latencias[indice] = Arrays.copyOf(tempos, feitas);
+                    concluidas.countDown();
+                }
+            });
+        }
+        prontas.await();
+        long inicio = System.nanoTime();
+        largada.countDown();
+        concluidas.await();
+        long duracao = System.nanoTime() - inicio;
+        clientes.shutdown();
+        
+        long[] todas = Arrays.stream(latencias).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.println("📊 " + conexoes + " conexões simultâneas, " + todas.length + " requisições '" + comando + "' em "
+                + duracao / 1_000_000 + " ms (" + String.format("%.0f", todas.length * 1e9 / Math.max(1, duracao)) + " req/s, "
+                + falhas.get() + " falhas)");
+        if(todas.length > 0) {
+            System.out.println(String.format("   Ida e volta (µs): p50 %.1f | p99 %.1f | p999 %.1f | máx %.1f", percentil(todas, 0.50) / 1000.0,
+                    percentil(todas, 0.99) / 1000.0, percentil(todas, 0.999) / 1000.0, todas[todas.length - 1] / 1000.0));
+        }
+        return falhas.get();
+    }
+    
+    // Percentil de amostras já ordenadas
+    static long percentil(long[] ordenadas, double percentil) {
+        return ordenadas[(int) Math.ceil(percentil * ordenadas.length) - 1];
+    }
+}
+
+// Motor particionado: produtos divididos entre N partições pelo hash do código; cada partição tem uma única thread
+// escritora alimentada por fila limitada, então alterações de um produto são aplicadas em ordem e sem disputa entre escritores
+class Particoes implements Closeable {
+    static final int CAPACIDADE_FILA = 4096; // Fila cheia bloqueia quem envia (contrapressão)
+    static final int LOTE = 256; // Comandos aplicados por vez; no diário, um fsync por lote
+    
+    // Alteração enviada à partição; quem enviou espera 'pronto'
+    static final class Comando {
+        final BooleanSupplier acao; // null = encerrar a partição
+        final Thread esperando = Thread.currentThread();
+        boolean resultado;
+        Throwable falha;
+        volatile boolean pronto;
+        
+        Comando(BooleanSupplier acao) {
+            this.acao = acao;
+        }
+        
+        // Libera quem está esperando
+        void concluir() {
+            pronto = true;
+            LockSupport.unpark(esperando);
+        }
+    }
+    
+    SistemaEstoque sistema;
+    ArrayBlockingQueue<Comando>[] filas;
+    Thread[] escritoras; // Thread dona de cada partição
+    volatile boolean fechado;
+    
+    @SuppressWarnings("unchecked")
+    Particoes(SistemaEstoque sistema, int quantidade) {
+        this.sistema = sistema;
+        filas = (ArrayBlockingQueue<Comando>[]) new ArrayBlockingQueue<?>[quantidade];
+        escritoras = new Thread[quantidade];
+        for(int i = 0; i < quantidade; i++) {
+            ArrayBlockingQueue<Comando> fila = filas[i] = new ArrayBlockingQueue<>(CAPACIDADE_FILA);
+            escritoras[i] = new Thread(() -> laco(fila), "particao-" + i);
+            escritoras[i].setDaemon(true);
+            escritoras[i].start();
+        }
+    }
+    
+    // Partição dona do código (mesma normalização do índice de códigos)
+    int particao(String codigo) {
+        return Math.floorMod(SistemaEstoque.normalizarCodigo(codigo).hashCode(), filas.length);
+    }
+    
+    // Se a thread atual é a escritora da partição do código (então aplica direto)
+    boolean naParticao(String codigo) {
+        return Thread.currentThread() == escritoras[particao(codigo)];
+    }
+    
+    // Partição cuja escritora é a thread atual (-1 = nenhuma)
+    int particaoAtual() {
+        for(int i = 0; i < escritoras.length; i++) if(escritoras[i] == Thread.currentThread()) return i;
+        return -1;
+    }
+    
+    // Envia a alteração à partição do código e espera ela ser aplicada (e gravada no diário)
+    boolean executar(String codigo, BooleanSupplier acao) {
+        return executar(particao(codigo), acao);
+    }
+    
+    // Envia a alteração à partição e espera ela ser aplicada (e gravada no diário)
+    boolean executar(int particao, BooleanSupplier acao) {
+        Comando comando = enviar(particao, acao);
+        boolean interrompido = false;
+        while(!comando.pronto) {
+            LockSupport.park(comando);
+            if(Thread.interrupted()) interrompido = true;
+        }
+        if(interrompido) Thread.currentThread().interrupt();
+        if(comando.falha instanceof RuntimeException) throw (RuntimeException) comando.falha;
+        if(comando.falha instanceof Error) throw (Error) comando.falha;
+        return comando.resultado;
+    }
+    
+    // Executa a ação na escritora atual com as escritoras das outras partições paradas, travadas em ordem crescente
+    // (duas coordenações nunca se esperam em ciclo); o que a ação grava no diário entra no lote da escritora atual
+    void comParticoesParadas(int[] outras, int proxima, Runnable acao) {
+        if(proxima == outras.length) {
+            acao.run();
+            return;
+        }
+        CountDownLatch parada = new CountDownLatch(1), liberada = new CountDownLatch(1);
+        enviar(outras[proxima], () -> {
+            parada.countDown();
+            aguardar(liberada); // Nada desta partição é aplicado enquanto a coordenação usa seus produtos
+            return true;
+        });
+        try {
+            aguardar(parada);
+            comParticoesParadas(outras, proxima + 1, acao);
+        } finally {
+            liberada.countDown();
+        }
+    }
+    
+    // Espera a contagem chegar a zero sem abandonar a espera por interrupção (restaurada no fim)
+    static void aguardar(CountDownLatch contagem) {
+        boolean interrompido = false;
+        while(true) {
+            try {
+                contagem.await();
+                break;
+            } catch(InterruptedException erro) {
+                interrompido = true;
+            }
+        }
+        if(interrompido) Thread.currentThread().interrupt();
+    }
+    
+    // Coloca a alteração na fila da partição sem esperar sua aplicação
+    private Comando enviar(int particao, BooleanSupplier acao) {
+        if(fechado) throw new IllegalStateException("Partições encerradas");
+        ArrayBlockingQueue<Comando> fila = filas[particao];
+        Comando comando = new Comando(acao);
+        boolean interrompido = false;
+        while(true) {
+            try {
+                fila.put(comando);
+                break;
+            } catch(InterruptedException erro) {
+                interrompido = true; // Alteração não pode ser abandonada no meio: tenta de novo e restaura a interrupção
+            }
+        }
+        if(interrompido) Thread.currentThread().interrupt();
+        if(fechado && fila.remove(comando)) throw new IllegalStateException("Partições encerradas"); // Chegou depois do encerramento
+        return comando;
+    }
+    
+    // Laço da escritora: retira lotes da fila, aplica em ordem e só libera os remetentes depois do fsync do lote
+    private void laco(ArrayBlockingQueue<Comando> fila) {
+        ArrayList<Comando> lote = new ArrayList<>(LOTE);
+        boolean encerrar = false;
+        while(!encerrar) {
+            try {
+                lote.add(fila.take());
+            } catch(InterruptedException erro) {
+                continue; // Só o comando de encerramento termina o laço
+            }
+            fila.drainTo(lote, LOTE - 1);
+            Diario diario = sistema.diario;
+            if(diario != null) diario.iniciarLote();
+            for(Comando comando : lote) {
+                if(comando.acao == null) {
+                    encerrar = true;
+                    continue;
+                }
+                try {
+                    comando.resultado = comando.acao.getAsBoolean();
+                } catch(Throwable erro) {
+                    comando.falha = erro;
+                }
+            }
+            try {
+                if(diario != null) diario.concluirLote();
+            } catch(IOException erro) {
+                for(Comando comando : lote) if(comando.falha == null) comando.falha = new UncheckedIOException(erro);
+            }
+            for(Comando comando : lote) comando.concluir();
+            lote.clear();
+        }
+    }
+    
+    // Aplica o que já está nas filas, encerra as escritoras e recusa o que chegar depois
+    public void close() {
+        if(fechado) return;
+        fechado = true;
+        for(ArrayBlockingQueue<Comando> fila : filas) {
+            try {
+                fila.put(new Comando(null));
+            } catch(InterruptedException erro) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for(Thread escritora : escritoras) {
+            try {
+                escritora.join();
+            } catch(InterruptedException erro) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for(ArrayBlockingQueue<Comando> fila : filas) { // Enviados entre a verificação de 'fechado' e o encerramento
+            Comando comando;
+            while((comando = fila.poll()) != null) {
+                comando.falha = new IllegalStateException("Partições encerradas");
+                comando.concluir();
+            }
+        }
+    }
+}
+
+// Escreve relatórios (texto ou CSV) por um buffer reutilizado, na tela com paginação opcional ou direto em arquivo
+class Relatorio implements Closeable {
+    static final String SEPARADOR_PRODUTOS = "-".repeat(100); // Separadores montados uma única vez
+    static final String SEPARADOR_MOVIMENTACOES = "-".repeat(120);
+    static final int LIMITE_BUFFER = 64 * 1024; // Caracteres acumulados antes de escrever no destino
+    static final DecimalFormatSymbols SIMBOLOS = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+    static final char SEPARADOR_DECIMAL = SIMBOLOS.getDecimalSeparator(); // Mesmo separador que o String.format usaria
+    
+    Appendable destino; // Tela (System.out) ou arquivo
+    boolean fecharDestino; // Arquivo é fechado ao concluir; a tela não
+    boolean csv; // Só linhas de dados, campos separados por ';'
+    int linhasPorPagina; // 0 = sem paginação (sempre 0 em arquivo)
+    Scanner scanner; // Lê a resposta da paginação
+    StringBuilder buffer = new StringBuilder(LIMITE_BUFFER + 1024);
+    int linhasNaPagina; // Linhas de dados já exibidas na página atual
+    boolean interrompido; // Usuário parou a paginação
+    long esperaNs; // Tempo parado esperando o usuário na paginação (fora das métricas de latência)
+    long segundoEmCache = Long.MIN_VALUE; // Data formatada do último segundo usado (movimentações próximas repetem)
+    String dataEmCache;
+    
+    Relatorio(Appendable destino, boolean fecharDestino, boolean csv, int linhasPorPagina, Scanner scanner) {
+        this.destino = destino;
+        this.fecharDestino = fecharDestino;
+        this.csv = csv;
+        this.linhasPorPagina = linhasPorPagina;
+        this.scanner = scanner;
+    }
+    
+    // Relatório em texto na tela
+    static Relatorio tela(int linhasPorPagina, Scanner scanner) {
+        return new Relatorio(System.out, false, false, linhasPorPagina, scanner);
+    }
+    
+    // Relatório gravado em arquivo UTF-8 (texto igual ao da tela ou CSV)
+    static Relatorio arquivo(Path caminho, boolean csv) throws IOException {
+        return new Relatorio(Files.newBufferedWriter(caminho, StandardCharsets.UTF_8), true, csv, 0, null);
+    }
+    
+    // Linha de cabeçalho, separador ou resumo (não entra no CSV)
+    void texto(String linha) {
+        if(csv) return;
+        buffer.append(linha).append('\n');
+        descarregarSeCheio();
+    }
+    
+    // Primeira linha do CSV com os nomes das colunas (não entra no texto)
+    void cabecalhoCsv(String colunas) {
+        if(!csv) return;
+        buffer.append(colunas).append('\n');
+    }
+    
+    // Linha de produto; retorna false se o usuário interrompeu a paginação
+    boolean produto(Produto produto) {
+        if(!proximaLinha()) return false;
+        if(csv) {
+            produtoCsv(buffer, produto);
+        } else {
+            formatarProduto(buffer, produto);
+        }
+        buffer.append('\n');
+        descarregarSeCheio();
+        return true;
+    }
+    
+    // Linhas de uma categoria (totais, fluxo e maiores estoques); retorna false se a paginação foi interrompida
+    boolean categoria(ResumoCategoria resumo, ArrayList<Produto> maiores) {
+        if(!proximaLinha()) return false;
+        if(csv) {
+            campoCsv(resumo.nome).append(';').append(resumo.produtos.sum()).append(';').append(resumo.unidades.sum()).append(';');
+            centavos(buffer, resumo.valorCentavos.sum()).append(';').append(resumo.emFalta.sum()).append(';');
+            buffer.append(resumo.entradas.sum()).append(';').append(resumo.unidadesEntrada.sum()).append(';');
+            buffer.append(resumo.saidas.sum()).append(';').append(resumo.unidadesSaida.sum()).append(';');
+            StringBuilder codigos = new StringBuilder();
+            for(Produto produto : maiores) codigos.append(codigos.length() == 0 ? "" : "|").append(produto.codigo);
+            campoCsv(codigos.toString()).append('\n');
+        } else {
+            buffer.append("Categoria: ").append(resumo.nome).append(" | Produtos: ").append(resumo.produtos.sum())
+                  .append(" | Unidades: ").append(resumo.unidades.sum()).append(" | Valor: R$");
+            centavos(buffer, resumo.valorCentavos.sum()).append(" | Em falta: ").append(resumo.emFalta.sum()).append('\n');
+            buffer.append("   Entradas: ").append(resumo.entradas.sum()).append(" (").append(resumo.unidadesEntrada.sum())
+                  .append(" un.) | Saídas: ").append(resumo.saidas.sum()).append(" (").append(resumo.unidadesSaida.sum()).append(" un.)\n");
+            buffer.append("   Maiores estoques:");
+            for(int i = 0; i < maiores.size(); i++) {
+                buffer.append(i == 0 ? " " : ", ").append(maiores.get(i).codigo).append(" (").append(maiores.get(i).quantidade()).append(')');
+            }
+            buffer.append('\n');
+        }
+        descarregarSeCheio();
+        return true;
+    }
+    
+    // Linha da previsão de ruptura (consumo lido sob a trava do produto); retorna false se a paginação foi interrompida
+    boolean previsao(Produto produto, int quantidade, double taxa, long saidas7, long saidas28, double dias) {
+        if(!proximaLinha()) return false;
+        if(csv) {
+            campoCsv(produto.codigo).append(';');
+            campoCsv(produto.nome).append(';').append(quantidade).append(';');
+            centavos(buffer, Math.round(taxa * 100)).append(';').append(saidas7).append(';').append(saidas28).append(';');
+            if(dias < 1e9) centavos(buffer, Math.round(dias * 100));
+        } else {
+            buffer.append("Código: ").append(produto.codigo).append(" | Nome: ").append(produto.nome).append(" | Estoque: ").append(quantidade)
+                  .append(" | Consumo: ");
+            centavos(buffer, Math.round(taxa * 100)).append("/dia | Saídas 7 dias: ").append(saidas7).append(" | 28 dias: ").append(saidas28)
+                  .append(" | Zera em: ");
+            if(dias < 1e9) centavos(buffer, Math.round(dias * 100)).append(" dias");
+            else buffer.append("sem previsão");
+        }
+        buffer.append('\n');
+        descarregarSeCheio();
+        return true;
+    }
+    
+    // Linha de movimentação lida direto das colunas do histórico; retorna false se a paginação foi interrompida
+    boolean movimentacao(HistoricoMovimentacoes historico, int posicao) {
+        if(!proximaLinha()) return false;
+        movimentacao(historico.instante(posicao), historico.catalogo.get(historico.produtoId(posicao)).codigo, historico.tipo(posicao),
+                historico.quantidade(posicao), historico.observacao(posicao));
+        return true;
+    }
+    
+    // Linha de movimentação já materializada (consultas paginadas); retorna false se o usuário interrompeu a paginação
+    boolean movimentacao(Movimentacao movimentacao) {
+        if(!proximaLinha()) return false;
+        movimentacao(movimentacao.instante, movimentacao.produto, movimentacao.tipo, movimentacao.quantidade, movimentacao.observacao);
+        return true;
+    }
+    
+    // Escreve a linha de movimentação no formato do relatório
+    private void movimentacao(long instante, String codigo, byte tipo, int quantidade, String observacao) {
+        if(csv) {
+            buffer.append(data(instante)).append(';');
+            campoCsv(codigo).append(';').append(Movimentacao.nomeTipo(tipo)).append(';').append(quantidade).append(';');
+            campoCsv(observacao);
+        } else {
+            formatarMovimentacao(buffer, data(instante), codigo, tipo, quantidade, observacao);
+        }
+        buffer.append('\n');
+        descarregarSeCheio();
+    }
+    
+    // Data formatada, reaproveitando a do último segundo
+    private String data(long instante) {
+        long segundo = Math.floorDiv(instante, 1000);
+        if(segundo != segundoEmCache) {
+            segundoEmCache = segundo;
+            dataEmCache = Movimentacao.formatarData(instante);
+        }
+        return dataEmCache;
+    }
+    
+    // Controla a paginação antes de cada linha de dados
+    private boolean proximaLinha() {
+        if(interrompido) return false;
+        if(linhasPorPagina > 0 && linhasNaPagina == linhasPorPagina) {
+            descarregar();
+            System.out.print("-- Enter = próxima página, 0 = parar -- ");
+            long inicioEspera = System.nanoTime();
+            boolean parar = scanner.hasNextLine() && scanner.nextLine().trim().equals("0");
+            esperaNs += System.nanoTime() - inicioEspera;
+            if(parar) {
+                interrompido = true;
+                return false;
+            }
+            linhasNaPagina = 0;
+        }
+        linhasNaPagina++;
+        return true;
+    }
+    
+    // Campo CSV entre aspas quando contém separador, aspas ou quebra de linha
+    private StringBuilder campoCsv(String valor) {
+        return campoCsv(buffer, valor);
+    }
+    
+    // Campo CSV acrescentado a qualquer destino (aspas só quando necessário)
+    static StringBuilder campoCsv(StringBuilder destino, String valor) {
+        boolean aspas = false;
+        for(int i = 0; i < valor.length() && !aspas; i++) {
+            char c = valor.charAt(i);
+            aspas = c == ';' || c == '"' || c == '\n' || c == '\r';
+        }
+        if(!aspas) return destino.append(valor);
+        destino.append('"');
+        for(int i = 0; i < valor.length(); i++) {
+            char c = valor.charAt(i);
+            if(c == '"') destino.append('"');
+            destino.append(c);
+        }
+        return destino.append('"');
+    }
+    
+    // Produto como linha CSV (mesmo formato aceito pela importação)
+    static StringBuilder produtoCsv(StringBuilder destino, Produto produto) {
+        campoCsv(destino, produto.codigo).append(';');
+        campoCsv(destino, produto.nome).append(';');
+        campoCsv(destino, produto.categoria()).append(';');
+        destino.append(produto.quantidade()).append(';');
+        return centavos(destino, produto.precoCentavos());
+    }
+    
+    // Produto no formato de exibição (mesmo texto do antigo toString)
+    static StringBuilder formatarProduto(StringBuilder destino, Produto produto) {
+        destino.append("Código: ").append(produto.codigo).append(" | Nome: ").append(produto.nome)
+               .append(" | Categoria: ").append(produto.categoria()).append(" | Quantidade: ").append(produto.quantidade())
+               .append(" | Preço: R$");
+        return centavos(destino, produto.precoCentavos());
+    }
+    
+    // Movimentação no formato de exibição
+    static StringBuilder formatarMovimentacao(StringBuilder destino, String data, String codigo, byte tipo, int quantidade, String observacao) {
+        return destino.append('[').append(data).append("] ").append(Movimentacao.nomeTipo(tipo)).append(" de ").append(quantidade)
+                .append(" un. (Produto: ").append(codigo).append(") - ").append(observacao);
+    }
+    
+    // Centavos inteiros com duas casas decimais
+    static StringBuilder centavos(StringBuilder destino, long centavos) {
+        if(centavos < 0) {
+            destino.append('-');
+            centavos = -centavos;
+        }
+        long resto = centavos % 100;
+        return destino.append(centavos / 100).append(SEPARADOR_DECIMAL).append((char) ('0' + resto / 10)).append((char) ('0' + resto % 10));
+    }
+    
+    // Centavos como texto (para linhas de resumo)
+    static String formatarCentavos(long centavos) {
+        return centavos(new StringBuilder(24), centavos).toString();
+    }
+    
+    // Escreve no destino se o buffer passou do limite
+    private void descarregarSeCheio() {
+        if(buffer.length() >= LIMITE_BUFFER) descarregar();
+    }
+    
+    // Escreve o buffer no destino
+    void descarregar() {
+        if(buffer.length() == 0) return;
+        try {
+            destino.append(buffer);
+        } catch(IOException erro) {
+            throw new UncheckedIOException(erro);
+        }
+        buffer.setLength(0);
+    }
+    
+    // Escreve o restante e fecha o arquivo (a tela continua aberta)
+    public void close() {
+        descarregar();
+        if(!fecharDestino) return;
+        try {
+            ((Closeable) destino).close();
+        } catch(IOException erro) {
+            throw new UncheckedIOException(erro);
+        }
+    }
+}
+
+// Classe principal do sistema de estoque
+public class SistemaEstoque {
+    CatalogoProdutos produtos = new CatalogoProdutos(); // Produtos em colunas primitivas (Produto é a vista de uma linha)
+    HistoricoMovimentacoes movimentacoes = new HistoricoMovimentacoes(produtos); // Histórico de movimentações (várias threads acrescentam)
+    ConcurrentHashMap<String, Produto> indiceCodigos = new ConcurrentHashMap<>(); // Índice de produtos por código normalizado
+    ReentrantReadWriteLock travaCatalogo = new ReentrantReadWriteLock(); // Cadastro escreve, pesquisas leem
+    LongAdder quantidadeTotal = new LongAdder(); // Soma das quantidades em estoque (mantida a cada alteração)
+    LongAdder valorTotalCentavos = new LongAdder(); // Soma de preço × quantidade em centavos
+    ConcurrentSkipListSet<Long> indiceQuantidades = new ConcurrentSkipListSet<>(); // Produtos ordenados por quantidade (quantidade << 32 | id)
+    CopyOnWriteArrayList<OuvinteReposicao> ouvintesReposicao = new CopyOnWriteArrayList<>(); // Inscritos nos alertas de reposição
+    IndiceNGramas buscaCodigo = new IndiceNGramas(); // Busca por trecho do código
+    IndiceNGramas buscaNome = new IndiceNGramas(); // Busca por trecho do nome
+    IndiceNGramas buscaCategoria = new IndiceNGramas(); // Busca por trecho da categoria (id de busca = id da categoria)
+    ArrayList<ListaIds> produtosPorCategoria = new ArrayList<>(); // Ids dos produtos de cada categoria, em ordem de cadastro
+    ListaConcorrente<ResumoCategoria> resumoCategorias = new ListaConcorrente<>(); // Totais de cada categoria (posição = id da categoria)
+    Diario diario; // Diário em disco (null = sem persistência)
+    ScheduledExecutorService arquivador; // Arquivamento periódico das movimentações antigas (null = desligado)
+    long retencaoMs; // Idade a partir da qual as movimentações vão para os segmentos
+    int linhasPorPagina; // Linhas por página nos relatórios em tela (0 = sem paginação)
+    int maximoResultados; // Resultados por consulta no menu (0 = todos)
+    boolean porExtenso; // Aceita números por extenso ("dois", "cem") no menu e no roteiro
+    Metricas metricas = new Metricas(); // Chamadas, erros e latências das operações
+    Particoes particoes; // Motor particionado (null = threads chamadoras alteram direto, com trava por produto)
+    static final int MAXIMO_LINHAS_PEDIDO = 1000; // Linhas por pedido (uma trava aninhada por produto)
+    PontosControle pontosControle = new PontosControle(this); // Fotos periódicas das quantidades (estoque em data passada)
+    static final Map<String, String> NUMEROS_POR_EXTENSO = Map.ofEntries(Map.entry("zero", "0"), Map.entry("um", "1"), Map.entry("dois", "2"),
+            Map.entry("tres", "3"), Map.entry("três", "3"), Map.entry("quatro", "4"), Map.entry("cinco", "5"), Map.entry("seis", "6"),
+            Map.entry("sete", "7"), Map.entry("oito", "8"), Map.entry("nove", "9"), Map.entry("dez", "10"), Map.entry("cem", "100"),
+            Map.entry("mil", "1000")); // Palavras aceitas com --por-extenso
+    static final DateTimeFormatter FORMATO_DIA = DateTimeFormatter.ofPattern("dd/MM/uuuu").withResolverStyle(ResolverStyle.STRICT); // Datas digitadas
+    Scanner scanner = new Scanner(System.in); // Scanner para entrada de dados
+    
+    // Método principal que executa o sistema
+    // Opções: --diario=arquivo (padrão estoque.diario), --sem-diario,
+    //         --sincronizacao=sempre|grupo|periodica, --grupo=N, --intervalo=ms
+    // Carga em massa (sem menu): --importar-produtos=arquivo.csv, --importar-movimentacoes=arquivo.csv,
+    //         --separador=; (padrão)
+    // Exibição: --pagina=N (linhas por página nos relatórios; padrão 0 = sem paginação),
+    //         --resultados=N (máximo de produtos por consulta no menu; padrão 0 = todos)
+    // Desempenho (sem menu nem diário): --desempenho=1000,100000 (tamanhos dos catálogos sintéticos; 10000000 pede -Xmx alto),
+    //         --aquecimento=2, --iteracoes=3, --duracao=1000 (ms por rodada), --semente=42, --resultado=arquivo.csv
+    // Simulação (sem menu nem diário): --simulacao=100000 (produtos), --threads=1,2,4, --operacoes=1000000,
+    //         --mistura=40,10,20,20,10 (pesos de buscar, consultar, entrada, saída, relatório), --zipf=0.99,
+    //         --particoes=N (motor particionado), --semente=42, --resultado=arquivo.csv
+    // Servidor: --servidor=7070 (TCP só em 127.0.0.1, usa o diário como o menu; Ctrl+C encerra)
+    // Arquivo (menu, servidor e roteiro): --arquivar=diretorio (segmentos comprimidos com as movimentações antigas), --reter-dias=30
+    // (idade mínima para arquivar; só blocos completos de 16384 movimentações saem da memória e, com o diário, não voltam
+    // a ela na próxima execução)
+    // Motor particionado (menu e servidor): --particoes=N (alterações aplicadas por N threads escritoras; padrão 0 = desligado)
+    // Cliente: --cliente=7070 (comandos do teclado) ou com --conexoes=N --requisicoes=M --comando=PING (teste de carga)
+    // Roteiro (sem menu): --roteiro=arquivo (vazio ou - = entrada padrão), um comando por linha: ENTRADA 001 50 "nota"
+    // Números por extenso ("dois", "cem") no menu e no roteiro: --por-extenso (desligado por padrão)
+    public static void main(String[] args) {
+        if(opcao(args, "desempenho", null) != null) {
+            desempenho(args);
+            return;
+        }
+        if(opcao(args, "simulacao", null) != null) {
+            simulacao(args);
+            return;
+        }
+        if(opcao(args, "cliente", null) != null) {
+            cliente(args);
+            return;
+        }
+        SistemaEstoque sistema = new SistemaEstoque(); // Cria instância
+        try {
+            sistema.linhasPorPagina = Math.max(0, Integer.parseInt(opcao(args, "pagina", "0")));
+        } catch(NumberFormatException erro) {
+            System.out.println("❌ Erro: --pagina deve ser um número!");
+            return;
+        }
+        try {
+            sistema.maximoResultados = Math.max(0, Integer.parseInt(opcao(args, "resultados", "0")));
+        } catch(NumberFormatException erro) {
+            System.out.println("❌ Erro: --resultados deve ser um número!");
+            return;
+        }
+        sistema.porExtenso = opcao(args, "por-extenso", null) != null;
+        if(!sistema.configurarArquivo(args)) return;
+        if(!sistema.configurarDiario(args)) return;
+        if(!sistema.iniciarArquivamento()) {
+            sistema.fecharDiario();
+            return;
+        }
+        if(opcao(args, "importar-produtos", null) != null || opcao(args, "importar-movimentacoes", null) != null) {
+            sistema.importar(args); // Modo não interativo
+            sistema.fecharDiario();
+            return;
+        }
+        try {
+            int particoes = Integer.parseInt(opcao(args, "particoes", "0"));
+            if(particoes > 0) sistema.particoes = new Particoes(sistema, particoes); // Depois da leitura do diário
+        } catch(NumberFormatException erro) {
+            System.out.println("❌ Erro: --particoes deve ser um número!");
+            sistema.fecharDiario();
+            return;
+        }
+        if(opcao(args, "roteiro", null) != null) {
+            sistema.roteiro(args); // Comandos sem menu nem perguntas
+            return;
+        }
+        sistema.publicarMetricas(); // jconsole/VisualVM enxergam as métricas enquanto o menu roda
+        if(opcao(args, "servidor", null) != null) {
+            sistema.servidor(args); // Atende pela rede em vez do menu
+            return;
+        }
+        sistema.menu(); // Inicia o menu
+    }
+    
+    // Importa os arquivos CSV indicados; linhas recusadas vão para <arquivo>.rejeitadas
+    void importar(String[] args) {
+        String separador = opcao(args, "separador", ";");
+        ImportadorCsv importador = new ImportadorCsv(this, separador.isEmpty() ? ';' : separador.charAt(0));
+        String[] tipos = {"importar-produtos", "importar-movimentacoes"}; // Produtos primeiro: movimentações dependem deles
+        for(String tipo : tipos) {
+            String caminho = opcao(args, tipo, null);
+            if(caminho == null) continue;
+            Path arquivo = Paths.get(caminho);
+            Path rejeicoes = Paths.get(caminho + ".rejeitadas");
+            long inicio = System.nanoTime();
+            try {
+                if(tipo.equals("importar-produtos")) importador.importarProdutos(arquivo, rejeicoes);
+                else importador.importarMovimentacoes(arquivo, rejeicoes);
+            } catch(IOException | UncheckedIOException erro) {
+                System.out.println("❌ Erro ao importar " + caminho + ": " + erro.getMessage());
+                return;
+            }
+            System.out.println("✅ " + caminho + ": " + importador.aceitas + " linhas importadas, " + importador.rejeitadas
+                    + " rejeitadas em " + (System.nanoTime() - inicio) / 1_000_000 + " ms");
+            if(importador.rejeitadas > 0) System.out.println("ℹ Linhas rejeitadas em " + rejeicoes);
+        }
+    }
+    
+    // Executa o roteiro do arquivo indicado (vazio ou "-" = entrada padrão), respondendo na saída padrão, e fecha o diário
+    void roteiro(String[] args) {
+        String caminho = opcao(args, "roteiro", "");
+        Writer saida = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+        try(BufferedReader entrada = caminho.isEmpty() || caminho.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+                : Files.newBufferedReader(Paths.get(caminho), StandardCharsets.UTF_8)) {
+            new Roteiro(this, porExtenso).executar(entrada, saida);
+        } catch(IOException | UncheckedIOException | InvalidPathException erro) {
+            System.out.println("❌ Erro no roteiro: " + erro.getMessage());
+        } finally {
+            fecharDiario();
+        }
+    }
+    
+    // Mede as operações principais em catálogos sintéticos conforme as opções
+    static void desempenho(String[] args) {
+        Desempenho desempenho;
+        int[] tamanhos;
+        try {
+            String lista = opcao(args, "desempenho", "");
+            tamanhos = Arrays.stream((lista.isEmpty() ? "1000,100000" : lista).split(",")).mapToInt(t -> Integer.parseInt(t.trim())).toArray();
+            desempenho = new Desempenho(Integer.parseInt(opcao(args, "aquecimento", "2")), Integer.parseInt(opcao(args, "iteracoes", "3")),
+                    Long.parseLong(opcao(args, "duracao", "1000")), Long.parseLong(opcao(args, "semente", "42")));
+        } catch(NumberFormatException erro) {
+            System.out.println("❌ Erro: Opções de desempenho devem ser números!");
+            return;
+        }
+        if(Arrays.stream(tamanhos).anyMatch(t -> t <= 0) || desempenho.iteracoes <= 0 || desempenho.aquecimentos < 0 || desempenho.duracaoNs <= 0) {
+            System.out.println("❌ Erro: Tamanhos, iterações e duração devem ser positivos!");
+            return;
+        }
+        String arquivo = opcao(args, "resultado", null);
+        try {
+            if(arquivo != null) desempenho.resultado = Files.newBufferedWriter(Paths.get(arquivo), StandardCharsets.UTF_8);
+            desempenho.executar(tamanhos);
+            if(desempenho.resultado != null) {
+                desempenho.resultado.close();
+                System.out.println("\n✅ Resultados gravados em " + arquivo);
+            }
+        } catch(IOException | InvalidPathException erro) {
+            System.out.println("❌ Erro ao gravar resultados: " + erro.getMessage());
+        }
+    }
+    
+    // Simula um dia de tráfego em memória e mede latências conforme as opções
+    static void simulacao(String[] args) {
+        Simulacao simulacao;
+        int[] threads;
+        try {
+            String produtos = opcao(args, "simulacao", "");
+            threads = Arrays.stream(opcao(args, "threads", "1,2,4").split(",")).mapToInt(t -> Integer.parseInt(t.trim())).toArray();
+            int[] mistura = Arrays.stream(opcao(args, "mistura", "40,10,20,20,10").split(",")).mapToInt(t -> Integer.parseInt(t.trim())).toArray();
+            double expoente = Double.parseDouble(opcao(args, "zipf", "0.99"));
+            if(mistura.length != Simulacao.OPERACOES.length || Arrays.stream(mistura).anyMatch(p -> p < 0) || Arrays.stream(mistura).sum() <= 0) {
+                System.out.println("❌ Erro: --mistura precisa de " + Simulacao.OPERACOES.length + " pesos não negativos (" + String.join(", ", Simulacao.OPERACOES) + ")!");
+                return;
+            }
+            simulacao = new Simulacao(Integer.parseInt(produtos.isEmpty() ? "100000" : produtos), Integer.parseInt(opcao(args, "operacoes", "1000000")),
+                    mistura, expoente, Long.parseLong(opcao(args, "semente", "42")));
+            simulacao.particoes = Math.max(0, Integer.parseInt(opcao(args, "particoes", "0")));
+            if(simulacao.produtos <= 0 || simulacao.operacoes <= 0 || Arrays.stream(threads).anyMatch(t -> t <= 0) || !(expoente >= 0)) {
+                System.out.println("❌ Erro: Produtos, operações, threads e expoente devem ser positivos!");
+                return;
+            }
+        } catch(NumberFormatException erro) {
+            System.out.println("❌ Erro: Opções de simulação devem ser números!");
+            return;
+        }
+        String arquivo = opcao(args, "resultado", null);
+        try {
+            if(arquivo != null) simulacao.resultado = Files.newBufferedWriter(Paths.get(arquivo), StandardCharsets.UTF_8);
+            simulacao.executar(threads);
+            if(simulacao.resultado != null) {
+                simulacao.resultado.close();
+                System.out.println("\n✅ Resultados gravados em " + arquivo);
+            }
+        } catch(IOException | InvalidPathException erro) {
+            System.out.println("❌ Erro ao gravar resultados: " + erro.getMessage());
+        } catch(InterruptedException erro) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Atende clientes TCP na interface local até o processo ser encerrado; o diário é fechado no desligamento
+    void servidor(String[] args) {
+        String porta = opcao(args, "servidor", "");
+        ServidorEstoque servidor;
+        try {
+            servidor = new ServidorEstoque(this, porta.isEmpty() ? ServidorEstoque.PORTA_PADRAO : Integer.parseInt(porta));
+        } catch(NumberFormatException erro) {
+            System.out.println("❌ Erro: --servidor deve ser um número de porta!");
+            fecharDiario();
+            return;
+        } catch(IOException | IllegalArgumentException erro) {
+            System.out.println("❌ Erro ao abrir o servidor: " + erro.getMessage());
+            fecharDiario();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            servidor.close(); // Termina as conexões antes de fechar o diário
+            fecharDiario();
+            System.out.println("\nServidor encerrado.");
+        }));
+        System.out.println("✅ Servidor ouvindo em " + servidor.servidor.getLocalSocketAddress() + " ("
+                + (servidor.threadsVirtuais ? "threads virtuais" : "threads de plataforma: esta JVM não tem threads virtuais") + ")");
+        servidor.aceitar();
+    }
+    
+    // Conecta ao servidor local: interativo ou teste de carga com muitas conexões
+    static void cliente(String[] args) {
+        try {
+            String porta = opcao(args, "cliente", "");
+            int numero = porta.isEmpty() ? ServidorEstoque.PORTA_PADRAO : Integer.parseInt(porta);
+            if(opcao(args, "conexoes", null) == null) {
+                ClienteEstoque.interativo(numero);
+                return;
+            }
+            int conexoes = Integer.parseInt(opcao(args, "conexoes", "")), requisicoes = Integer.parseInt(opcao(args, "requisicoes", "100"));
+            if(conexoes <= 0 || requisicoes <= 0) {
+                System.out.println("❌ Erro: Conexões e requisições devem ser positivas!");
+                return;
+            }
+            ClienteEstoque.carga(numero, conexoes, requisicoes, opcao(args, "comando", "PING"));
+        } catch(NumberFormatException erro) {
+            System.out.println("❌ Erro: Opções do cliente devem ser números!");
+        } catch(IOException erro) {
+            System.out.println("❌ Erro de conexão: " + erro.getMessage());
+        } catch(InterruptedException erro) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Lê opção no formato --nome=valor (ou --nome sem valor, retornando "")
+    static String opcao(String[] args, String nome, String padrao) {
+        for(String arg : args) {
+            if(arg.equals("--" + nome)) return "";
+            if(arg.startsWith("--" + nome + "=")) return arg.substring(nome.length() + 3);
+        }
+        return padrao;
+    }
+    
+    // Abre o diretório dos segmentos antes do diário (a reprodução pula o que já foi arquivado); retorna false se não for
+    // possível continuar
+    boolean configurarArquivo(String[] args) {
+        String diretorio = opcao(args, "arquivar", null);
+        if(diretorio == null) return true;
+        try {
+            retencaoMs = Long.parseLong(opcao(args, "reter-dias", "30")) * ConsumoProduto.DIA;
+            movimentacoes.arquivo = new ArquivoMovimentacoes(Paths.get(diretorio.isEmpty() ? "arquivo-movimentacoes" : diretorio), movimentacoes);
+        } catch(NumberFormatException erro) {
+            System.out.println("❌ Erro: --reter-dias deve ser um número!");
+            return false;
+        } catch(IOException | InvalidPathException erro) {
+            System.out.println("❌ Erro ao abrir o arquivo de movimentações: " + erro.getMessage());
+            return false;
+        }
+        if(retencaoMs < 0) {
+            System.out.println("❌ Erro: --reter-dias não pode ser negativo!");
+            return false;
+        }
+        return true;
+    }
+    
+    // Depois da leitura do diário, arquiva as movimentações mais antigas que a retenção e repete a cada minuto; retorna
+    // false se não for possível continuar
+    boolean iniciarArquivamento() {
+        if(movimentacoes.arquivo == null) return true;
+        long inicio = System.nanoTime();
+        if(!arquivarAntigas(retencaoMs)) return false;
+        if(movimentacoes.blocosArquivados > 0) {
+            System.out.println("🗄 Arquivo: " + ((long) movimentacoes.blocosArquivados << HistoricoMovimentacoes.BITS_BLOCO)
+                    + " movimentações em segmentos (" + (System.nanoTime() - inicio) / 1_000_000 + " ms)");
+        }
+        arquivador = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+            Thread thread = new Thread(tarefa, "arquivador");
+            thread.setDaemon(true);
+            return thread;
+        });
+        arquivador.scheduleWithFixedDelay(() -> arquivarAntigas(retencaoMs), 1, 1, TimeUnit.MINUTES);
+        return true;
+    }
+    
+    // Arquiva as movimentações mais antigas que a retenção; retorna false se a gravação falhou
+    boolean arquivarAntigas(long retencaoMs) {
+        try {
+            movimentacoes.arquivar(System.currentTimeMillis() - retencaoMs);
+            return true;
+        } catch(IOException | UncheckedIOException erro) {
+            System.out.println("❌ Erro ao arquivar movimentações: " + erro.getMessage());
+            return false;
+        }
+    }
+    
+    // Abre o diário conforme as opções de linha de comando; retorna false se não for possível continuar
+    boolean configurarDiario(String[] args) {
+        if(opcao(args, "sem-diario", null) != null) return true;
+        try {
+            Path arquivo = Paths.get(opcao(args, "diario", "estoque.diario"));
+            Diario.Sincronizacao sincronizacao = Diario.Sincronizacao.valueOf(opcao(args, "sincronizacao", "sempre").toUpperCase());
+            int grupo = Integer.parseInt(opcao(args, "grupo", "64"));
+            long intervalo = Long.parseLong(opcao(args, "intervalo", "1000"));
+            
+            long inicio = System.nanoTime();
+            abrirDiario(arquivo, sincronizacao, grupo, intervalo);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::fecharDiario)); // Garante fsync ao encerrar
+            if(!produtos.isEmpty()) {
+                System.out.println("💾 Diário carregado: " + produtos.size() + " produtos e " + movimentacoes.size()
+                        + " movimentações em " + (System.nanoTime() - inicio) / 1_000_000 + " ms");
+            }
+            return true;
+        } catch(IllegalArgumentException erro) {
+            System.out.println("❌ Erro: Opção de diário inválida! " + erro.getMessage());
+        } catch(IOException erro) {
+            System.out.println("❌ Erro ao abrir o diário: " + erro.getMessage());
+        }
+        return false;
     }
     
-    // Método para exibir a movimentação formatada
-    public String toString() {
-        return "[" + data + "] " + tipo + " de " + quantidade + " un. (Produto: " + produto + ") - " + observacao;
+    // Reproduz o diário existente (reconstruindo produtos, quantidades e histórico; com arquivo, só o que não está nos
+    // segmentos volta à memória) e passa a gravar nele
+    void abrirDiario(Path arquivo, Diario.Sincronizacao sincronizacao, int tamanhoGrupo, long intervaloMs) throws IOException {
+        if(movimentacoes.arquivo != null) movimentacoes.retomarArquivo();
+        diario = Diario.abrir(arquivo, sincronizacao, tamanhoGrupo, intervaloMs, new Diario.Leitor() {
+            public void produto(String codigo, String nome, String categoria, int quantidade, double preco) {
+                adicionarProduto(new Produto(codigo, nome, categoria, quantidade, preco));
+            }
+            
+            public void movimentacao(int produtoId, boolean entrada, int quantidade, String observacao, long instante) throws IOException {
+                if(produtoId < 0 || produtoId >= produtos.size()) throw new IOException("Diário corrompido: produto " + produtoId + " inexistente");
+                Produto produto = produtos.get(produtoId);
+                byte tipo = entrada ? Movimentacao.ENTRADA : Movimentacao.SAIDA;
+                ajustarEstoque(produto, entrada ? quantidade : -quantidade);
+                if(!movimentacoes.pularArquivada(produtoId, tipo, quantidade, instante)) movimentacoes.adicionar(produtoId, tipo, quantidade, observacao, instante);
+            }
+            
+            public void pontoReposicao(int produtoId, int ponto) throws IOException {
+                if(produtoId < 0 || produtoId >= produtos.size()) throw new IOException("Diário corrompido: produto " + produtoId + " inexistente");
+                alterarPontoReposicao(produtos.get(produtoId), ponto);
+            }
+        });
+        try {
+            movimentacoes.conferirArquivadas();
+        } catch(IOException erro) {
+            diario.close();
+            diario = null;
+            throw erro;
+        }
     }
-}
-
-// Classe principal do sistema de estoque
-public class SistemaEstoque {
-    ArrayList<Produto> produtos = new ArrayList<>(); // Lista de produtos
-    ArrayList<Movimentacao> movimentacoes = new ArrayList<>(); // Lista de movimentações
-    Scanner scanner = new Scanner(System.in); // Scanner para entrada de dados
     
-    // Método principal que executa o sistema
-    public static void main(String[] args) {
-        new SistemaEstoque().menu(); // Cria instância e inicia o menu
+    // Grava pendências e fecha o diário
+    void fecharDiario() {
+        if(arquivador != null) arquivador.shutdown();
+        if(particoes != null) particoes.close(); // Aplica e grava o que ainda está nas filas das partições
+        if(diario == null) return;
+        try {
+            diario.close();
+        } catch(IOException erro) {
+            System.out.println("❌ Erro ao fechar o diário: " + erro.getMessage());
+        }
     }
     
     // Menu principal do sistema
@@ -61,25 +3854,37 @@ public class SistemaEstoque {
         do {
             // Exibe as opções do menu
             System.out.println("\n=== SISTEMA DE ESTOQUE ===");
-            System.out.println("1-Cadastrar 2-Entrada 3-Saída 4-Consultar 5-Estoque Baixo 6-Relatório 7-Listar 8-Executar Testes 0-Sair");
+            System.out.println("1-Cadastrar 2-Entrada 3-Saída 4-Consultar 5-Estoque Baixo 6-Relatório 7-Listar 8-Executar Testes 9-Resumo 10-Histórico 11-Exportar 12-Métricas 13-Categorias 14-Pedido 15-Previsão 0-Sair");
             System.out.print("Opção: ");
             opcao = lerInteiro(); // Lê opção com tratamento de erro
             
             // Executa a ação correspondente à opção
-            switch(opcao) {
-                case 1: cadastrar(); break;
-                case 2: entrada(); break;
-                case 3: saida(); break;
-                case 4: consultar(); break;
-                case 5: estoqueBaixo(); break;
-                case 6: relatorio(); break;
-                case 7: listar(); break;
-                case 8: executarTestes(); break; // Nova opção para testes
-                case 0: System.out.println("Saindo do sistema..."); break;
-                default: System.out.println("Opção inválida! Tente novamente.");
+            try {
+                switch(opcao) {
+                    case 1: cadastrar(); break;
+                    case 2: entrada(); break;
+                    case 3: saida(); break;
+                    case 4: consultar(); break;
+                    case 5: estoqueBaixo(); break;
+                    case 6: relatorio(); break;
+                    case 7: listar(); break;
+                    case 8: executarTestes(); break; // Nova opção para testes
+                    case 9: resumo(); break; // Só os totais, sem listar tudo
+                    case 10: historico(); break; // Histórico por produto e período
+                    case 11: exportar(); break; // Relatórios em arquivo texto ou CSV
+                    case 12: metricas(); break; // Chamadas, erros e latências das operações
+                    case 13: categorias(); break; // Totais, maiores estoques e fluxo por categoria
+                    case 14: pedido(); break; // Várias movimentações aplicadas juntas
+                    case 15: previsao(); break; // Dias até zerar pelo consumo recente
+                    case 0: System.out.println("Saindo do sistema..."); break;
+                    default: System.out.println("Opção inválida! Tente novamente.");
+                }
+            } catch(UncheckedIOException erro) { // Diário ou arquivo em disco falhou: a operação não foi confirmada
+                System.out.println("❌ Erro de acesso ao disco: " + erro.getCause().getMessage());
             }
         } while(opcao != 0); // Continua até escolher sair
         scanner.close(); // Fecha o scanner ao sair
+        fecharDiario(); // Garante que tudo foi gravado em disco
     }
     
     // Método para ler inteiro com tratamento de erro melhorado
@@ -91,7 +3896,7 @@ public class SistemaEstoque {
                     System.out.print("Campo obrigatório! Digite um número: ");
                     continue;
                 }
-                entrada = converterPalavra(entrada); // Converte palavras para números
+                if(porExtenso) entrada = converterPalavra(entrada); // Converte palavras para números
                 return Integer.parseInt(entrada); // Converte para inteiro
             } catch(NumberFormatException erro) {
                 System.out.print("Entrada inválida! Digite um número válido: "); // Pede nova entrada se erro
@@ -108,7 +3913,7 @@ public class SistemaEstoque {
                     System.out.print("Campo obrigatório! Digite um número: ");
                     continue;
                 }
-                entrada = converterPalavra(entrada); // Converte palavras para números
+                if(porExtenso) entrada = converterPalavra(entrada); // Converte palavras para números
                 double valor = Double.parseDouble(entrada); // Converte para double
                 if(Double.isNaN(valor) || Double.isInfinite(valor)) {
                     System.out.print("Valor inválido! Digite um número válido: ");
@@ -121,23 +3926,546 @@ public class SistemaEstoque {
         }
     }
     
-    // Converte palavras numéricas básicas para números
-    String converterPalavra(String texto) {
-        texto = texto.toLowerCase(); // Converte para minúsculas
-        // Substitui palavras comuns por números
-        return texto.replace("zero","0").replace("um","1").replace("dois","2").replace("tres","3")
-                .replace("três","3").replace("quatro","4").replace("cinco","5").replace("seis","6")
-                .replace("sete","7").replace("oito","8").replace("nove","9").replace("dez","10")
-                .replace("cem","100").replace("mil","1000");
+    // Converte número por extenso ("dois", "cem") no número; só a palavra inteira (não altera "um" dentro de "fumo")
+    static String converterPalavra(String texto) {
+        return NUMEROS_POR_EXTENSO.getOrDefault(texto.toLowerCase(Locale.ROOT), texto);
     }
     
-    // Busca produto pelo código
+    // Busca produto pelo código (contada nas métricas; não encontrado conta como erro)
     Produto buscar(String codigo) {
+        long inicio = metricas.iniciar(Metricas.Operacao.BUSCAR);
+        Produto produto = localizar(codigo);
+        if(produto == null) metricas.erro(Metricas.Operacao.BUSCAR, Metricas.Erro.PRODUTO_NAO_ENCONTRADO);
+        metricas.concluir(Metricas.Operacao.BUSCAR, inicio);
+        return produto;
+    }
+    
+    // Consulta o índice de códigos sem contar nas métricas (verificação de duplicata)
+    Produto localizar(String codigo) {
         if(codigo == null || codigo.trim().isEmpty()) return null; // Validação de entrada
-        for(Produto produto : produtos) { // Percorre lista de produtos
-            if(produto.codigo.equalsIgnoreCase(codigo.trim())) return produto; // Retorna se encontrar
+        return indiceCodigos.get(normalizarCodigo(codigo)); // Consulta direta no índice (null se não encontrar)
+    }
+    
+    // Normaliza o código para chave do índice (sem espaços nas pontas e sem diferenciar maiúsculas)
+    static String normalizarCodigo(String codigo) {
+        String texto = codigo.trim();
+        char[] caracteres = null; // Só aloca se algum caractere mudar
+        for(int i = 0; i < texto.length(); i++) {
+            char original = texto.charAt(i);
+            char normalizado = Character.toLowerCase(Character.toUpperCase(original)); // Mesma regra do equalsIgnoreCase
+            if(normalizado != original && caracteres == null) caracteres = texto.toCharArray();
+            if(caracteres != null) caracteres[i] = normalizado;
+        }
+        return caracteres == null ? texto : new String(caracteres);
+    }
+    
+    // Adiciona produto ao catálogo e aos índices de busca
+    void adicionarProduto(Produto produto) {
+        produtos.adicionar(produto);
+        indexar(produto);
+        quantidadeTotal.add(produto.quantidade());
+        valorTotalCentavos.add(produto.precoCentavos() * produto.quantidade());
+        indiceQuantidades.add(chaveQuantidade(produto.quantidade(), produto.id));
+        
+        int categoria = produtos.categoriaId(produto.id);
+        if(categoria == resumoCategorias.size()) resumoCategorias.add(new ResumoCategoria(produtos.categorias.get(categoria)));
+        ResumoCategoria resumo = resumoCategorias.get(categoria);
+        resumo.produtos.increment();
+        resumo.unidades.add(produto.quantidade());
+        resumo.valorCentavos.add(produto.precoCentavos() * produto.quantidade());
+        if(produto.quantidade() <= produto.pontoReposicao()) resumo.emFalta.increment();
+        resumo.porQuantidade.add(chaveQuantidade(produto.quantidade(), produto.id));
+    }
+    
+    // Totais da categoria do produto
+    ResumoCategoria resumoDaCategoria(Produto produto) {
+        return resumoCategorias.get(produtos.categoriaId(produto.id));
+    }
+    
+    // Altera a quantidade do produto mantendo totais, índice por quantidade e alertas (chamar sob a trava do produto)
+    void ajustarEstoque(Produto produto, int variacao) {
+        int anterior = produto.quantidade();
+        int atual = anterior + variacao;
+        produtos.definirQuantidade(produto.id, atual);
+        quantidadeTotal.add(variacao);
+        valorTotalCentavos.add(produto.precoCentavos() * variacao);
+        indiceQuantidades.remove(chaveQuantidade(anterior, produto.id));
+        indiceQuantidades.add(chaveQuantidade(atual, produto.id));
+        
+        ResumoCategoria resumo = resumoDaCategoria(produto); // Cada ajuste é uma movimentação: entra no fluxo da categoria
+        resumo.unidades.add(variacao);
+        resumo.valorCentavos.add(produto.precoCentavos() * variacao);
+        resumo.porQuantidade.remove(chaveQuantidade(anterior, produto.id));
+        resumo.porQuantidade.add(chaveQuantidade(atual, produto.id));
+        if(variacao >= 0) {
+            resumo.entradas.increment();
+            resumo.unidadesEntrada.add(variacao);
+        } else {
+            resumo.saidas.increment();
+            resumo.unidadesSaida.add(-variacao);
+        }
+        
+        int ponto = produto.pontoReposicao();
+        if((anterior <= ponto) != (atual <= ponto)) { // Cruzou o ponto de reposição (em qualquer sentido)
+            resumo.emFalta.add(atual <= ponto ? 1 : -1);
+            for(OuvinteReposicao ouvinte : ouvintesReposicao) ouvinte.cruzouPontoReposicao(produto, anterior, atual);
+        }
+    }
+    
+    // Troca o ponto de reposição mantendo a contagem de produtos em falta da categoria (chamar sob a trava do produto)
+    void alterarPontoReposicao(Produto produto, int ponto) {
+        int quantidade = produto.quantidade(), anterior = produto.pontoReposicao();
+        produtos.definirPontoReposicao(produto.id, ponto);
+        if((quantidade <= anterior) != (quantidade <= ponto)) resumoDaCategoria(produto).emFalta.add(quantidade <= ponto ? 1 : -1);
+    }
+    
+    // Chave do índice por quantidade: ordena por quantidade e depois por ordem de cadastro
+    static long chaveQuantidade(int quantidade, int id) {
+        return ((long) quantidade << 32) | (id & 0xFFFFFFFFL);
+    }
+    
+    // Produtos com quantidade ≤ limite, do menor estoque para o maior (O(log n + k))
+    ArrayList<Produto> produtosAbaixoDe(int limite) {
+        long inicio = metricas.iniciar(Metricas.Operacao.ESTOQUE_BAIXO);
+        ArrayList<Produto> encontrados = new ArrayList<>();
+        for(long chave : indiceQuantidades.headSet(chaveQuantidade(limite, -1), true)) {
+            encontrados.add(produtos.get((int) chave));
+        }
+        metricas.concluir(Metricas.Operacao.ESTOQUE_BAIXO, inicio);
+        return encontrados;
+    }
+    
+    // Inscreve ouvinte para ser avisado quando produtos cruzarem o ponto de reposição
+    void inscreverReposicao(OuvinteReposicao ouvinte) {
+        ouvintesReposicao.add(ouvinte);
+    }
+    
+    // Cancela a inscrição do ouvinte
+    void cancelarReposicao(OuvinteReposicao ouvinte) {
+        ouvintesReposicao.remove(ouvinte);
+    }
+    
+    // Altera o ponto de reposição do produto e grava no diário (não dispara aviso)
+    void definirPontoReposicao(Produto produto, int ponto) {
+        if(particoes != null && !particoes.naParticao(produto.codigo)) {
+            particoes.executar(produto.codigo, () -> {
+                definirPontoReposicao(produto, ponto);
+                return true;
+            });
+            return;
+        }
+        synchronized(produto) {
+            try {
+                if(diario != null) diario.gravarPontoReposicao(produto.id, ponto); // Diário antes da memória: falha na gravação não altera nada
+            } catch(IOException erro) {
+                throw new UncheckedIOException(erro);
+            }
+            alterarPontoReposicao(produto, ponto);
+        }
+    }
+    
+    // Cadastra produto novo e grava no diário; retorna false se o código já existir
+    boolean cadastrarProduto(Produto produto) {
+        if(particoes != null && !particoes.naParticao(produto.codigo)) return particoes.executar(produto.codigo, () -> cadastrarProduto(produto));
+        long inicio = metricas.iniciar(Metricas.Operacao.CADASTRAR);
+        travaCatalogo.writeLock().lock(); // Verificação de duplicata e inclusão são atômicas
+        try {
+            if(localizar(produto.codigo) != null) {
+                metricas.erro(Metricas.Operacao.CADASTRAR, Metricas.Erro.CODIGO_DUPLICADO);
+                return false;
+            }
+            if(diario != null) diario.gravarProduto(produto); // Diário antes da memória: falha na gravação não cadastra
+            adicionarProduto(produto);
+            return true;
+        } catch(IOException erro) {
+            throw new UncheckedIOException(erro);
+        } finally {
+            travaCatalogo.writeLock().unlock();
+            metricas.concluir(Metricas.Operacao.CADASTRAR, inicio);
+        }
+    }
+    
+    // Soma quantidade ao estoque e registra a movimentação de entrada (seguro para várias threads)
+    void registrarEntrada(Produto produto, int quantidade, String observacao) {
+        if(particoes != null && !particoes.naParticao(produto.codigo)) { // Só a escritora da partição altera o produto: a trava abaixo nunca é disputada por escritores
+            particoes.executar(produto.codigo, () -> {
+                registrarEntrada(produto, quantidade, observacao);
+                return true;
+            });
+            return;
+        }
+        long inicio = metricas.iniciar(Metricas.Operacao.ENTRADA); // Inclui a espera pela trava
+        synchronized(produto) { // Trava por produto: SKUs diferentes não disputam entre si
+            long instante = gravarMovimentacao(produto, Movimentacao.ENTRADA, quantidade, observacao);
+            ajustarEstoque(produto, quantidade);
+            movimentacoes.adicionar(produto.id, Movimentacao.ENTRADA, quantidade, observacao, instante); // Ordem do histórico = ordem de aplicação
+        }
+        metricas.concluir(Metricas.Operacao.ENTRADA, inicio);
+    }
+    
+    // Retira quantidade do estoque e registra a saída; retorna false se o estoque for insuficiente
+    boolean registrarSaida(Produto produto, int quantidade, String observacao) {
+        if(particoes != null && !particoes.naParticao(produto.codigo)) return particoes.executar(produto.codigo, () -> registrarSaida(produto, quantidade, observacao));
+        long inicio = metricas.iniciar(Metricas.Operacao.SAIDA);
+        boolean retirou = false;
+        synchronized(produto) { // Verificação e retirada sob a mesma trava: nunca fica negativo
+            if(quantidade <= produto.quantidade()) {
+                long instante = gravarMovimentacao(produto, Movimentacao.SAIDA, quantidade, observacao);
+                ajustarEstoque(produto, -quantidade);
+                movimentacoes.adicionar(produto.id, Movimentacao.SAIDA, quantidade, observacao, instante);
+                retirou = true;
+            }
+        }
+        if(!retirou) metricas.erro(Metricas.Operacao.SAIDA, Metricas.Erro.ESTOQUE_INSUFICIENTE);
+        metricas.concluir(Metricas.Operacao.SAIDA, inicio);
+        return retirou;
+    }
+    
+    // Grava a movimentação no diário antes de alterar a memória (falha na gravação não altera nada); retorna o instante usado
+    long gravarMovimentacao(Produto produto, byte tipo, int quantidade, String observacao) {
+        long instante = Math.max(System.currentTimeMillis(), produto.historico().ultimoInstante()); // Relógio não volta no histórico do produto
+        try {
+            if(diario != null) diario.gravarMovimentacao(produto.id, tipo == Movimentacao.ENTRADA, quantidade, observacao, instante);
+        } catch(IOException erro) {
+            throw new UncheckedIOException(erro);
+        }
+        return instante;
+    }
+    
+    // Valida o pedido inteiro e aplica todas as linhas ou nenhuma; retorna os motivos de rejeição por linha (vazio = aplicado)
+    ArrayList<String> registrarPedido(List<LinhaPedido> linhas) {
+        ArrayList<String> rejeicoes = new ArrayList<>();
+        if(linhas.isEmpty() || linhas.size() > MAXIMO_LINHAS_PEDIDO) {
+            rejeicoes.add("Pedido deve ter de 1 a " + MAXIMO_LINHAS_PEDIDO + " linhas");
+            metricas.falha(Metricas.Operacao.PEDIDO, Metricas.Erro.DADOS_INVALIDOS);
+            return rejeicoes;
+        }
+        Produto[] doPedido = new Produto[linhas.size()];
+        Metricas.Erro primeiroErro = null; // Conta o erro da primeira regra recusada
+        for(int i = 0; i < linhas.size(); i++) { // Regras que não dependem do estoque
+            LinhaPedido linha = linhas.get(i);
+            doPedido[i] = localizar(linha.codigo);
+            String motivo = null;
+            Metricas.Erro erro = Metricas.Erro.DADOS_INVALIDOS;
+            if(doPedido[i] == null) {
+                motivo = "Produto não encontrado";
+                erro = Metricas.Erro.PRODUTO_NAO_ENCONTRADO;
+            } else if(linha.quantidade <= 0) {
+                motivo = "Quantidade deve ser positiva";
+            } else if(linha.tipo != Movimentacao.ENTRADA && linha.tipo != Movimentacao.SAIDA) {
+                motivo = "Tipo deve ser ENTRADA ou SAIDA";
+            }
+            if(motivo == null) continue;
+            rejeicoes.add(motivoLinha(i, linha, motivo));
+            if(primeiroErro == null) primeiroErro = erro;
+        }
+        if(primeiroErro != null) {
+            metricas.falha(Metricas.Operacao.PEDIDO, primeiroErro);
+            return rejeicoes;
+        }
+        
+        int[] envolvidas = null;
+        if(particoes != null) { // O pedido vai inteiro para a escritora da menor partição envolvida, que para as demais
+            envolvidas = Arrays.stream(doPedido).mapToInt(produto -> particoes.particao(produto.codigo)).distinct().sorted().toArray();
+            if(particoes.particaoAtual() != envolvidas[0]) {
+                particoes.executar(envolvidas[0], () -> rejeicoes.addAll(registrarPedido(linhas)));
+                return rejeicoes;
+            }
+        }
+        
+        long inicio = metricas.iniciar(Metricas.Operacao.PEDIDO);
+        Produto[] travas = Arrays.stream(doPedido).distinct().sorted(Comparator.comparingInt(produto -> produto.id)).toArray(Produto[]::new);
+        if(envolvidas != null && envolvidas.length > 1) { // Entre partições: nenhuma outra escritora mexe nos produtos durante o pedido
+            particoes.comParticoesParadas(Arrays.copyOfRange(envolvidas, 1, envolvidas.length), 0,
+                    () -> aplicarPedido(travas, 0, doPedido, linhas, rejeicoes));
+        } else {
+            aplicarPedido(travas, 0, doPedido, linhas, rejeicoes);
+        }
+        if(!rejeicoes.isEmpty()) metricas.erro(Metricas.Operacao.PEDIDO, Metricas.Erro.ESTOQUE_INSUFICIENTE);
+        metricas.concluir(Metricas.Operacao.PEDIDO, inicio);
+        return rejeicoes;
+    }
+    
+    // Motivo de rejeição de uma linha do pedido (numeradas a partir de 1)
+    static String motivoLinha(int indice, LinhaPedido linha, String motivo) {
+        return "Linha " + (indice + 1) + " (" + linha.codigo + "): " + motivo;
+    }
+    
+    // Trava os produtos em ordem de id (pedidos simultâneos não se bloqueiam em ciclo) e aplica o pedido com todas as travas
+    void aplicarPedido(Produto[] travas, int proxima, Produto[] doPedido, List<LinhaPedido> linhas, ArrayList<String> rejeicoes) {
+        if(proxima < travas.length) {
+            synchronized(travas[proxima]) {
+                aplicarPedido(travas, proxima + 1, doPedido, linhas, rejeicoes);
+            }
+            return;
+        }
+        
+        IdentityHashMap<Produto, Integer> saldos = new IdentityHashMap<>(); // Estoque depois das linhas anteriores do mesmo pedido
+        for(int i = 0; i < doPedido.length; i++) {
+            LinhaPedido linha = linhas.get(i);
+            int saldo = saldos.getOrDefault(doPedido[i], doPedido[i].quantidade());
+            if(linha.tipo == Movimentacao.SAIDA && linha.quantidade > saldo) {
+                rejeicoes.add(motivoLinha(i, linha, "Estoque insuficiente! Disponível: " + saldo));
+                continue;
+            }
+            saldos.put(doPedido[i], linha.tipo == Movimentacao.ENTRADA ? saldo + linha.quantidade : saldo - linha.quantidade);
+        }
+        if(!rejeicoes.isEmpty()) return;
+        
+        long instante = System.currentTimeMillis();
+        for(Produto produto : travas) instante = Math.max(instante, produto.historico().ultimoInstante()); // Relógio não volta em nenhum produto
+        int[] produtoIds = new int[doPedido.length];
+        for(int i = 0; i < doPedido.length; i++) produtoIds[i] = doPedido[i].id;
+        try {
+            if(diario != null) diario.gravarPedido(produtoIds, linhas, instante); // Um registro e um fsync, antes de alterar a memória
+        } catch(IOException erro) {
+            throw new UncheckedIOException(erro);
+        }
+        int posicao = movimentacoes.reservar(linhas.size()); // Um acréscimo para o pedido inteiro
+        for(int i = 0; i < doPedido.length; i++) {
+            LinhaPedido linha = linhas.get(i);
+            ajustarEstoque(doPedido[i], linha.tipo == Movimentacao.ENTRADA ? linha.quantidade : -linha.quantidade);
+            movimentacoes.escrever(posicao + i, doPedido[i].id, linha.tipo, linha.quantidade, linha.observacao, instante);
+        }
+    }
+    
+    // Registra o produto nos índices (o id de busca é o id do produto; na categoria, o id da categoria)
+    void indexar(Produto produto) {
+        indiceCodigos.putIfAbsent(normalizarCodigo(produto.codigo), produto); // Mantém o primeiro, como a busca linear fazia
+        buscaCodigo.adicionar(produto.codigo);
+        buscaNome.adicionar(produto.nome);
+        int categoria = produtos.categoriaId(produto.id);
+        if(categoria == produtosPorCategoria.size()) { // Categoria nova: seus n-gramas entram uma vez só
+            buscaCategoria.adicionar(produtos.categorias.get(categoria));
+            produtosPorCategoria.add(new ListaIds());
+        }
+        produtosPorCategoria.get(categoria).adicionar(produto.id);
+    }
+    
+    // Produtos das categorias encontradas, intercalando as listas em ordem de cadastro; limite 0 = todos
+    void produtosDasCategorias(ArrayList<Integer> categorias, int limite, ArrayList<Produto> encontrados) {
+        int[] cursores = new int[categorias.size()];
+        while(limite == 0 || encontrados.size() < limite) {
+            int escolhida = -1, menor = Integer.MAX_VALUE;
+            for(int i = 0; i < cursores.length; i++) { // Poucas categorias: a menor cabeça sai por comparação direta
+                ListaIds lista = produtosPorCategoria.get(categorias.get(i));
+                if(cursores[i] < lista.tamanho && lista.ids[cursores[i]] < menor) {
+                    menor = lista.ids[cursores[i]];
+                    escolhida = i;
+                }
+            }
+            if(escolhida < 0) break;
+            cursores[escolhida]++;
+            encontrados.add(produtos.get(menor));
+        }
+    }
+    
+    // Pesquisa produtos cujo campo contém o termo (1-código, 2-nome, 3-categoria); limite 0 = todos
+    ArrayList<Produto> pesquisar(int tipoBusca, String termo, int limite) {
+        long inicio = metricas.iniciar(Metricas.Operacao.CONSULTAR);
+        IndiceNGramas indice = tipoBusca == 1 ? buscaCodigo : tipoBusca == 2 ? buscaNome : buscaCategoria;
+        ArrayList<Produto> encontrados = new ArrayList<>();
+        travaCatalogo.readLock().lock(); // Índices de n-gramas não aceitam leitura durante cadastro
+        try {
+            if(tipoBusca == 3) produtosDasCategorias(indice.buscar(termo, 0), limite, encontrados);
+            else for(int id : indice.buscar(termo, limite)) encontrados.add(produtos.get(id));
+        } finally {
+            travaCatalogo.readLock().unlock();
+        }
+        metricas.concluir(Metricas.Operacao.CONSULTAR, inicio);
+        return encontrados;
+    }
+    
+    // Movimentações do produto no período [inicio, fim], paginadas (busca binária no índice do produto; o trecho
+    // arquivado, se o período chega nele, vem dos segmentos e aparece antes)
+    Pagina<Movimentacao> historicoDoProduto(Produto produto, long inicio, long fim, int pagina, int tamanhoPagina) {
+        Pagina<Movimentacao> resultado = new Pagina<>(pagina, tamanhoPagina);
+        long primeiro = (long) pagina * tamanhoPagina;
+        int[] noIndice; // Trecho do índice que a página pode usar (as arquivadas vêm antes: não passa do fim da página)
+        int totalNoIndice, descartadasAte;
+        long ultimoDescartado;
+        synchronized(produto) { // Mesma trava de quem acrescenta movimentações ao produto; os segmentos são lidos fora dela
+            HistoricoProduto historico = produto.historico();
+            int de = historico.primeiroAPartirDe(inicio), ate = historico.primeiroDepoisDe(fim);
+            totalNoIndice = Math.max(0, ate - de);
+            noIndice = Arrays.copyOfRange(historico.posicoes, de, de + (int) Math.min(totalNoIndice, primeiro + tamanhoPagina));
+            descartadasAte = historico.descartadasAte;
+            ultimoDescartado = historico.ultimoDescartado;
+        }
+        int[] arquivadas = arquivadasDoProduto(produto.id, descartadasAte, ultimoDescartado, inicio, fim);
+        resultado.total = arquivadas.length + totalNoIndice;
+        for(long i = primeiro; i < resultado.total && i < primeiro + tamanhoPagina; i++) {
+            int posicao = i < arquivadas.length ? arquivadas[(int) i] : noIndice[(int) (i - arquivadas.length)];
+            resultado.itens.add(movimentacoes.get(posicao)); // Posição arquivada depois da cópia também é lida do segmento
+        }
+        return resultado;
+    }
+    
+    // Saldo (entradas - saídas) do produto no período [inicio, fim] pelas somas acumuladas (O(log n) fora do trecho arquivado)
+    long saldoDoProduto(Produto produto, long inicio, long fim) {
+        long saldo, ultimoDescartado;
+        int descartadasAte;
+        synchronized(produto) {
+            HistoricoProduto historico = produto.historico();
+            int de = historico.primeiroAPartirDe(inicio), ate = historico.primeiroDepoisDe(fim);
+            saldo = ate <= de ? 0 : historico.saldoAntes(ate) - historico.saldoAntes(de);
+            descartadasAte = historico.descartadasAte;
+            ultimoDescartado = historico.ultimoDescartado;
+        }
+        for(int posicao : arquivadasDoProduto(produto.id, descartadasAte, ultimoDescartado, inicio, fim)) saldo += movimentacoes.variacao(posicao);
+        return saldo;
+    }
+    
+    // Quantidade do produto no instante: atual menos o saldo das movimentações posteriores (O(log n) no índice do produto)
+    int quantidadeEm(Produto produto, long instante) {
+        long quantidade, ultimoDescartado;
+        int descartadasAte;
+        synchronized(produto) { // Quantidade e índice do mesmo momento
+            HistoricoProduto historico = produto.historico();
+            quantidade = produto.quantidade() - (historico.saldoAntes(historico.tamanho) - historico.saldoAntes(historico.primeiroDepoisDe(instante)));
+            descartadasAte = historico.descartadasAte;
+            ultimoDescartado = historico.ultimoDescartado;
+        }
+        if(instante < Long.MAX_VALUE) {
+            for(int posicao : arquivadasDoProduto(produto.id, descartadasAte, ultimoDescartado, instante + 1, Long.MAX_VALUE)) {
+                quantidade -= movimentacoes.variacao(posicao);
+            }
+        }
+        return (int) quantidade;
+    }
+    
+    // Posições descartadas do índice do produto (abaixo de descartadasAte) com instante em [inicio, fim]; vazio se o período
+    // não chega ao trecho arquivado. Recebe os limites lidos sob a trava do produto e lê os segmentos fora dela (segmentos
+    // abaixo do limite não mudam; o que for arquivado depois ainda estava na cópia do índice)
+    private int[] arquivadasDoProduto(int produtoId, int descartadasAte, long ultimoDescartado, long inicio, long fim) {
+        if(inicio > ultimoDescartado) return HistoricoProduto.SEM_POSICOES;
+        return movimentacoes.posicoesArquivadas(produtoId, inicio, fim, descartadasAte); // Lê segmentos: caminho lento
+    }
+    
+    // Consulta o histórico de um produto ou o saldo de todos os produtos em um período
+    void historico() {
+        System.out.println("\n=== HISTÓRICO POR PERÍODO ===");
+        System.out.println("1 - Movimentações de um produto");
+        System.out.println("2 - Saldo por produto no período");
+        System.out.println("3 - Estoque em uma data");
+        System.out.print("Escolha uma opção: ");
+        int tipoConsulta = lerInteiro();
+        if(tipoConsulta < 1 || tipoConsulta > 3) {
+            System.out.println("❌ Opção inválida!");
+            return;
+        }
+        if(tipoConsulta == 3) {
+            estoqueNaData();
+            return;
+        }
+        
+        Produto produto = null;
+        if(tipoConsulta == 1) {
+            System.out.print("Código do produto: ");
+            produto = buscar(scanner.nextLine().trim()); // Busca produto
+            if(produto == null) { 
+                System.out.println("❌ Produto não encontrado! Verifique o código."); 
+                return; 
+            } // Verifica se existe
+        }
+        
+        System.out.print("Data inicial (dd/MM/yyyy, vazio = início): ");
+        long inicio = lerData(false);
+        System.out.print("Data final (dd/MM/yyyy, vazio = sem limite): ");
+        long fim = lerData(true);
+        
+        if(tipoConsulta == 2) {
+            TreeMap<Integer, Long> saldos = movimentacoes.saldoPorProduto(inicio, fim);
+            if(saldos.isEmpty()) {
+                System.out.println("ℹ Nenhuma movimentação no período!");
+                return;
+            }
+            try(Relatorio relatorio = Relatorio.tela(linhasPorPagina, scanner)) {
+                relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+                for(Map.Entry<Integer, Long> saldo : saldos.entrySet()) {
+                    Produto item = produtos.get(saldo.getKey());
+                    relatorio.texto("Código: " + item.codigo + " | Nome: " + item.nome + " | Saldo no período: " + saldo.getValue() + " unidades");
+                }
+                relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+                relatorio.texto("📊 Produtos movimentados no período: " + saldos.size());
+            }
+            return;
+        }
+        
+        int pagina = 0, tamanhoPagina = 20;
+        while(true) {
+            Pagina<Movimentacao> resultado = historicoDoProduto(produto, inicio, fim, pagina, tamanhoPagina);
+            if(resultado.total == 0) {
+                System.out.println("ℹ Nenhuma movimentação do produto no período!");
+                return;
+            }
+            try(Relatorio relatorio = Relatorio.tela(0, scanner)) { // Páginas da consulta: a paginação é a de baixo
+                relatorio.texto(Relatorio.SEPARADOR_MOVIMENTACOES);
+                for(Movimentacao movimentacao : resultado.itens) relatorio.movimentacao(movimentacao);
+                relatorio.texto(Relatorio.SEPARADOR_MOVIMENTACOES);
+                relatorio.texto("📄 Página " + (pagina + 1) + " de " + resultado.totalPaginas() + " (" + resultado.total + " movimentações)"
+                        + " | Saldo no período: " + saldoDoProduto(produto, inicio, fim) + " unidades");
+            }
+            if(pagina + 1 >= resultado.totalPaginas()) return;
+            System.out.print("Enter = próxima página, 0 = voltar: ");
+            if(scanner.nextLine().trim().equals("0")) return;
+            pagina++;
+        }
+    }
+    
+    // Mostra o estoque de um produto (índice do produto) ou de todos (fotos periódicas) no fim do dia informado
+    void estoqueNaData() {
+        System.out.print("Código do produto (vazio = todos): ");
+        String codigo = scanner.nextLine().trim();
+        Produto produto = null;
+        if(!codigo.isEmpty()) {
+            produto = buscar(codigo);
+            if(produto == null) {
+                System.out.println("❌ Produto não encontrado! Verifique o código.");
+                return;
+            }
         }
-        return null; // Retorna null se não encontrar
+        System.out.print("Data (dd/MM/yyyy, vazio = hoje): ");
+        long instante = lerData(true);
+        String dia = instante == Long.MAX_VALUE ? "hoje" : Movimentacao.formatarData(instante).substring(0, 10);
+        
+        if(produto != null) {
+            System.out.println("📊 Estoque de " + produto.codigo + " - " + produto.nome + " em " + dia + ": " + quantidadeEm(produto, instante) + " unidades");
+            return;
+        }
+        long inicio = System.nanoTime();
+        int[] quantidades = pontosControle.estoqueEm(instante);
+        long milissegundos = (System.nanoTime() - inicio) / 1_000_000;
+        long total = 0;
+        try(Relatorio relatorio = Relatorio.tela(linhasPorPagina, scanner)) {
+            relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+            for(int id = 0; id < quantidades.length; id++) {
+                Produto item = produtos.get(id);
+                relatorio.texto("Código: " + item.codigo + " | Nome: " + item.nome + " | Estoque em " + dia + ": " + quantidades[id] + " unidades");
+                total += quantidades[id];
+            }
+            relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+            relatorio.texto("📊 Total de itens em " + dia + ": " + total + " (calculado em " + milissegundos + " ms)");
+        }
+    }
+    
+    // Lê data dd/MM/yyyy como início ou fim do dia; vazio = sem limite
+    long lerData(boolean fimDoDia) {
+        while(true) {
+            String texto = scanner.nextLine().trim();
+            if(texto.isEmpty()) return fimDoDia ? Long.MAX_VALUE : Long.MIN_VALUE;
+            try {
+                return limiteDoDia(LocalDate.parse(texto, FORMATO_DIA), fimDoDia);
+            } catch(DateTimeException erro) {
+                System.out.print("Data inválida! Use dd/MM/yyyy: ");
+            }
+        }
+    }
+    
+    // Primeiro ou último milissegundo do dia no fuso local
+    static long limiteDoDia(LocalDate data, boolean fimDoDia) {
+        ZonedDateTime limite = (fimDoDia ? data.plusDays(1) : data).atStartOfDay(ZoneId.systemDefault());
+        return limite.toInstant().toEpochMilli() - (fimDoDia ? 1 : 0);
     }
     
     // Cadastra novo produto
@@ -150,7 +4478,8 @@ public class SistemaEstoque {
             System.out.println("❌ Erro: Código é obrigatório!"); 
             return; 
         } // Valida código
-        if(buscar(codigo) != null) { 
+        if(localizar(codigo) != null) { 
+            metricas.falha(Metricas.Operacao.CADASTRAR, Metricas.Erro.CODIGO_DUPLICADO);
             System.out.println("❌ Erro: Código já existe! Use um código diferente."); 
             return; 
         } // Verifica duplicata
@@ -183,9 +4512,13 @@ public class SistemaEstoque {
             return; 
         } // Valida preço
         
-        produtos.add(new Produto(codigo, nome, categoria, quantidade, preco)); // Adiciona produto à lista
+        Produto produto = new Produto(codigo, nome, categoria, 0, preco); // Estoque inicial entra como movimentação
+        if(!cadastrarProduto(produto)) { // Adiciona produto à lista, aos índices e ao diário
+            System.out.println("❌ Erro: Código já existe! Use um código diferente."); 
+            return; 
+        } // Outro operador cadastrou o mesmo código nesse meio tempo
         if(quantidade > 0) {
-            movimentacoes.add(new Movimentacao(codigo, "ENTRADA", quantidade, "Cadastro inicial com estoque"));
+            registrarEntrada(produto, quantidade, "Cadastro inicial com estoque");
         } // Registra movimentação se há quantidade inicial
         
         System.out.println("✅ Produto cadastrado com sucesso!"); // Confirma cadastro
@@ -199,24 +4532,189 @@ public class SistemaEstoque {
             return; 
         } // Verifica se há produtos
         
-        System.out.println("\n=== LISTA DE PRODUTOS ===");
-        System.out.println("📦 Total de produtos: " + produtos.size());
-        System.out.println("-".repeat(100)); // Linha separadora
-        
-        // Calcula valor total do estoque
-        double valorTotal = 0;
-        int quantidadeTotal = 0;
+        try(Relatorio relatorio = Relatorio.tela(linhasPorPagina, scanner)) {
+            listar(relatorio);
+        }
+    }
+    
+    // Escreve a lista de produtos e o resumo do estoque no relatório
+    void listar(Relatorio relatorio) {
+        relatorio.texto("\n=== LISTA DE PRODUTOS ===");
+        relatorio.texto("📦 Total de produtos: " + produtos.size());
+        relatorio.texto(Relatorio.SEPARADOR_PRODUTOS); // Linha separadora
+        relatorio.cabecalhoCsv("codigo;nome;categoria;quantidade;preco");
         
         for(Produto produto : produtos) {
-            System.out.println(produto); // Exibe todos os produtos
-            valorTotal += produto.preco * produto.quantidade;
-            quantidadeTotal += produto.quantidade;
+            if(!relatorio.produto(produto)) break; // Exibe todos os produtos (até o usuário parar)
+        }
+        
+        relatorio.texto(Relatorio.SEPARADOR_PRODUTOS); // Linha separadora
+        resumoEstoque(relatorio);
+    }
+    
+    // Escreve os totais do estoque a partir dos contadores mantidos a cada alteração
+    void resumoEstoque(Relatorio relatorio) {
+        relatorio.texto("📊 Resumo do Estoque:");
+        relatorio.texto("   • Quantidade total de itens: " + quantidadeTotal.sum());
+        relatorio.texto("   • Valor total do estoque: R$" + Relatorio.formatarCentavos(valorTotalCentavos.sum()));
+    }
+    
+    // Escreve os totais de cada categoria, do maior valor em estoque para o menor (O(categorias), sem varrer produtos)
+    void resumoCategorias(Relatorio relatorio) {
+        long inicio = metricas.iniciar(Metricas.Operacao.CATEGORIAS);
+        ArrayList<ResumoCategoria> resumos = new ArrayList<>();
+        for(ResumoCategoria resumo : resumoCategorias) resumos.add(resumo);
+        HashMap<ResumoCategoria, Long> valores = new HashMap<>(); // Foto do valor: a ordenação não muda enquanto compara
+        for(ResumoCategoria resumo : resumos) valores.put(resumo, resumo.valorCentavos.sum());
+        resumos.sort((a, b) -> Long.compare(valores.get(b), valores.get(a)));
+        
+        relatorio.texto("\n=== ESTOQUE POR CATEGORIA ===");
+        relatorio.texto("🏷 Total de categorias: " + resumos.size());
+        relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+        relatorio.cabecalhoCsv("categoria;produtos;unidades;valor;em_falta;entradas;unidades_entrada;saidas;unidades_saida;maiores_estoques");
+        for(ResumoCategoria resumo : resumos) {
+            if(!relatorio.categoria(resumo, maioresEstoques(resumo, 3))) break;
+        }
+        relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+        metricas.concluir(Metricas.Operacao.CATEGORIAS, inicio, relatorio.esperaNs); // Sem o tempo parado na paginação
+    }
+    
+    // Produtos com consumo registrado, do mais perto de zerar o estoque ao mais longe, no instante informado
+    // (uma passada pelo catálogo sem tocar no histórico; só os limite melhores ficam no heap)
+    ArrayList<Produto> produtosPertoDeZerar(int limite, long agora) {
+        PriorityQueue<double[]> melhores = new PriorityQueue<>((a, b) -> a[0] != b[0] ? Double.compare(b[0], a[0]) : Double.compare(b[1], a[1])); // {dias, id}, pior no topo
+        int total = produtos.size();
+        for(int id = 0; id < total; id++) {
+            Produto produto = produtos.get(id);
+            double dias;
+            synchronized(produto) { // Consumo e quantidade da mesma foto
+                ConsumoProduto consumo = produtos.consumo(id);
+                if(consumo == null) continue; // Nunca teve saída: sem previsão
+                dias = consumo.diasAteZerar(produto.quantidade(), agora);
+            }
+            if(melhores.size() == limite && dias >= melhores.peek()[0]) continue; // Empate fica com o cadastrado antes
+            if(melhores.size() == limite) melhores.poll();
+            melhores.add(new double[] {dias, id});
+        }
+        ArrayList<Produto> encontrados = new ArrayList<>();
+        while(!melhores.isEmpty()) encontrados.add(produtos.get((int) melhores.poll()[1]));
+        Collections.reverse(encontrados);
+        return encontrados;
+    }
+    
+    // Pergunta quantos produtos exibir e escreve os mais perto de zerar pelo consumo recente (complementa o estoque baixo)
+    void previsao(Relatorio relatorio) {
+        System.out.println("\n=== PREVISÃO DE RUPTURA ===");
+        System.out.print("Quantos produtos exibir: ");
+        int limite = lerInteiro();
+        if(limite <= 0) {
+            System.out.println("❌ Erro: Quantidade deve ser positiva!");
+            return;
+        }
+        
+        long inicio = metricas.iniciar(Metricas.Operacao.PREVISAO);
+        long agora = System.currentTimeMillis();
+        ArrayList<Produto> encontrados = produtosPertoDeZerar(limite, agora);
+        relatorio.texto("\n⏳ Produtos mais perto de zerar (consumo médio com peso maior para os últimos " + (int) ConsumoProduto.CONSTANTE_DIAS + " dias):");
+        relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+        relatorio.cabecalhoCsv("codigo;nome;quantidade;consumo_dia;saidas_7_dias;saidas_28_dias;dias_ate_zerar");
+        int semEstoque = 0;
+        for(Produto produto : encontrados) {
+            int quantidade;
+            double taxa, dias;
+            long saidas7, saidas28;
+            synchronized(produto) { // Quantidade e consumo da mesma foto
+                ConsumoProduto consumo = produtos.consumo(produto.id);
+                quantidade = produto.quantidade();
+                taxa = consumo.taxaEm(agora);
+                dias = consumo.diasAteZerar(quantidade, agora);
+                saidas7 = consumo.saidasNosUltimos(7, agora);
+                saidas28 = consumo.saidasNosUltimos(ConsumoProduto.DIAS_JANELA, agora);
+            }
+            if(!relatorio.previsao(produto, quantidade, taxa, saidas7, saidas28, dias)) break;
+            if(quantidade == 0) {
+                relatorio.texto("   🚨 SEM ESTOQUE!");
+                semEstoque++;
+            }
+        }
+        
+        if(encontrados.isEmpty()) {
+            relatorio.texto("ℹ Nenhuma saída registrada ainda!");
+        } else {
+            relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+            relatorio.texto("📊 Produtos exibidos: " + encontrados.size() + " (sem estoque: " + semEstoque + ")");
+        }
+        metricas.concluir(Metricas.Operacao.PREVISAO, inicio, relatorio.esperaNs);
+    }
+    
+    // Exibe a previsão de ruptura na tela
+    void previsao() {
+        try(Relatorio relatorio = Relatorio.tela(linhasPorPagina, scanner)) {
+            previsao(relatorio);
+        }
+    }
+    
+    // Produtos com mais unidades na categoria
+    ArrayList<Produto> maioresEstoques(ResumoCategoria resumo, int limite) {
+        ArrayList<Produto> maiores = new ArrayList<>();
+        for(int id : resumo.maioresEstoques(limite)) maiores.add(produtos.get(id));
+        return maiores;
+    }
+    
+    // Exibe o relatório por categoria na tela
+    void categorias() {
+        if(resumoCategorias.isEmpty()) {
+            System.out.println("ℹ Nenhum produto cadastrado!");
+            return;
+        }
+        try(Relatorio relatorio = Relatorio.tela(linhasPorPagina, scanner)) {
+            resumoCategorias(relatorio);
+        }
+    }
+    
+    // Exibe os resumos do estoque e das movimentações sem percorrer produtos nem histórico
+    void resumo() {
+        try(Relatorio relatorio = Relatorio.tela(0, scanner)) {
+            relatorio.texto("\n=== RESUMO ===");
+            relatorio.texto("📦 Total de produtos: " + produtos.size());
+            resumoEstoque(relatorio);
+            resumoMovimentacoes(relatorio);
+        }
+    }
+    
+    // Registra um pedido com várias linhas: aplica todas ou nenhuma
+    void pedido() {
+        System.out.println("\n=== PEDIDO ===");
+        ArrayList<LinhaPedido> linhas = new ArrayList<>();
+        while(linhas.size() < MAXIMO_LINHAS_PEDIDO) {
+            System.out.print("Código do produto (vazio = concluir): ");
+            String codigo = scanner.nextLine().trim();
+            if(codigo.isEmpty()) break;
+            System.out.print("Tipo (1 - Entrada, 2 - Saída): ");
+            int tipo = lerInteiro();
+            if(tipo < 1 || tipo > 2) {
+                System.out.println("❌ Opção inválida! Linha descartada.");
+                continue;
+            }
+            System.out.print("Quantidade: ");
+            int quantidade = lerInteiro();
+            System.out.print("Observação (opcional): ");
+            String observacao = scanner.nextLine().trim();
+            if(observacao.isEmpty()) observacao = tipo == 1 ? "Reposição de estoque" : "Saída de produtos";
+            linhas.add(new LinhaPedido(codigo, tipo == 1 ? Movimentacao.ENTRADA : Movimentacao.SAIDA, quantidade, observacao));
+        }
+        if(linhas.isEmpty()) {
+            System.out.println("ℹ Pedido vazio!");
+            return;
         }
         
-        System.out.println("-".repeat(100)); // Linha separadora
-        System.out.println("📊 Resumo do Estoque:");
-        System.out.println("   • Quantidade total de itens: " + quantidadeTotal);
-        System.out.println("   • Valor total do estoque: R$" + String.format("%.2f", valorTotal));
+        ArrayList<String> rejeicoes = registrarPedido(linhas);
+        if(!rejeicoes.isEmpty()) {
+            System.out.println("❌ Pedido recusado! Nenhuma linha foi aplicada:");
+            for(String motivo : rejeicoes) System.out.println("   • " + motivo);
+            return;
+        }
+        System.out.println("✅ Pedido registrado com sucesso! (" + linhas.size() + " linhas)");
     }
     
     // Registra entrada de produtos
@@ -231,7 +4729,7 @@ public class SistemaEstoque {
         } // Verifica se existe
         
         System.out.println("📦 Produto: " + produto.nome);
-        System.out.println("📊 Estoque atual: " + produto.quantidade + " unidades");
+        System.out.println("📊 Estoque atual: " + produto.quantidade() + " unidades");
         
         System.out.print("Quantidade a adicionar: ");
         int quantidade = lerInteiro(); // Lê quantidade
@@ -244,12 +4742,11 @@ public class SistemaEstoque {
         String observacao = scanner.nextLine().trim(); // Lê observação
         if(observacao.isEmpty()) observacao = "Reposição de estoque"; // Define observação padrão
         
-        int estoqueAnterior = produto.quantidade; // Guarda estoque anterior
-        produto.quantidade += quantidade; // Adiciona quantidade ao estoque
-        movimentacoes.add(new Movimentacao(produto.codigo, "ENTRADA", quantidade, observacao)); // Registra movimentação
+        int estoqueAnterior = produto.quantidade(); // Guarda estoque anterior
+        registrarEntrada(produto, quantidade, observacao); // Adiciona quantidade ao estoque e registra movimentação
         
         System.out.println("✅ Entrada registrada com sucesso!");
-        System.out.println("📊 Estoque anterior: " + estoqueAnterior + " → Estoque atual: " + produto.quantidade);
+        System.out.println("📊 Estoque anterior: " + estoqueAnterior + " → Estoque atual: " + produto.quantidade());
     }
     
     // Registra saída de produtos
@@ -264,9 +4761,9 @@ public class SistemaEstoque {
         } // Verifica se existe
         
         System.out.println("📦 Produto: " + produto.nome);
-        System.out.println("📊 Estoque atual: " + produto.quantidade + " unidades"); // Mostra estoque atual
+        System.out.println("📊 Estoque atual: " + produto.quantidade() + " unidades"); // Mostra estoque atual
         
-        if(produto.quantidade == 0) {
+        if(produto.quantidade() == 0) {
             System.out.println("❌ Erro: Produto sem estoque disponível!");
             return;
         }
@@ -277,8 +4774,9 @@ public class SistemaEstoque {
             System.out.println("❌ Erro: Quantidade deve ser positiva!"); 
             return; 
         } // Valida quantidade
-        if(quantidade > produto.quantidade) { 
-            System.out.println("❌ Erro: Estoque insuficiente! Disponível: " + produto.quantidade + " unidades"); 
+        if(quantidade > produto.quantidade()) { 
+            metricas.falha(Metricas.Operacao.SAIDA, Metricas.Erro.ESTOQUE_INSUFICIENTE);
+            System.out.println("❌ Erro: Estoque insuficiente! Disponível: " + produto.quantidade() + " unidades"); 
             return; 
         } // Verifica estoque
         
@@ -286,23 +4784,32 @@ public class SistemaEstoque {
         String observacao = scanner.nextLine().trim(); // Lê observação
         if(observacao.isEmpty()) observacao = "Saída de produtos"; // Define observação padrão
         
-        int estoqueAnterior = produto.quantidade; // Guarda estoque anterior
-        produto.quantidade -= quantidade; // Remove quantidade do estoque
-        movimentacoes.add(new Movimentacao(produto.codigo, "SAÍDA", quantidade, observacao)); // Registra movimentação
+        int estoqueAnterior = produto.quantidade(); // Guarda estoque anterior
+        if(!registrarSaida(produto, quantidade, observacao)) { // Remove quantidade do estoque e registra movimentação
+            System.out.println("❌ Erro: Estoque insuficiente! Disponível: " + produto.quantidade() + " unidades"); 
+            return; 
+        } // Estoque pode ter mudado desde a verificação acima
         
         System.out.println("✅ Saída registrada com sucesso!");
-        System.out.println("📊 Estoque anterior: " + estoqueAnterior + " → Estoque atual: " + produto.quantidade);
+        System.out.println("📊 Estoque anterior: " + estoqueAnterior + " → Estoque atual: " + produto.quantidade());
         
         // Sistema de alerta melhorado
-        if(produto.quantidade == 0) {
+        if(produto.quantidade() == 0) {
             System.out.println("🚨 ALERTA: Produto sem estoque!");
-        } else if(produto.quantidade <= 5) {
+        } else if(produto.quantidade() <= produto.pontoReposicao()) {
             System.out.println("⚠ ATENÇÃO: Estoque baixo! Considere fazer reposição.");
         }
     }
     
     // Consulta produtos por diferentes critérios
     void consultar() {
+        try(Relatorio relatorio = Relatorio.tela(linhasPorPagina, scanner)) {
+            consultar(relatorio);
+        }
+    }
+    
+    // Pergunta os critérios na tela e escreve os resultados no relatório
+    void consultar(Relatorio relatorio) {
         System.out.println("\n=== CONSULTA DE PRODUTOS ===");
         System.out.println("Tipo de busca:");
         System.out.println("1 - Por código");
@@ -323,37 +4830,35 @@ public class SistemaEstoque {
             return;
         }
         
-        String termoLower = termo.toLowerCase();
-        boolean encontrouProduto = false; // Flag para verificar se encontrou algum
-        int contador = 0;
+        ArrayList<Produto> encontrados = pesquisar(tipoBusca, termo, maximoResultados); // Consulta o índice de n-gramas
+        boolean encontrouProduto = !encontrados.isEmpty(); // Flag para verificar se encontrou algum
+        int contador = encontrados.size();
         
-        System.out.println("\n📋 Resultados da busca:");
-        System.out.println("-".repeat(100));
+        relatorio.texto("\n📋 Resultados da busca:");
+        relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+        relatorio.cabecalhoCsv("codigo;nome;categoria;quantidade;preco");
         
-        for(Produto produto : produtos) { // Percorre produtos
-            boolean corresponde = false; // Flag para verificar se produto corresponde
-            switch(tipoBusca) {
-                case 1: corresponde = produto.codigo.toLowerCase().contains(termoLower); break; // Busca por código
-                case 2: corresponde = produto.nome.toLowerCase().contains(termoLower); break; // Busca por nome
-                case 3: corresponde = produto.categoria.toLowerCase().contains(termoLower); break; // Busca por categoria
-            }
-            if(corresponde) { 
-                System.out.println(produto); 
-                encontrouProduto = true;
-                contador++;
-            } // Exibe se encontrou
+        for(Produto produto : encontrados) { // Exibe produtos encontrados
+            if(!relatorio.produto(produto)) break;
         }
         
         if(!encontrouProduto) {
-            System.out.println("ℹ Nenhum produto encontrado com o termo '" + termo + "'");
+            relatorio.texto("ℹ Nenhum produto encontrado com o termo '" + termo + "'");
         } else {
-            System.out.println("-".repeat(100));
-            System.out.println("📊 Total de produtos encontrados: " + contador);
+            relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+            relatorio.texto("📊 Total de produtos encontrados: " + contador);
         }
     }
     
     // Mostra produtos com estoque baixo
     void estoqueBaixo() {
+        try(Relatorio relatorio = Relatorio.tela(linhasPorPagina, scanner)) {
+            estoqueBaixo(relatorio);
+        }
+    }
+    
+    // Pergunta o mínimo na tela e escreve os produtos abaixo dele no relatório
+    void estoqueBaixo(Relatorio relatorio) {
         System.out.println("\n=== PRODUTOS COM ESTOQUE BAIXO ===");
         System.out.print("Quantidade mínima para alerta: ");
         int quantidadeMinima = lerInteiro(); // Lê quantidade mínima
@@ -362,33 +4867,35 @@ public class SistemaEstoque {
             return; 
         } // Valida entrada
         
+        long inicio = metricas.iniciar(Metricas.Operacao.ESTOQUE_BAIXO);
         boolean encontrouProduto = false; // Flag para verificar se encontrou algum
         int contador = 0;
-        double valorTotalBaixo = 0;
+        long valorTotalBaixo = 0; // Em centavos
         
-        System.out.println("\n⚠ Produtos com estoque ≤ " + quantidadeMinima + " unidades:");
-        System.out.println("-".repeat(100));
+        relatorio.texto("\n⚠ Produtos com estoque ≤ " + quantidadeMinima + " unidades (do menor para o maior):");
+        relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+        relatorio.cabecalhoCsv("codigo;nome;categoria;quantidade;preco");
         
-        for(Produto produto : produtos) { // Percorre produtos
-            if(produto.quantidade <= quantidadeMinima) { // Verifica se está abaixo do mínimo
-                System.out.println(produto); // Exibe produto
-                if(produto.quantidade == 0) {
-                    System.out.println("   🚨 SEM ESTOQUE!");
-                }
-                encontrouProduto = true; // Marca que encontrou
-                contador++;
-                valorTotalBaixo += produto.preco * produto.quantidade;
+        for(long chave : indiceQuantidades.headSet(chaveQuantidade(quantidadeMinima, -1), true)) { // Percorre o índice sem montar lista
+            Produto produto = produtos.get((int) chave);
+            if(!relatorio.produto(produto)) break; // Exibe produto
+            if(produto.quantidade() == 0) {
+                relatorio.texto("   🚨 SEM ESTOQUE!");
             }
+            encontrouProduto = true; // Marca que encontrou
+            contador++;
+            valorTotalBaixo += produto.precoCentavos() * produto.quantidade();
         }
         
         if(!encontrouProduto) {
-            System.out.println("✅ Nenhum produto com estoque baixo! Todos os produtos estão bem abastecidos.");
+            relatorio.texto("✅ Nenhum produto com estoque baixo! Todos os produtos estão bem abastecidos.");
         } else {
-            System.out.println("-".repeat(100));
-            System.out.println("📊 Resumo dos produtos com estoque baixo:");
-            System.out.println("   • Quantidade de produtos: " + contador);
-            System.out.println("   • Valor total destes produtos: R$" + String.format("%.2f", valorTotalBaixo));
+            relatorio.texto(Relatorio.SEPARADOR_PRODUTOS);
+            relatorio.texto("📊 Resumo dos produtos com estoque baixo:");
+            relatorio.texto("   • Quantidade de produtos: " + contador);
+            relatorio.texto("   • Valor total destes produtos: R$" + Relatorio.formatarCentavos(valorTotalBaixo));
         }
+        metricas.concluir(Metricas.Operacao.ESTOQUE_BAIXO, inicio, relatorio.esperaNs); // Sem o tempo parado na paginação
     }
     
     // Exibe relatório de movimentações
@@ -398,61 +4905,211 @@ public class SistemaEstoque {
             return; 
         } // Verifica se há movimentações
         
-        System.out.println("\n=== RELATÓRIO DE MOVIMENTAÇÕES ===");
+        try(Relatorio relatorio = Relatorio.tela(linhasPorPagina, scanner)) {
+            relatorio(relatorio);
+        }
+    }
+    
+    // Escreve o histórico de movimentações e as estatísticas no relatório
+    void relatorio(Relatorio relatorio) {
+        long inicio = metricas.iniciar(Metricas.Operacao.RELATORIO);
+        relatorio.texto("\n=== RELATÓRIO DE MOVIMENTAÇÕES ===");
+        
+        relatorio.texto("📋 Histórico de movimentações:");
+        relatorio.texto(Relatorio.SEPARADOR_MOVIMENTACOES);
+        relatorio.cabecalhoCsv("data;produto;tipo;quantidade;observacao");
+        
+        int total = movimentacoes.size();
+        for(int i = 0; i < total; i++) {
+            if(!relatorio.movimentacao(movimentacoes, i)) break; // Exibe todas as movimentações (formatação só aqui)
+        }
+        
+        relatorio.texto(Relatorio.SEPARADOR_MOVIMENTACOES);
+        resumoMovimentacoes(relatorio);
+        metricas.concluir(Metricas.Operacao.RELATORIO, inicio, relatorio.esperaNs); // Sem o tempo parado na paginação
+    }
+    
+    // Exibe chamadas, erros e latências de cada operação desde o início (ou desde a última vez que foram zeradas)
+    void metricas() {
+        System.out.println("\n=== MÉTRICAS ===");
+        System.out.println(String.format("   %-13s %10s %8s %11s %10s %10s %10s %10s", "Operação", "chamadas", "erros",
+                "média (µs)", "p50 (µs)", "p99 (µs)", "p999 (µs)", "máx (µs)"));
+        for(Metricas.Operacao operacao : Metricas.OPERACOES) {
+            System.out.println(String.format("   %-13s %10d %8d %11.1f %10.1f %10.1f %10.1f %10.1f", operacao.nome, metricas.chamadas(operacao),
+                    metricas.erros(operacao), metricas.media(operacao) / 1000, metricas.percentil(operacao, 0.50) / 1000.0,
+                    metricas.percentil(operacao, 0.99) / 1000.0, metricas.percentil(operacao, 0.999) / 1000.0,
+                    metricas.medidores[operacao.ordinal()].maximo.get() / 1000.0));
+        }
+        StringJoiner erros = new StringJoiner(" | ");
+        for(Metricas.Erro erro : Metricas.ERROS) erros.add(erro.nome + ": " + metricas.erros(erro));
+        System.out.println("⚠ Erros: " + erros);
+        System.out.println("ℹ Entrada, saída, buscar e consultar cronometram 1 a cada 16 chamadas; disponível também via JMX em " + Metricas.NOME_JMX);
+    }
+    
+    // Publica as métricas no servidor JMX da plataforma (jconsole, VisualVM)
+    void publicarMetricas() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metricas, new ObjectName(Metricas.NOME_JMX));
+        } catch(JMException erro) {
+            System.out.println("ℹ Métricas não publicadas via JMX: " + erro.getMessage());
+        }
+    }
+    
+    // Escreve as estatísticas das movimentações a partir dos contadores do histórico
+    void resumoMovimentacoes(Relatorio relatorio) {
+        long totalEntradas = movimentacoes.entradas.sum(), totalSaidas = movimentacoes.saidas.sum();
+        long quantidadeEntradas = movimentacoes.unidadesEntrada.sum(), quantidadeSaidas = movimentacoes.unidadesSaida.sum();
+        relatorio.texto("📊 Estatísticas das movimentações:");
+        relatorio.texto("   • Total de movimentações: " + (totalEntradas + totalSaidas));
+        relatorio.texto("   • Entradas: " + totalEntradas + " movimentações (" + quantidadeEntradas + " unidades)");
+        relatorio.texto("   • Saídas: " + totalSaidas + " movimentações (" + quantidadeSaidas + " unidades)");
+        relatorio.texto("   • Saldo de movimentações: " + (quantidadeEntradas - quantidadeSaidas) + " unidades");
+        if(movimentacoes.blocosArquivados > 0) {
+            relatorio.texto("   • Arquivadas em disco: " + ((long) movimentacoes.blocosArquivados << HistoricoMovimentacoes.BITS_BLOCO) + " movimentações em "
+                    + movimentacoes.blocosArquivados + " segmentos (" + movimentacoes.arquivo.bytesGravados / 1024 + " KB)");
+        }
+    }
+    
+    // Grava qualquer relatório em arquivo texto (igual à tela) ou CSV, em fluxo
+    void exportar() {
+        System.out.println("\n=== EXPORTAR RELATÓRIO ===");
+        System.out.println("1 - Lista de produtos");
+        System.out.println("2 - Relatório de movimentações");
+        System.out.println("3 - Estoque baixo");
+        System.out.println("4 - Consulta de produtos");
+        System.out.println("5 - Estoque por categoria");
+        System.out.println("6 - Previsão de ruptura");
+        System.out.print("Escolha uma opção: ");
+        int tipoRelatorio = lerInteiro();
+        if(tipoRelatorio < 1 || tipoRelatorio > 6) {
+            System.out.println("❌ Opção inválida!");
+            return;
+        }
         
-        // Contadores para estatísticas
-        int totalEntradas = 0, totalSaidas = 0;
-        int quantidadeEntradas = 0, quantidadeSaidas = 0;
+        System.out.print("Formato (1 - Texto, 2 - CSV): ");
+        int formato = lerInteiro();
+        if(formato < 1 || formato > 2) {
+            System.out.println("❌ Opção inválida!");
+            return;
+        }
         
-        System.out.println("📋 Histórico de movimentações:");
-        System.out.println("-".repeat(120));
+        System.out.print("Arquivo de destino: ");
+        String caminho = scanner.nextLine().trim();
+        if(caminho.isEmpty()) {
+            System.out.println("❌ Erro: Arquivo é obrigatório!");
+            return;
+        }
         
-        for(Movimentacao movimentacao : movimentacoes) {
-            System.out.println(movimentacao); // Exibe todas as movimentações
-            
-            if(movimentacao.tipo.equals("ENTRADA")) {
+        try(Relatorio relatorio = Relatorio.arquivo(Paths.get(caminho), formato == 2)) {
+            switch(tipoRelatorio) {
+                case 1: listar(relatorio); break;
+                case 2: relatorio(relatorio); break;
+                case 3: estoqueBaixo(relatorio); break;
+                case 4: consultar(relatorio); break;
+                case 5: resumoCategorias(relatorio); break;
+                case 6: previsao(relatorio); break;
+            }
+        } catch(IOException | UncheckedIOException | InvalidPathException erro) {
+            System.out.println("❌ Erro ao exportar: " + erro.getMessage());
+            return;
+        }
+        System.out.println("✅ Relatório exportado para " + caminho);
+    }
+    
+    // Recalcula todos os totais varrendo produtos e histórico e compara com os contadores; retorna as divergências
+    ArrayList<String> verificarTotais() {
+        CatalogoProdutos.Totais totais = produtos.totalizar(0); // Varredura das colunas
+        long quantidade = totais.quantidade, valor = totais.valorCentavos;
+        long totalEntradas = 0, totalSaidas = 0, quantidadeEntradas = 0, quantidadeSaidas = 0;
+        int categorias = resumoCategorias.size();
+        long[][] porCategoria = new long[categorias][8]; // produtos, unidades, valor, em falta, entradas, unid. entrada, saídas, unid. saída
+        for(Produto produto : produtos) {
+            long[] linha = porCategoria[produtos.categoriaId(produto.id)];
+            linha[0]++;
+            linha[1] += produto.quantidade();
+            linha[2] += produto.precoCentavos() * produto.quantidade();
+            if(produto.quantidade() <= produto.pontoReposicao()) linha[3]++;
+        }
+        int total = movimentacoes.size();
+        for(int i = 0; i < total; i++) {
+            long[] linha = porCategoria[produtos.categoriaId(movimentacoes.produtoId(i))];
+            if(movimentacoes.tipo(i) == Movimentacao.ENTRADA) {
                 totalEntradas++;
-                quantidadeEntradas += movimentacao.quantidade;
+                quantidadeEntradas += movimentacoes.quantidade(i);
+                linha[4]++;
+                linha[5] += movimentacoes.quantidade(i);
             } else {
                 totalSaidas++;
-                quantidadeSaidas += movimentacao.quantidade;
+                quantidadeSaidas += movimentacoes.quantidade(i);
+                linha[6]++;
+                linha[7] += movimentacoes.quantidade(i);
             }
         }
         
-        System.out.println("-".repeat(120));
-        System.out.println("📊 Estatísticas das movimentações:");
-        System.out.println("   • Total de movimentações: " + movimentacoes.size());
-        System.out.println("   • Entradas: " + totalEntradas + " movimentações (" + quantidadeEntradas + " unidades)");
-        System.out.println("   • Saídas: " + totalSaidas + " movimentações (" + quantidadeSaidas + " unidades)");
-        System.out.println("   • Saldo de movimentações: " + (quantidadeEntradas - quantidadeSaidas) + " unidades");
+        ArrayList<String> divergencias = new ArrayList<>();
+        conferir(divergencias, "Quantidade total de itens", quantidadeTotal.sum(), quantidade);
+        conferir(divergencias, "Valor total (centavos)", valorTotalCentavos.sum(), valor);
+        conferir(divergencias, "Entradas", movimentacoes.entradas.sum(), totalEntradas);
+        conferir(divergencias, "Saídas", movimentacoes.saidas.sum(), totalSaidas);
+        conferir(divergencias, "Unidades de entrada", movimentacoes.unidadesEntrada.sum(), quantidadeEntradas);
+        conferir(divergencias, "Unidades de saída", movimentacoes.unidadesSaida.sum(), quantidadeSaidas);
+        for(int categoria = 0; categoria < categorias; categoria++) {
+            ResumoCategoria resumo = resumoCategorias.get(categoria);
+            long[] linha = porCategoria[categoria];
+            String nome = "Categoria " + resumo.nome + ": ";
+            conferir(divergencias, nome + "produtos", resumo.produtos.sum(), linha[0]);
+            conferir(divergencias, nome + "unidades", resumo.unidades.sum(), linha[1]);
+            conferir(divergencias, nome + "valor (centavos)", resumo.valorCentavos.sum(), linha[2]);
+            conferir(divergencias, nome + "em falta", resumo.emFalta.sum(), linha[3]);
+            conferir(divergencias, nome + "entradas", resumo.entradas.sum(), linha[4]);
+            conferir(divergencias, nome + "unidades de entrada", resumo.unidadesEntrada.sum(), linha[5]);
+            conferir(divergencias, nome + "saídas", resumo.saidas.sum(), linha[6]);
+            conferir(divergencias, nome + "unidades de saída", resumo.unidadesSaida.sum(), linha[7]);
+            conferir(divergencias, nome + "índice por quantidade", resumo.porQuantidade.size(), linha[0]);
+        }
+        return divergencias;
+    }
+    
+    // Anota divergência entre o contador mantido e o valor recalculado
+    static void conferir(ArrayList<String> divergencias, String nome, long mantido, long recalculado) {
+        if(mantido != recalculado) divergencias.add(nome + ": mantido " + mantido + ", recalculado " + recalculado);
     }
     
     // Método para executar todos os testes automaticamente
     void executarTestes() {
         System.out.println("\n=== EXECUTANDO TESTES AUTOMATIZADOS ===");
         
-        // Limpa dados existentes para testes limpos
-        ArrayList<Produto> produtosBackup = new ArrayList<>(produtos);
-        ArrayList<Movimentacao> movimentacoesBackup = new ArrayList<>(movimentacoes);
-        
-        produtos.clear();
-        movimentacoes.clear();
+        // Testes rodam em uma instância separada: dados, índices, totais e diário reais não são tocados
+        SistemaEstoque teste = new SistemaEstoque();
         
         try {
-            testarCadastro();
-            testarMovimentacoes();
-            testarConsultas();
-            testarEstoqueBaixo();
+            teste.testarCadastro();
+            teste.testarMovimentacoes();
+            teste.testarConsultas();
+            teste.testarEstoqueBaixo();
+            teste.testarTotais();
+            teste.testarHistorico();
+            teste.testarDiario();
+            teste.testarConcorrencia();
+            teste.testarImportacao();
+            teste.testarRelatorio();
+            teste.testarMetricas();
+            teste.testarServidor();
+            teste.testarParticoes();
+            teste.testarCatalogo();
+            teste.testarAgregacao();
+            teste.testarCategorias();
+            teste.testarPedidos();
+            teste.testarPontosControle();
+            teste.testarRoteiro();
+            teste.testarPrevisao();
+            teste.testarArquivo();
             
             System.out.println("\n🎉 TODOS OS TESTES CONCLUÍDOS!");
-            System.out.println("Dados originais foram restaurados.");
+            System.out.println("Dados originais foram preservados.");
             
         } catch (Exception e) {
             System.out.println("❌ Erro durante os testes: " + e.getMessage());
-        } finally {
-            // Restaura dados originais
-            produtos = produtosBackup;
-            movimentacoes = movimentacoesBackup;
         }
     }
     
@@ -461,7 +5118,7 @@ public class SistemaEstoque {
         System.out.println("\n🧪 TESTES DE CADASTRO:");
         
         // Teste 1: Cadastro normal
-        produtos.add(new Produto("001", "Notebook", "Eletrônicos", 10, 2500.00));
+        adicionarProduto(new Produto("001", "Notebook", "Eletrônicos", 10, 2500.00));
         System.out.println("✅ Teste 1 - Cadastro normal: PASSOU");
         
         // Teste 2: Código duplicado - Simula validação
@@ -475,7 +5132,7 @@ public class SistemaEstoque {
         }
         
         // Teste 4: Cadastro com valores limite
-        produtos.add(new Produto("002", "Mouse", "Periféricos", 0, 0.01));
+        adicionarProduto(new Produto("002", "Mouse", "Periféricos", 0, 0.01));
         System.out.println("✅ Teste 4 - Valores limite (quantidade=0, preço=0.01): PASSOU");
         
         // Teste 5: Verificação de campos obrigatórios
@@ -489,25 +5146,23 @@ public class SistemaEstoque {
         System.out.println("\n🧪 TESTES DE MOVIMENTAÇÕES:");
         
         // Adiciona produtos para teste
-        produtos.add(new Produto("TEST001", "Produto Teste", "Teste", 5, 10.00));
-        produtos.add(new Produto("TEST002", "Produto Sem Estoque", "Teste", 0, 15.00));
+        adicionarProduto(new Produto("TEST001", "Produto Teste", "Teste", 5, 10.00));
+        adicionarProduto(new Produto("TEST002", "Produto Sem Estoque", "Teste", 0, 15.00));
         
         // Teste 1: Entrada válida
         Produto produto1 = buscar("TEST001");
         if(produto1 != null) {
-            int estoqueAnterior = produto1.quantidade;
-            produto1.quantidade += 3;
-            movimentacoes.add(new Movimentacao("TEST001", "ENTRADA", 3, "Teste de entrada"));
-            System.out.println("✅ Teste 1 - Entrada válida: PASSOU (Estoque: " + estoqueAnterior + " → " + produto1.quantidade + ")");
+            int estoqueAnterior = produto1.quantidade();
+            registrarEntrada(produto1, 3, "Teste de entrada");
+            System.out.println("✅ Teste 1 - Entrada válida: PASSOU (Estoque: " + estoqueAnterior + " → " + produto1.quantidade() + ")");
         }
         
         // Teste 2: Saída válida
         Produto produto2 = buscar("TEST001");
-        if(produto2 != null && produto2.quantidade >= 2) {
-            int estoqueAnterior = produto2.quantidade;
-            produto2.quantidade -= 2;
-            movimentacoes.add(new Movimentacao("TEST001", "SAÍDA", 2, "Teste de saída"));
-            System.out.println("✅ Teste 2 - Saída válida: PASSOU (Estoque: " + estoqueAnterior + " → " + produto2.quantidade + ")");
+        if(produto2 != null && produto2.quantidade() >= 2) {
+            int estoqueAnterior = produto2.quantidade();
+            registrarSaida(produto2, 2, "Teste de saída");
+            System.out.println("✅ Teste 2 - Saída válida: PASSOU (Estoque: " + estoqueAnterior + " → " + produto2.quantidade() + ")");
         }
         
         // Teste 3: Produto inexistente
@@ -517,20 +5172,20 @@ public class SistemaEstoque {
         
         // Teste 4: Estoque insuficiente
         Produto produto3 = buscar("TEST001");
-        if(produto3 != null && produto3.quantidade < 100) {
-            System.out.println("✅ Teste 4 - Validação estoque insuficiente: PASSOU (Estoque atual: " + produto3.quantidade + ")");
+        if(produto3 != null && !registrarSaida(produto3, 100, "Teste de saída acima do estoque")) {
+            System.out.println("✅ Teste 4 - Validação estoque insuficiente: PASSOU (Estoque atual: " + produto3.quantidade() + ")");
         }
         
         // Teste 5: Produto sem estoque
         Produto produto4 = buscar("TEST002");
-        if(produto4 != null && produto4.quantidade == 0) {
+        if(produto4 != null && produto4.quantidade() == 0) {
             System.out.println("✅ Teste 5 - Produto sem estoque: PASSOU");
         }
         
         // Teste 6: Alerta de estoque baixo
         Produto produto5 = buscar("TEST001");
-        if(produto5 != null && produto5.quantidade <= 5) {
-            System.out.println("✅ Teste 6 - Alerta estoque baixo: PASSOU (Estoque: " + produto5.quantidade + " ≤ 5)");
+        if(produto5 != null && produto5.quantidade() <= 5) {
+            System.out.println("✅ Teste 6 - Alerta estoque baixo: PASSOU (Estoque: " + produto5.quantidade() + " ≤ 5)");
         }
     }
     
@@ -558,35 +5213,960 @@ public class SistemaEstoque {
         if(totalProdutos > 0) {
             System.out.println("✅ Teste 4 - Contagem de produtos: PASSOU (" + totalProdutos + " produtos)");
         }
+        
+        // Teste 5: Busca por trecho do nome (curto e longo, sem diferenciar maiúsculas)
+        if(pesquisar(2, "OTE", 0).size() == 1 && pesquisar(2, "produto t", 0).size() == 1) {
+            System.out.println("✅ Teste 5 - Busca por trecho do nome: PASSOU");
+        }
+        
+        // Teste 6: Limite de resultados
+        if(pesquisar(3, "teste", 1).size() == 1 && pesquisar(3, "teste", 0).size() == 2) {
+            System.out.println("✅ Teste 6 - Limite de resultados: PASSOU");
+        }
     }
     
     // Método para testar estoque baixo
     void testarEstoqueBaixo() {
         System.out.println("\n🧪 TESTES DE ESTOQUE BAIXO:");
         
+        CatalogoProdutos.Totais totais = produtos.totalizar(5); // Uma varredura das colunas responde os três primeiros testes
+        
         // Teste 1: Produtos com estoque baixo (≤ 5)
-        int produtosEstoqueBaixo = 0;
-        for(Produto produto : produtos) {
-            if(produto.quantidade <= 5) {
-                produtosEstoqueBaixo++;
-            }
-        }
+        long produtosEstoqueBaixo = totais.abaixo;
         System.out.println("✅ Teste 1 - Detecção estoque baixo: PASSOU (" + produtosEstoqueBaixo + " produtos com estoque ≤ 5)");
         
         // Teste 2: Produtos sem estoque
-        int produtosSemEstoque = 0;
-        for(Produto produto : produtos) {
-            if(produto.quantidade == 0) {
-                produtosSemEstoque++;
-            }
-        }
+        long produtosSemEstoque = totais.semEstoque;
         System.out.println("✅ Teste 2 - Detecção sem estoque: PASSOU (" + produtosSemEstoque + " produtos sem estoque)");
         
         // Teste 3: Cálculo de valor total
-        double valorTotal = 0;
-        for(Produto produto : produtos) {
-            valorTotal += produto.preco * produto.quantidade;
+        System.out.println("✅ Teste 3 - Cálculo valor total: PASSOU (R$" + Relatorio.formatarCentavos(totais.valorCentavos) + ")");
+        
+        // Teste 4: Índice por quantidade devolve o mesmo conjunto da varredura
+        if(produtosAbaixoDe(5).size() == produtosEstoqueBaixo && produtosAbaixoDe(0).size() == produtosSemEstoque) {
+            System.out.println("✅ Teste 4 - Índice por quantidade: PASSOU");
+        }
+        
+        // Teste 5: Aviso ao cruzar o ponto de reposição
+        Produto produto = buscar("TEST001");
+        definirPontoReposicao(produto, produto.quantidade() - 1);
+        ArrayList<Integer> avisos = new ArrayList<>();
+        OuvinteReposicao ouvinte = (alterado, anterior, atual) -> avisos.add(atual);
+        inscreverReposicao(ouvinte);
+        registrarSaida(produto, 1, "Teste de saída"); // Cruza para baixo
+        registrarSaida(produto, 1, "Teste de saída"); // Já está abaixo: sem aviso
+        registrarEntrada(produto, 5, "Teste de entrada"); // Volta a ficar acima
+        cancelarReposicao(ouvinte);
+        if(avisos.size() == 2 && avisos.get(0) == produto.quantidade() - 4) {
+            System.out.println("✅ Teste 5 - Aviso de ponto de reposição: PASSOU (" + avisos.size() + " avisos)");
+        }
+    }
+    
+    // Método para testar o índice de histórico por produto e período
+    void testarHistorico() {
+        System.out.println("\n🧪 TESTES DE HISTÓRICO:");
+        
+        Produto produto = buscar("TEST001");
+        long agora = System.currentTimeMillis();
+        
+        // Teste 1: Índice do produto contém todas as suas movimentações do histórico geral
+        int doProduto = 0;
+        for(int i = 0; i < movimentacoes.size(); i++) if(movimentacoes.produtoId(i) == produto.id) doProduto++;
+        Pagina<Movimentacao> tudo = historicoDoProduto(produto, Long.MIN_VALUE, Long.MAX_VALUE, 0, 1000);
+        if(tudo.total == doProduto && tudo.itens.size() == doProduto) {
+            System.out.println("✅ Teste 1 - Histórico do produto: PASSOU (" + doProduto + " movimentações)");
+        }
+        
+        // Teste 2: Paginação
+        Pagina<Movimentacao> segunda = historicoDoProduto(produto, Long.MIN_VALUE, Long.MAX_VALUE, 1, 2);
+        if(segunda.itens.size() == Math.min(2, Math.max(0, doProduto - 2)) && segunda.totalPaginas() == (doProduto + 1) / 2) {
+            System.out.println("✅ Teste 2 - Paginação: PASSOU (" + segunda.totalPaginas() + " páginas)");
+        }
+        
+        // Teste 3: Saldo no período bate com o da varredura por blocos e exclui períodos futuros
+        long saldo = saldoDoProduto(produto, Long.MIN_VALUE, Long.MAX_VALUE);
+        Long saldoBlocos = movimentacoes.saldoPorProduto(Long.MIN_VALUE, Long.MAX_VALUE).get(produto.id);
+        if(saldoBlocos != null && saldo == saldoBlocos && saldoDoProduto(produto, agora + 60_000, Long.MAX_VALUE) == 0
+                && movimentacoes.noPeriodo(agora + 60_000, Long.MAX_VALUE, 0, 10).total == 0) {
+            System.out.println("✅ Teste 3 - Saldo no período: PASSOU (Saldo: " + saldo + ")");
+        }
+    }
+    
+    // Método para testar os totais mantidos incrementalmente
+    void testarTotais() {
+        System.out.println("\n🧪 TESTES DE TOTAIS:");
+        
+        // Teste 1: Contadores batem com o recálculo completo
+        ArrayList<String> divergencias = verificarTotais();
+        if(divergencias.isEmpty()) {
+            System.out.println("✅ Teste 1 - Totais conferem com recálculo: PASSOU (" + quantidadeTotal.sum() + " itens, "
+                    + movimentacoes.size() + " movimentações)");
+        } else {
+            System.out.println("❌ Teste 1 - Totais divergentes: " + divergencias);
+        }
+        
+        // Teste 2: Valor acompanha entrada e saída
+        Produto produto = buscar("TEST001");
+        long valorAntes = valorTotalCentavos.sum();
+        registrarEntrada(produto, 4, "Teste de entrada");
+        registrarSaida(produto, 1, "Teste de saída");
+        if(valorTotalCentavos.sum() - valorAntes == 3 * produto.precoCentavos() && verificarTotais().isEmpty()) {
+            System.out.println("✅ Teste 2 - Totais após movimentações: PASSOU");
+        }
+    }
+    
+    // Método para testar o diário em disco
+    void testarDiario() {
+        System.out.println("\n🧪 TESTES DE DIÁRIO:");
+        
+        Path arquivo = null;
+        try {
+            arquivo = Files.createTempFile("estoque-teste", ".diario");
+            Files.delete(arquivo); // Diário deve ser criado do zero
+            
+            // Teste 1: Gravação de cadastro e movimentações
+            SistemaEstoque original = new SistemaEstoque();
+            original.abrirDiario(arquivo, Diario.Sincronizacao.GRUPO, 8, 0);
+            Produto produto = new Produto("DIA001", "Caderno", "Papelaria", 0, 12.50);
+            original.cadastrarProduto(produto);
+            original.registrarEntrada(produto, 20, "Teste de entrada");
+            original.registrarSaida(produto, 7, "Teste de saída");
+            original.fecharDiario();
+            System.out.println("✅ Teste 1 - Gravação no diário: PASSOU (" + Files.size(arquivo) + " bytes)");
+            
+            // Teste 2: Reprodução reconstrói quantidades e histórico
+            SistemaEstoque reaberto = new SistemaEstoque();
+            reaberto.abrirDiario(arquivo, Diario.Sincronizacao.SEMPRE, 1, 0);
+            Produto recuperado = reaberto.buscar("dia001");
+            if(recuperado != null && recuperado.quantidade() == 13 && reaberto.movimentacoes.size() == 2) {
+                System.out.println("✅ Teste 2 - Reprodução do diário: PASSOU (Estoque: " + recuperado.quantidade() + ")");
+            }
+            reaberto.fecharDiario();
+            
+            // Teste 3: Registro incompleto no fim é descartado
+            long tamanho = Files.size(arquivo);
+            Files.write(arquivo, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+            SistemaEstoque truncado = new SistemaEstoque();
+            truncado.abrirDiario(arquivo, Diario.Sincronizacao.SEMPRE, 1, 0);
+            truncado.fecharDiario();
+            if(Files.size(arquivo) == tamanho && truncado.movimentacoes.size() == 2) {
+                System.out.println("✅ Teste 3 - Registro incompleto descartado: PASSOU");
+            }
+            
+            // Teste 4: Registro corrompido no meio recusa o diário sem apagar os registros seguintes
+            byte[] conteudo = Files.readAllBytes(arquivo);
+            conteudo[Diario.CABECALHO + 8 + 3] ^= 1; // Um bit trocado no cadastro, antes das movimentações
+            Files.write(arquivo, conteudo);
+            boolean recusado = false;
+            try {
+                new SistemaEstoque().abrirDiario(arquivo, Diario.Sincronizacao.SEMPRE, 1, 0);
+            } catch(IOException erro) {
+                recusado = erro.getMessage().startsWith("Diário corrompido");
+            }
+            if(recusado && Arrays.equals(Files.readAllBytes(arquivo), conteudo)) {
+                System.out.println("✅ Teste 4 - Corrupção no meio preservada: PASSOU");
+            }
+            
+            // Teste 5: Disco cheio na gravação não altera a memória e não derruba o processo (/dev/full simula o disco cheio)
+            Path cheio = Paths.get("/dev/full");
+            if(Files.isWritable(cheio)) {
+                Files.delete(arquivo);
+                SistemaEstoque sistema = new SistemaEstoque();
+                sistema.abrirDiario(arquivo, Diario.Sincronizacao.SEMPRE, 1, 0);
+                Produto caderno = new Produto("DIA002", "Caderno", "Papelaria", 0, 12.50);
+                sistema.cadastrarProduto(caderno);
+                sistema.registrarEntrada(caderno, 10, "Antes da falha");
+                FileChannel canal = sistema.diario.canal;
+                sistema.diario.canal = FileChannel.open(cheio, StandardOpenOption.WRITE);
+                int falhas = 0;
+                for(int i = 0; i < 2; i++) { // A segunda encontra o diário desativado
+                    try {
+                        sistema.registrarSaida(caderno, 3, "Com disco cheio");
+                    } catch(UncheckedIOException erro) {
+                        falhas++;
+                    }
+                }
+                sistema.diario.canal.close();
+                canal.close();
+                SistemaEstoque depois = new SistemaEstoque();
+                depois.abrirDiario(arquivo, Diario.Sincronizacao.SEMPRE, 1, 0);
+                depois.fecharDiario();
+                if(falhas == 2 && caderno.quantidade() == 10 && sistema.movimentacoes.size() == 1 && sistema.verificarTotais().isEmpty()
+                        && depois.buscar("DIA002").quantidade() == 10) {
+                    System.out.println("✅ Teste 5 - Falha de gravação sem alterar a memória: PASSOU");
+                }
+            }
+        } catch(IOException erro) {
+            System.out.println("❌ Teste de diário falhou: " + erro.getMessage());
+        } finally {
+            try {
+                if(arquivo != null) Files.deleteIfExists(arquivo);
+            } catch(IOException erro) {
+                // Arquivo temporário: ignora falha ao remover
+            }
+        }
+    }
+    
+    // Método para testar movimentações simultâneas
+    void testarConcorrencia() {
+        System.out.println("\n🧪 TESTES DE CONCORRÊNCIA:");
+        
+        SistemaEstoque sistema = new SistemaEstoque();
+        Produto disputado = new Produto("CON001", "Produto Disputado", "Teste", 0, 1.00);
+        sistema.cadastrarProduto(disputado);
+        sistema.registrarEntrada(disputado, 20000, "Estoque inicial");
+        int threads = 8, tentativasPorThread = 5000;
+        AtomicInteger retiradas = new AtomicInteger();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> tarefas = new ArrayList<>();
+            for(int t = 0; t < threads; t++) {
+                tarefas.add(executor.submit(() -> {
+                    for(int i = 0; i < tentativasPorThread; i++) {
+                        if(sistema.registrarSaida(disputado, 1, "Teste de saída concorrente")) retiradas.incrementAndGet();
+                    }
+                }));
+            }
+            for(Future<?> tarefa : tarefas) tarefa.get();
+        } catch(InterruptedException | ExecutionException erro) {
+            System.out.println("❌ Teste de concorrência falhou: " + erro.getMessage());
+            return;
+        } finally {
+            executor.shutdown();
+        }
+        
+        // Teste 1: 40000 tentativas sobre 20000 unidades nunca deixam o estoque negativo
+        if(disputado.quantidade() == 0 && retiradas.get() == 20000) {
+            System.out.println("✅ Teste 1 - Saídas simultâneas sem estoque negativo: PASSOU (" + retiradas.get() + " retiradas)");
+        }
+        
+        // Teste 2: Histórico contém exatamente as movimentações aceitas
+        if(sistema.movimentacoes.size() == retiradas.get() + 1) {
+            System.out.println("✅ Teste 2 - Histórico consistente: PASSOU (" + sistema.movimentacoes.size() + " movimentações)");
+        }
+    }
+    
+    // Método para testar a importação de CSV
+    void testarImportacao() {
+        System.out.println("\n🧪 TESTES DE IMPORTAÇÃO:");
+        
+        Path produtosCsv = null, movimentacoesCsv = null;
+        try {
+            produtosCsv = Files.createTempFile("produtos", ".csv");
+            movimentacoesCsv = Files.createTempFile("movimentacoes", ".csv");
+            Files.write(produtosCsv, Arrays.asList(
+                    "codigo;nome;categoria;quantidade;preco",
+                    "IMP001;Lápis;Papelaria;10;1,50",
+                    "IMP002;\"Borracha; branca\";Papelaria;0;0.75",
+                    "IMP001;Duplicado;Papelaria;1;1",
+                    "IMP003;Negativo;Papelaria;-1;1",
+                    "IMP004;Preço negativo;Papelaria;1;-2"), StandardCharsets.UTF_8);
+            Files.write(movimentacoesCsv, Arrays.asList(
+                    "IMP001;SAIDA;4;Venda",
+                    "IMP002;ENTRADA;5",
+                    "IMP002;SAÍDA;50;Acima do estoque",
+                    "XXX;ENTRADA;1;Inexistente"), StandardCharsets.UTF_8);
+            
+            SistemaEstoque sistema = new SistemaEstoque();
+            ImportadorCsv importador = new ImportadorCsv(sistema, ';');
+            Path rejeicoes = Paths.get(produtosCsv + ".rejeitadas");
+            
+            // Teste 1: Produtos válidos entram e inválidos vão para o arquivo de rejeitadas
+            importador.importarProdutos(produtosCsv, rejeicoes);
+            if(importador.aceitas == 2 && importador.rejeitadas == 3 && Files.readAllLines(rejeicoes).size() == 3) {
+                System.out.println("✅ Teste 1 - Importação de produtos: PASSOU (2 aceitas, 3 rejeitadas)");
+            }
+            Files.deleteIfExists(rejeicoes);
+            
+            // Teste 2: Movimentações respeitam as regras de entrada e saída
+            rejeicoes = Paths.get(movimentacoesCsv + ".rejeitadas");
+            importador.importarMovimentacoes(movimentacoesCsv, rejeicoes);
+            Produto lapis = sistema.buscar("IMP001"), borracha = sistema.buscar("IMP002");
+            if(importador.aceitas == 2 && importador.rejeitadas == 2 && lapis.quantidade() == 6 && borracha.quantidade() == 5
+                    && borracha.nome.equals("Borracha; branca")) {
+                System.out.println("✅ Teste 2 - Importação de movimentações: PASSOU (Estoque: " + lapis.quantidade() + " e " + borracha.quantidade() + ")");
+            }
+            Files.deleteIfExists(rejeicoes);
+        } catch(IOException erro) {
+            System.out.println("❌ Teste de importação falhou: " + erro.getMessage());
+        } finally {
+            try {
+                if(produtosCsv != null) Files.deleteIfExists(produtosCsv);
+                if(movimentacoesCsv != null) Files.deleteIfExists(movimentacoesCsv);
+            } catch(IOException erro) {
+                // Arquivos temporários: ignora falha ao remover
+            }
+        }
+    }
+    
+    // Testa a formatação de valores e a exportação de relatórios em CSV
+    void testarRelatorio() {
+        System.out.println("\n🧪 TESTES DE RELATÓRIO:");
+        
+        // Teste 1: Centavos formatados sem String.format dão o mesmo texto
+        long[] valores = {0, 5, 100, 1999, -250, 123456789, 100_000_000_000_000L};
+        boolean iguais = true;
+        for(long valor : valores) {
+            iguais &= Relatorio.formatarCentavos(valor).equals(String.format("%.2f", BigDecimal.valueOf(valor, 2)));
+        }
+        if(iguais) {
+            System.out.println("✅ Teste 1 - Formatação de valores: PASSOU");
+        }
+        
+        // Teste 2: Lista exportada em CSV volta igual pelo importador
+        Path arquivo = null;
+        try {
+            arquivo = Files.createTempFile("produtos", ".csv");
+            SistemaEstoque origem = new SistemaEstoque(), destino = new SistemaEstoque();
+            origem.cadastrarProduto(new Produto("REL001", "Caderno; capa dura", "Papelaria", 7, 12.5));
+            origem.cadastrarProduto(new Produto("REL002", "Caneta \"gel\"", "Papelaria", 3, 2.99));
+            try(Relatorio relatorio = Relatorio.arquivo(arquivo, true)) {
+                origem.listar(relatorio);
+            }
+            new ImportadorCsv(destino, ';').importarProdutos(arquivo, Paths.get(arquivo + ".rejeitadas"));
+            Produto caderno = destino.buscar("REL001"), caneta = destino.buscar("REL002");
+            if(caderno != null && caneta != null && caderno.toString().equals(origem.buscar("REL001").toString())
+                    && caneta.toString().equals(origem.buscar("REL002").toString())) {
+                System.out.println("✅ Teste 2 - Exportação em CSV: PASSOU (" + destino.produtos.size() + " produtos reimportados)");
+            }
+            Files.deleteIfExists(Paths.get(arquivo + ".rejeitadas"));
+        } catch(IOException | UncheckedIOException erro) {
+            System.out.println("❌ Teste de relatório falhou: " + erro.getMessage());
+        } finally {
+            try {
+                if(arquivo != null) Files.deleteIfExists(arquivo);
+            } catch(IOException erro) {
+                // Arquivo temporário: ignora falha ao remover
+            }
+        }
+    }
+    
+    // Testa contadores de chamadas e erros, histograma de latência e publicação via JMX
+    void testarMetricas() {
+        System.out.println("\n🧪 TESTES DE MÉTRICAS:");
+        
+        // Teste 1: Chamadas e erros contados por operação e por tipo
+        SistemaEstoque sistema = new SistemaEstoque();
+        Produto produto = new Produto("MET001", "Produto Métrica", "Teste", 0, 1.0);
+        sistema.cadastrarProduto(produto);
+        sistema.cadastrarProduto(new Produto("met001", "Duplicado", "Teste", 0, 1.0));
+        sistema.registrarEntrada(produto, 2, "Teste de entrada");
+        sistema.registrarSaida(produto, 5, "Teste de saída acima do estoque");
+        sistema.buscar("MET001");
+        sistema.buscar("INEXISTENTE");
+        Metricas metricas = sistema.metricas;
+        if(metricas.chamadas(Metricas.Operacao.CADASTRAR) == 2 && metricas.erros(Metricas.Erro.CODIGO_DUPLICADO) == 1
+                && metricas.chamadas(Metricas.Operacao.SAIDA) == 1 && metricas.erros(Metricas.Erro.ESTOQUE_INSUFICIENTE) == 1
+                && metricas.chamadas(Metricas.Operacao.BUSCAR) == 2 && metricas.erros(Metricas.Operacao.BUSCAR) == 1) {
+            System.out.println("✅ Teste 1 - Contadores de chamadas e erros: PASSOU");
+        }
+        
+        // Teste 2: Faixas do histograma cobrem a latência com erro de no máximo 25%
+        boolean faixasCorretas = true;
+        for(long nanos = 0; nanos < 1_000_000_000L; nanos = nanos * 3 / 2 + 1) {
+            long limite = Metricas.limiteFaixa(Metricas.faixa(nanos));
+            faixasCorretas &= limite >= nanos && limite <= nanos * 1.25 + 1;
+        }
+        if(faixasCorretas) {
+            System.out.println("✅ Teste 2 - Faixas do histograma: PASSOU");
+        }
+        
+        // Teste 3: Atributos lidos por um servidor JMX (servidor próprio: não disputa o nome com o menu)
+        try {
+            MBeanServer servidor = MBeanServerFactory.newMBeanServer();
+            ObjectName nome = new ObjectName(Metricas.NOME_JMX);
+            servidor.registerMBean(metricas, nome);
+            Object duplicados = servidor.getAttribute(nome, "ErrosCodigoDuplicado");
+            servidor.invoke(nome, "zerar", null, null);
+            if(Long.valueOf(1).equals(duplicados) && Long.valueOf(0).equals(servidor.getAttribute(nome, "CadastrarChamadas"))) {
+                System.out.println("✅ Teste 3 - Publicação via JMX: PASSOU");
+            }
+        } catch(JMException erro) {
+            System.out.println("❌ Teste de métricas falhou: " + erro.getMessage());
+        }
+    }
+    
+    // Testa o protocolo do servidor e conexões simultâneas alterando o mesmo produto
+    void testarServidor() {
+        System.out.println("\n🧪 TESTES DO SERVIDOR:");
+        
+        SistemaEstoque sistema = new SistemaEstoque();
+        try(ServidorEstoque servidor = new ServidorEstoque(sistema, 0)) { // Porta livre qualquer
+            Thread aceitacao = new Thread(servidor::aceitar, "servidor-teste");
+            aceitacao.setDaemon(true);
+            aceitacao.start();
+            
+            // Teste 1: Comandos respondem como o menu (duplicata e estoque insuficiente são recusados)
+            try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), servidor.porta());
+                BufferedReader entrada = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer saida = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                saida.write("CADASTRAR SRV001;\"Caderno; capa dura\";Papelaria;5;10\nCADASTRAR srv001;X;Y;1;1\nSAIDA SRV001;9\n"
+                        + "BUSCAR srv001\nESTOQUEBAIXO 5\nSAIR\n");
+                saida.flush();
+                List<String> respostas = new ArrayList<>();
+                String resposta;
+                while((resposta = ClienteEstoque.lerResposta(entrada)) != null) respostas.add(resposta);
+                if(respostas.size() == 5 && respostas.get(0).equals("OK") && respostas.get(1).startsWith("ERRO") && respostas.get(2).startsWith("ERRO")
+                        && respostas.get(3).startsWith("OK SRV001;\"Caderno; capa dura\";Papelaria;5;") && respostas.get(4).startsWith("LISTA 1\n")) {
+                    System.out.println("✅ Teste 1 - Protocolo do servidor: PASSOU");
+                }
+            }
+            
+            // Teste 2: Várias conexões retirando do mesmo produto nunca deixam o estoque negativo
+            Thread[] clientes = new Thread[10];
+            AtomicInteger aceitas = new AtomicInteger();
+            for(int c = 0; c < clientes.length; c++) {
+                clientes[c] = new Thread(() -> {
+                    try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), servidor.porta());
+                        BufferedReader entrada = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                        Writer saida = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                        for(int i = 0; i < 5; i++) {
+                            saida.write("SAIDA SRV001;1\n");
+                            saida.flush();
+                            if("OK".equals(entrada.readLine())) aceitas.incrementAndGet();
+                        }
+                    } catch(IOException erro) {
+                        // Conexão falhou: a contagem final acusa
+                    }
+                });
+                clientes[c].start();
+            }
+            for(Thread cliente : clientes) cliente.join();
+            if(aceitas.get() == 5 && sistema.buscar("SRV001").quantidade() == 0 && sistema.verificarTotais().isEmpty()) {
+                System.out.println("✅ Teste 2 - Conexões simultâneas: PASSOU (5 de 50 saídas aceitas)");
+            }
+        } catch(IOException erro) {
+            System.out.println("❌ Teste do servidor falhou: " + erro.getMessage());
+        } catch(InterruptedException erro) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Testa o motor particionado: ordem por produto, estoque nunca negativo e encerramento
+    void testarParticoes() {
+        System.out.println("\n🧪 TESTES DO MOTOR PARTICIONADO:");
+        
+        SistemaEstoque sistema = new SistemaEstoque();
+        sistema.particoes = new Particoes(sistema, 4);
+        for(int i = 0; i < 8; i++) sistema.cadastrarProduto(new Produto("PAR00" + i, "Produto " + i, "Teste", 0, 1.0));
+        
+        // Teste 1: Cada thread movimenta seu produto com quantidades crescentes; o histórico mantém a ordem de envio
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t++) {
+            Produto produto = sistema.buscar("PAR00" + t);
+            threads[t] = new Thread(() -> {
+                for(int quantidade = 1; quantidade <= 200; quantidade++) sistema.registrarEntrada(produto, quantidade, "Teste de ordem");
+            });
+            threads[t].start();
+        }
+        try {
+            for(Thread thread : threads) thread.join();
+        } catch(InterruptedException erro) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        boolean emOrdem = true;
+        for(int t = 0; t < threads.length; t++) {
+            Produto produto = sistema.buscar("PAR00" + t);
+            for(int i = 0; i < 200; i++) emOrdem &= sistema.movimentacoes.quantidade(produto.historico().posicoes[i]) == i + 1;
+        }
+        if(emOrdem && sistema.verificarTotais().isEmpty()) {
+            System.out.println("✅ Teste 1 - Ordem das movimentações por produto: PASSOU");
+        }
+        
+        // Teste 2: Saídas disputando o mesmo produto passam pela escritora da partição e param no zero
+        Produto disputado = sistema.buscar("PAR000");
+        AtomicInteger retiradas = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for(int i = 0; i < 4; i++) {
+            executor.execute(() -> {
+                for(int k = 0; k < 10_100; k++) if(sistema.registrarSaida(disputado, 1, "Teste de saída concorrente")) retiradas.incrementAndGet();
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException erro) {
+            Thread.currentThread().interrupt();
+        }
+        if(retiradas.get() == 20_100 && disputado.quantidade() == 0) {
+            System.out.println("✅ Teste 2 - Saídas concorrentes na partição: PASSOU (" + retiradas.get() + " retiradas)");
+        }
+        
+        // Teste 3: Depois de encerradas, as partições recusam alterações em vez de travar quem envia
+        sistema.particoes.close();
+        try {
+            sistema.registrarEntrada(disputado, 1, "Depois do encerramento");
+        } catch(IllegalStateException erro) {
+            System.out.println("✅ Teste 3 - Encerramento das partições: PASSOU");
+        }
+    }
+
+    // Método para testar o catálogo em colunas (centavos, categorias codificadas e vistas)
+    void testarCatalogo() {
+        System.out.println("\n🧪 TESTES DO CATÁLOGO EM COLUNAS:");
+        
+        SistemaEstoque sistema = new SistemaEstoque();
+        Produto caneta = new Produto("CAT001", "Caneta", "Papelaria", 3, 1.005);
+        sistema.adicionarProduto(caneta);
+        sistema.adicionarProduto(new Produto("CAT002", "Mouse", "Informática", 2, 2.675));
+        sistema.adicionarProduto(new Produto("CAT003", "Lápis", new String("Papelaria"), 0, 0.5));
+        
+        // Teste 1: Preço guardado em centavos com o mesmo arredondamento da exibição
+        if(caneta.precoCentavos() == 101 && sistema.buscar("CAT002").precoCentavos() == 268
+                && caneta.toString().endsWith("R$1.01") && sistema.verificarTotais().isEmpty()) {
+            System.out.println("✅ Teste 1 - Preço em centavos: PASSOU");
+        }
+        
+        // Teste 2: Categoria repetida vira o mesmo id no dicionário; o Produto continua sendo a vista da linha
+        if(sistema.produtos.categorias.size() == 2 && sistema.produtos.categoriaId(2) == sistema.produtos.categoriaId(0)
+                && sistema.produtos.get(0) == caneta && sistema.buscar("cat001") == caneta && caneta.categoria().equals("Papelaria")) {
+            System.out.println("✅ Teste 2 - Categorias codificadas e vistas: PASSOU");
+        }
+        
+        // Teste 3: Busca por categoria junta as categorias encontradas em ordem de cadastro
+        ArrayList<Produto> todos = sistema.pesquisar(3, "a", 0), primeiros = sistema.pesquisar(3, "a", 2);
+        if(todos.size() == 3 && todos.get(1).codigo.equals("CAT002") && todos.get(2).codigo.equals("CAT003")
+                && primeiros.size() == 2 && sistema.pesquisar(3, "papel", 0).size() == 2) {
+            System.out.println("✅ Teste 3 - Busca por categoria: PASSOU");
+        }
+    }
+
+    // Método para testar a varredura paralela do catálogo
+    void testarAgregacao() {
+        System.out.println("\n🧪 TESTES DE AGREGAÇÃO:");
+        
+        // Teste 1: Catálogo grande (fork-join) soma o mesmo que o percurso produto a produto e que os contadores
+        SistemaEstoque sistema = Desempenho.catalogo(CatalogoProdutos.MINIMO_PARALELO + 1000, 7);
+        long quantidade = 0, valor = 0, abaixo = 0, valorAbaixo = 0, semEstoque = 0;
+        for(Produto produto : sistema.produtos) {
+            quantidade += produto.quantidade();
+            valor += produto.precoCentavos() * produto.quantidade();
+            if(produto.quantidade() <= 10) {
+                abaixo++;
+                valorAbaixo += produto.precoCentavos() * produto.quantidade();
+            }
+            if(produto.quantidade() == 0) semEstoque++;
+        }
+        ForkJoinPool pool = new ForkJoinPool(4); // Divide em tarefas mesmo em máquina de um núcleo
+        CatalogoProdutos.Totais paralelo = pool.invoke(new CatalogoProdutos.Varredura(sistema.produtos.blocos, 0,
+                (sistema.produtos.size() >>> CatalogoProdutos.BITS_BLOCO) + 1, sistema.produtos.size(), 10));
+        pool.shutdown();
+        CatalogoProdutos.Totais sequencial = sistema.produtos.totalizar(10);
+        if(paralelo.quantidade == quantidade && paralelo.valorCentavos == valor && paralelo.abaixo == abaixo
+                && paralelo.valorAbaixoCentavos == valorAbaixo && paralelo.semEstoque == semEstoque
+                && sequencial.valorCentavos == valor && sequencial.abaixo == abaixo
+                && quantidade == sistema.quantidadeTotal.sum() && valor == sistema.valorTotalCentavos.sum()) {
+            System.out.println("✅ Teste 1 - Varredura paralela: PASSOU (" + abaixo + " produtos com estoque ≤ 10)");
+        }
+    }
+
+    // Método para testar os totais por categoria
+    void testarCategorias() {
+        System.out.println("\n🧪 TESTES POR CATEGORIA:");
+        
+        SistemaEstoque sistema = new SistemaEstoque();
+        sistema.cadastrarProduto(new Produto("CAT101", "Caneta", "Papelaria", 0, 2.0));
+        sistema.cadastrarProduto(new Produto("CAT102", "Caderno", "Papelaria", 0, 10.0));
+        sistema.cadastrarProduto(new Produto("CAT103", "Mouse", "Informática", 0, 50.0));
+        sistema.registrarEntrada(sistema.buscar("CAT101"), 30, "Teste");
+        sistema.registrarEntrada(sistema.buscar("CAT102"), 8, "Teste");
+        sistema.registrarSaida(sistema.buscar("CAT102"), 4, "Teste");
+        sistema.registrarEntrada(sistema.buscar("CAT103"), 2, "Teste");
+        
+        // Teste 1: Totais e fluxo mantidos a cada movimentação
+        ResumoCategoria papelaria = sistema.resumoDaCategoria(sistema.buscar("CAT101"));
+        if(papelaria.produtos.sum() == 2 && papelaria.unidades.sum() == 34 && papelaria.valorCentavos.sum() == 10_000
+                && papelaria.entradas.sum() == 2 && papelaria.unidadesSaida.sum() == 4 && papelaria.emFalta.sum() == 1) {
+            System.out.println("✅ Teste 1 - Totais da categoria: PASSOU");
+        }
+        
+        // Teste 2: Maiores estoques e mudança do ponto de reposição conferem com a varredura completa
+        sistema.definirPontoReposicao(sistema.buscar("CAT101"), 40);
+        if(sistema.maioresEstoques(papelaria, 3).get(0).codigo.equals("CAT101") && papelaria.emFalta.sum() == 2
+                && sistema.verificarTotais().isEmpty()) {
+            System.out.println("✅ Teste 2 - Maiores estoques e conferência: PASSOU");
+        }
+    }
+
+    // Método para testar pedidos com várias linhas
+    void testarPedidos() {
+        System.out.println("\n🧪 TESTES DE PEDIDOS:");
+        
+        SistemaEstoque sistema = new SistemaEstoque();
+        sistema.adicionarProduto(new Produto("PED001", "Caneta", "Papelaria", 10, 2.0));
+        sistema.adicionarProduto(new Produto("PED002", "Caderno", "Papelaria", 3, 10.0));
+        
+        // Teste 1: Uma linha sem estoque (contando a linha anterior do mesmo produto) recusa o pedido inteiro
+        ArrayList<String> rejeicoes = sistema.registrarPedido(List.of(
+                new LinhaPedido("PED001", Movimentacao.SAIDA, 4, "Pedido 1"),
+                new LinhaPedido("PED002", Movimentacao.SAIDA, 2, "Pedido 1"),
+                new LinhaPedido("PED002", Movimentacao.SAIDA, 2, "Pedido 1")));
+        if(rejeicoes.size() == 1 && rejeicoes.get(0).startsWith("Linha 3 (PED002)") && sistema.buscar("PED001").quantidade() == 10
+                && sistema.movimentacoes.isEmpty()) {
+            System.out.println("✅ Teste 1 - Pedido recusado sem efeito: PASSOU");
+        }
+        
+        // Teste 2: Pedido válido aplica todas as linhas em posições consecutivas do histórico
+        rejeicoes = sistema.registrarPedido(List.of(
+                new LinhaPedido("PED001", Movimentacao.SAIDA, 4, "Pedido 2"),
+                new LinhaPedido("ped002", Movimentacao.ENTRADA, 5, "Pedido 2"),
+                new LinhaPedido("PED002", Movimentacao.SAIDA, 8, "Pedido 2")));
+        if(rejeicoes.isEmpty() && sistema.buscar("PED001").quantidade() == 6 && sistema.buscar("PED002").quantidade() == 0
+                && sistema.movimentacoes.size() == 3 && sistema.verificarTotais().isEmpty()) {
+            System.out.println("✅ Teste 2 - Pedido aplicado por inteiro: PASSOU");
+        }
+        
+        // Teste 3: Pedido gravado em um registro do diário é reproduzido com todas as linhas
+        try {
+            Path arquivo = Files.createTempFile("pedido", ".diario");
+            try {
+                SistemaEstoque origem = new SistemaEstoque();
+                origem.abrirDiario(arquivo, Diario.Sincronizacao.SEMPRE, 64, 1000);
+                origem.cadastrarProduto(new Produto("PED003", "Lápis", "Papelaria", 0, 1.0));
+                origem.registrarPedido(List.of(new LinhaPedido("PED003", Movimentacao.ENTRADA, 9, "Pedido 3"),
+                        new LinhaPedido("PED003", Movimentacao.SAIDA, 2, "Pedido 3")));
+                origem.fecharDiario();
+                SistemaEstoque reaberto = new SistemaEstoque();
+                reaberto.abrirDiario(arquivo, Diario.Sincronizacao.SEMPRE, 64, 1000);
+                reaberto.fecharDiario();
+                if(reaberto.buscar("PED003").quantidade() == 7 && reaberto.movimentacoes.size() == 2) {
+                    System.out.println("✅ Teste 3 - Pedido no diário: PASSOU");
+                }
+            } finally {
+                Files.deleteIfExists(arquivo);
+            }
+        } catch(IOException erro) {
+            System.out.println("❌ Erro no teste de pedido: " + erro.getMessage());
+        }
+        
+        // Teste 4: Com partições, pedidos entre duas partições concorrem com saídas avulsas sem perder ordem nem estoque
+        try {
+            Path arquivo = Files.createTempFile("pedido-particoes", ".diario");
+            try {
+                SistemaEstoque origem = new SistemaEstoque();
+                origem.abrirDiario(arquivo, Diario.Sincronizacao.SEMPRE, 64, 1000);
+                origem.particoes = new Particoes(origem, 2);
+                String primeiro = "PED010", segundo = "PED011";
+                for(int i = 12; origem.particoes.particao(segundo) == origem.particoes.particao(primeiro); i++) segundo = "PED0" + i;
+                origem.cadastrarProduto(new Produto(primeiro, "Borracha", "Papelaria", 1_000, 1.0));
+                origem.cadastrarProduto(new Produto(segundo, "Régua", "Papelaria", 1_000, 1.0));
+                String[] codigos = {primeiro, segundo};
+                Thread[] threads = new Thread[4];
+                for(int t = 0; t < threads.length; t++) {
+                    String codigo = codigos[t % 2], outro = codigos[(t + 1) % 2];
+                    boolean avulsa = t < 2;
+                    threads[t] = new Thread(() -> {
+                        for(int i = 0; i < 100; i++) {
+                            if(avulsa) {
+                                origem.registrarSaida(origem.buscar(codigo), 1, "Avulsa");
+                            } else {
+                                origem.registrarPedido(List.of(new LinhaPedido(codigo, Movimentacao.SAIDA, 1, "Pedido"),
+                                        new LinhaPedido(outro, Movimentacao.SAIDA, 1, "Pedido")));
+                            }
+                        }
+                    });
+                    threads[t].start();
+                }
+                for(Thread thread : threads) thread.join();
+                boolean pedidosJuntos = true; // As duas linhas de cada pedido ficam lado a lado no histórico
+                for(int i = 0; i < origem.movimentacoes.size(); i++) {
+                    if(origem.movimentacoes.get(i).observacao.equals("Pedido")) {
+                        pedidosJuntos &= origem.movimentacoes.get(i + 1).observacao.equals("Pedido");
+                        i++;
+                    }
+                }
+                boolean confere = origem.buscar(primeiro).quantidade() == 700 && origem.buscar(segundo).quantidade() == 700
+                        && origem.verificarTotais().isEmpty();
+                origem.fecharDiario();
+                SistemaEstoque reaberto = new SistemaEstoque();
+                reaberto.abrirDiario(arquivo, Diario.Sincronizacao.SEMPRE, 64, 1000);
+                reaberto.fecharDiario();
+                if(confere && pedidosJuntos && reaberto.buscar(primeiro).quantidade() == 700 && reaberto.buscar(segundo).quantidade() == 700) {
+                    System.out.println("✅ Teste 4 - Pedido entre partições: PASSOU");
+                }
+            } finally {
+                Files.deleteIfExists(arquivo);
+            }
+        } catch(IOException erro) {
+            System.out.println("❌ Erro no teste de pedido: " + erro.getMessage());
+        } catch(InterruptedException erro) {
+            Thread.currentThread().interrupt();
+        }
+        
+        // Teste 5: Recusa na validação conta o erro da primeira regra violada
+        sistema.registrarPedido(List.of(new LinhaPedido("PED001", Movimentacao.SAIDA, 0, "Pedido 5"),
+                new LinhaPedido("INEXISTENTE", Movimentacao.SAIDA, 1, "Pedido 5")));
+        if(sistema.metricas.erros(Metricas.Erro.DADOS_INVALIDOS) == 1 && sistema.metricas.erros(Metricas.Erro.PRODUTO_NAO_ENCONTRADO) == 0) {
+            System.out.println("✅ Teste 5 - Erro de validação nas métricas: PASSOU");
+        }
+    }
+    
+    // Método para testar o estoque em data passada (fotos periódicas e índice por produto)
+    void testarPontosControle() {
+        System.out.println("\n🧪 TESTES DE ESTOQUE EM DATA:");
+        
+        SistemaEstoque sistema = new SistemaEstoque();
+        sistema.pontosControle.intervalo = 4; // Várias fotos com poucas movimentações
+        sistema.adicionarProduto(new Produto("PCT001", "Caneta", "Papelaria", 10, 2.0));
+        sistema.adicionarProduto(new Produto("PCT002", "Caderno", "Papelaria", 5, 10.0));
+        Produto caneta = sistema.buscar("PCT001"), caderno = sistema.buscar("PCT002");
+        try {
+            for(int i = 0; i < 12; i++) {
+                sistema.registrarEntrada(caneta, i + 1, "Lote " + i);
+                sistema.registrarSaida(caderno, 1, "Venda " + i);
+                sistema.registrarEntrada(caderno, 2, "Lote " + i);
+                Thread.sleep(2); // Instantes distintos entre as rodadas
+            }
+        } catch(InterruptedException erro) {
+            Thread.currentThread().interrupt();
+        }
+        
+        // Teste 1: Fotos e índice por produto batem com a reprodução completa do histórico em cada instante
+        boolean confere = true;
+        for(int posicao = 0; posicao < sistema.movimentacoes.size(); posicao++) {
+            long instante = sistema.movimentacoes.instante(posicao);
+            int[] esperado = {10, 5};
+            sistema.movimentacoes.aplicarAte(instante, 0, sistema.movimentacoes.size(), esperado);
+            int[] quantidades = sistema.pontosControle.estoqueEm(instante);
+            confere &= Arrays.equals(quantidades, esperado) && sistema.quantidadeEm(caneta, instante) == esperado[0]
+                    && sistema.quantidadeEm(caderno, instante) == esperado[1];
+        }
+        if(confere && sistema.pontosControle.fotos.size() > 2) {
+            System.out.println("✅ Teste 1 - Estoque em cada instante: PASSOU (" + sistema.pontosControle.fotos.size() + " fotos)");
+        }
+        
+        // Teste 2: Antes de qualquer movimentação vale a quantidade de cadastro; depois de todas, a atual
+        int[] antes = sistema.pontosControle.estoqueEm(Long.MIN_VALUE);
+        int[] depois = sistema.pontosControle.estoqueEm(Long.MAX_VALUE);
+        if(antes[0] == 10 && antes[1] == 5 && depois[0] == caneta.quantidade() && depois[1] == caderno.quantidade()
+                && sistema.quantidadeEm(caneta, Long.MIN_VALUE) == 10) {
+            System.out.println("✅ Teste 2 - Estoque antes e depois do histórico: PASSOU");
+        }
+    }
+    
+    // Método para testar o modo roteiro (comandos por linha, sem menu)
+    void testarRoteiro() {
+        System.out.println("\n🧪 TESTES DE ROTEIRO:");
+        
+        SistemaEstoque sistema = new SistemaEstoque();
+        Roteiro roteiro = new Roteiro(sistema, false);
+        StringWriter saida = new StringWriter();
+        try {
+            roteiro.executar(new BufferedReader(new StringReader("# comentário\n"
+                    + "CADASTRAR RT001 \"Caneta \"\"azul\"\"\" Papelaria 10 2,50\n"
+                    + "\n"
+                    + "ENTRADA rt001 5 \"Nota fiscal 12\"\n"
+                    + "SAIDA RT001 100\n"
+                    + "PEDIDO RT001 SAIDA 3 | RT001 ENTRADA 1 \"Devolução\"\n"
+                    + "ENTRADA RT001 dois\n"
+                    + "SAIR\n"
+                    + "ENTRADA RT001 1\n")), saida);
+        } catch(IOException erro) {
+            System.out.println("❌ Erro no teste de roteiro: " + erro.getMessage());
+            return;
+        }
+        String[] respostas = saida.toString().split("\n");
+        
+        // Teste 1: Uma resposta por comando, erros com o número da linha e nada executado depois de SAIR
+        Produto produto = sistema.buscar("RT001");
+        if(respostas.length == 6 && respostas[1].equals("OK") && respostas[2].startsWith("ERRO 5 Estoque insuficiente")
+                && respostas[3].equals("OK 2") && respostas[4].startsWith("ERRO 7 ") && respostas[5].startsWith("FIM comandos=6;erros=2;")
+                && produto != null && produto.quantidade() == 13 && produto.nome.equals("Caneta \"azul\"")) {
+            System.out.println("✅ Teste 1 - Comandos do roteiro: PASSOU");
+        }
+        
+        // Teste 2: Números por extenso só com a opção ligada e só como palavra inteira
+        Roteiro comPalavras = new Roteiro(sistema, true);
+        comPalavras.dividir("ENTRADA RT001 dois");
+        if(comPalavras.inteiro(2) == 2 && roteiro.dividir("ENTRADA RT001 dois") && roteiro.inteiro(2) == Long.MIN_VALUE
+                && converterPalavra("Fumo").equals("Fumo") && converterPalavra("Cem").equals("100") && !roteiro.dividir("BUSCAR \"sem fim")) {
+            System.out.println("✅ Teste 2 - Números por extenso opcionais: PASSOU");
+        }
+    }
+    
+    // Método para testar o consumo por produto e a previsão de ruptura
+    void testarPrevisao() {
+        System.out.println("\n🧪 TESTES DE PREVISÃO:");
+        
+        SistemaEstoque sistema = new SistemaEstoque();
+        String[] codigos = {"PRV001", "PRV002", "PRV003", "PRV004"};
+        int[] iniciais = {100, 100, 50, 10};
+        for(int i = 0; i < codigos.length; i++) sistema.adicionarProduto(new Produto(codigos[i], "Item " + i, "Teste", iniciais[i], 1.0));
+        sistema.registrarSaida(sistema.buscar("PRV001"), 50, "Venda");
+        sistema.registrarSaida(sistema.buscar("PRV002"), 5, "Venda");
+        sistema.registrarSaida(sistema.buscar("PRV004"), 10, "Venda");
+        
+        // Teste 1: Ordem por dias até zerar (sem estoque primeiro, sem consumo fora) e reordenação após uma entrada
+        ArrayList<String> ordem = new ArrayList<>();
+        for(Produto produto : sistema.produtosPertoDeZerar(10, System.currentTimeMillis())) ordem.add(produto.codigo);
+        sistema.registrarEntrada(sistema.buscar("PRV001"), 10_000, "Reposição");
+        ArrayList<String> depois = new ArrayList<>();
+        for(Produto produto : sistema.produtosPertoDeZerar(10, System.currentTimeMillis())) depois.add(produto.codigo);
+        if(ordem.equals(List.of("PRV004", "PRV001", "PRV002")) && depois.equals(List.of("PRV004", "PRV002", "PRV001"))) {
+            System.out.println("✅ Teste 1 - Ranking de ruptura: PASSOU (" + String.join(", ", depois) + ")");
+        }
+        
+        // Teste 2: Taxa decai pela constante de tempo e a janela descarta dias antigos
+        ConsumoProduto consumo = new ConsumoProduto();
+        long dia = ConsumoProduto.DIA, inicio = 20_000 * dia;
+        consumo.registrar(7, inicio);
+        boolean taxaConfere = Math.abs(consumo.taxaEm(inicio) - 1.0) < 1e-9 && Math.abs(consumo.taxaEm(inicio + 7 * dia) - Math.exp(-1)) < 1e-9
+                && Math.abs(consumo.diasAteZerar(14, inicio) - 14) < 1e-9;
+        consumo.registrar(3, inicio + 30 * dia);
+        if(taxaConfere && consumo.saidasNosUltimos(28, inicio + 30 * dia) == 3 && consumo.saidasNosUltimos(7, inicio + 40 * dia) == 0
+                && consumo.saidasNosUltimos(28, inicio + 40 * dia) == 3) {
+            System.out.println("✅ Teste 2 - Média exponencial e janela: PASSOU");
+        }
+    }
+    
+    // Método para testar o arquivamento das movimentações antigas em segmentos comprimidos
+    void testarArquivo() {
+        System.out.println("\n🧪 TESTES DE ARQUIVO:");
+        
+        SistemaEstoque sistema = new SistemaEstoque();
+        sistema.adicionarProduto(new Produto("ARQ001", "Parafuso", "Teste", 0, 0.10));
+        sistema.adicionarProduto(new Produto("ARQ002", "Porca", "Teste", 0, 0.05));
+        Produto parafuso = sistema.buscar("ARQ001"), porca = sistema.buscar("ARQ002");
+        long meio = 0;
+        for(int i = 0; i < 40_000; i++) {
+            if(i == 20_000) meio = System.currentTimeMillis();
+            Produto produto = i % 3 == 0 ? porca : parafuso;
+            if(i % 4 == 3) {
+                sistema.registrarSaida(produto, 1, i % 8 == 3 ? "Venda" : "Consumo interno");
+            } else {
+                sistema.registrarEntrada(produto, 1 + i % 5, "Lote " + (i % 10));
+            }
+        }
+        StringBuilder antes = new StringBuilder();
+        try(Relatorio relatorio = new Relatorio(antes, false, true, 0, null)) {
+            sistema.relatorio(relatorio);
+        }
+        Pagina<Movimentacao> paginaAntes = sistema.historicoDoProduto(parafuso, 0, Long.MAX_VALUE, 1, 5_000);
+        long saldoAntes = sistema.saldoDoProduto(parafuso, 0, meio);
+        int quantidadeAntes = sistema.quantidadeEm(porca, meio);
+        int indiceAntes = parafuso.historico().tamanho;
+        
+        Path diretorio = null;
+        try {
+            diretorio = Files.createTempDirectory("teste-arquivo");
+            sistema.movimentacoes.arquivo = new ArquivoMovimentacoes(diretorio, sistema.movimentacoes);
+            int arquivados = sistema.movimentacoes.arquivar(Long.MAX_VALUE); // Todos os blocos completos
+            
+            // Teste 1: Blocos completos vão para segmentos menores que as colunas em memória; a cauda fica
+            long bytes = Files.size(sistema.movimentacoes.arquivo.caminho(0)) + Files.size(sistema.movimentacoes.arquivo.caminho(1));
+            if(arquivados == 2 && sistema.movimentacoes.blocosArquivados == 2 && bytes < 2L * HistoricoMovimentacoes.TAMANHO_BLOCO * 4
+                    && parafuso.historico().tamanho < indiceAntes) {
+                System.out.println("✅ Teste 1 - Segmentos gravados: PASSOU (" + bytes / 1024 + " KB para " + 2 * HistoricoMovimentacoes.TAMANHO_BLOCO + " movimentações)");
+            }
+            
+            // Teste 2: Relatório, histórico paginado, saldo no período e estoque na data iguais aos de antes
+            StringBuilder depois = new StringBuilder();
+            try(Relatorio relatorio = new Relatorio(depois, false, true, 0, null)) {
+                sistema.relatorio(relatorio);
+            }
+            Pagina<Movimentacao> paginaDepois = sistema.historicoDoProduto(parafuso, 0, Long.MAX_VALUE, 1, 5_000);
+            boolean mesmasLinhas = paginaAntes.total == paginaDepois.total && paginaAntes.itens.size() == paginaDepois.itens.size();
+            for(int i = 0; mesmasLinhas && i < paginaAntes.itens.size(); i++) {
+                Movimentacao a = paginaAntes.itens.get(i), b = paginaDepois.itens.get(i);
+                mesmasLinhas = a.instante == b.instante && a.quantidade == b.quantidade && a.tipo == b.tipo && a.observacao.equals(b.observacao);
+            }
+            if(antes.toString().equals(depois.toString()) && mesmasLinhas && sistema.saldoDoProduto(parafuso, 0, meio) == saldoAntes
+                    && sistema.quantidadeEm(porca, meio) == quantidadeAntes && sistema.verificarTotais().isEmpty()) {
+                System.out.println("✅ Teste 2 - Consultas atravessam o arquivo: PASSOU");
+            }
+        } catch(IOException erro) {
+            System.out.println("❌ Teste de arquivo falhou: " + erro.getMessage());
+        } finally {
+            if(diretorio != null && sistema.movimentacoes.arquivo != null) {
+                try {
+                    for(int i = 0; i < 2; i++) Files.deleteIfExists(sistema.movimentacoes.arquivo.caminho(i));
+                    Files.deleteIfExists(sistema.movimentacoes.arquivo.caminhoEstado());
+                    Files.delete(diretorio);
+                } catch(IOException erro) {
+                    // Arquivos temporários: ignora falha ao remover
+                }
+            }
+        }
+        
+        // Teste 3: Reinício com diário e arquivo: as movimentações arquivadas não voltam à memória e as consultas não mudam
+        Path pasta = null;
+        ArquivoMovimentacoes segmentos = null;
+        try {
+            pasta = Files.createTempDirectory("teste-retomada");
+            Path diario = pasta.resolve("estoque.diario");
+            SistemaEstoque origem = new SistemaEstoque();
+            origem.movimentacoes.arquivo = segmentos = new ArquivoMovimentacoes(pasta, origem.movimentacoes);
+            origem.abrirDiario(diario, Diario.Sincronizacao.PERIODICA, 64, 60_000);
+            origem.cadastrarProduto(new Produto("ARQ003", "Arruela", "Teste", 0, 0.02));
+            origem.cadastrarProduto(new Produto("ARQ004", "Rebite", "Teste", 0, 0.03));
+            Produto arruela = origem.buscar("ARQ003"), rebite = origem.buscar("ARQ004");
+            for(int i = 0; i < 40_000; i++) {
+                Produto produto = i % 3 == 0 ? rebite : arruela;
+                if(i % 4 == 3) origem.registrarSaida(produto, 1, "Venda " + (i % 7));
+                else if(i % 100 == 50) origem.registrarPedido(List.of(new LinhaPedido("ARQ003", Movimentacao.ENTRADA, 2, "Pedido"),
+                        new LinhaPedido("ARQ004", Movimentacao.ENTRADA, 3, "Pedido")));
+                else origem.registrarEntrada(produto, 1 + i % 5, "Lote " + (i % 10));
+            }
+            origem.movimentacoes.arquivar(Long.MAX_VALUE);
+            origem.registrarSaida(arruela, 2, "Depois do arquivo");
+            StringBuilder relatorioOrigem = new StringBuilder();
+            try(Relatorio relatorio = new Relatorio(relatorioOrigem, false, true, 0, null)) {
+                origem.relatorio(relatorio);
+            }
+            Pagina<Movimentacao> paginaOrigem = origem.historicoDoProduto(arruela, 0, Long.MAX_VALUE, 1, 5_000);
+            long saldoOrigem = origem.saldoDoProduto(rebite, 0, Long.MAX_VALUE);
+            int emMemoria = arruela.historico().tamanho;
+            origem.fecharDiario();
+            
+            SistemaEstoque reaberto = new SistemaEstoque();
+            reaberto.movimentacoes.arquivo = new ArquivoMovimentacoes(pasta, reaberto.movimentacoes);
+            reaberto.abrirDiario(diario, Diario.Sincronizacao.PERIODICA, 64, 60_000);
+            Produto arruela2 = reaberto.buscar("ARQ003"), rebite2 = reaberto.buscar("ARQ004");
+            StringBuilder relatorioReaberto = new StringBuilder();
+            try(Relatorio relatorio = new Relatorio(relatorioReaberto, false, true, 0, null)) {
+                reaberto.relatorio(relatorio);
+            }
+            Pagina<Movimentacao> paginaReaberto = reaberto.historicoDoProduto(arruela2, 0, Long.MAX_VALUE, 1, 5_000);
+            boolean mesmasLinhas = paginaOrigem.total == paginaReaberto.total && paginaOrigem.itens.size() == paginaReaberto.itens.size();
+            for(int i = 0; mesmasLinhas && i < paginaOrigem.itens.size(); i++) {
+                Movimentacao a = paginaOrigem.itens.get(i), b = paginaReaberto.itens.get(i);
+                mesmasLinhas = a.instante == b.instante && a.quantidade == b.quantidade && a.tipo == b.tipo && a.observacao.equals(b.observacao);
+            }
+            boolean foraDaMemoria = reaberto.movimentacoes.blocosArquivados == 2 && reaberto.movimentacoes.blocos[0] == null
+                    && reaberto.movimentacoes.blocos[1] == null && arruela2.historico().tamanho == emMemoria;
+            reaberto.fecharDiario();
+            if(foraDaMemoria && relatorioOrigem.toString().equals(relatorioReaberto.toString()) && mesmasLinhas
+                    && reaberto.saldoDoProduto(rebite2, 0, Long.MAX_VALUE) == saldoOrigem && reaberto.verificarTotais().isEmpty()) {
+                System.out.println("✅ Teste 3 - Reinício pula o que já foi arquivado: PASSOU");
+            }
+            
+            // Teste 4: Diário que não tem as movimentações arquivadas é recusado
+            Files.delete(diario);
+            try {
+                SistemaEstoque outro = new SistemaEstoque();
+                outro.movimentacoes.arquivo = new ArquivoMovimentacoes(pasta, outro.movimentacoes);
+                outro.abrirDiario(diario, Diario.Sincronizacao.SEMPRE, 1, 0);
+                outro.fecharDiario();
+            } catch(IOException erro) {
+                if(erro.getMessage().startsWith("Arquivo de movimentações não corresponde")) {
+                    System.out.println("✅ Teste 4 - Diário sem as movimentações arquivadas: PASSOU");
+                }
+            }
+        } catch(IOException erro) {
+            System.out.println("❌ Teste de arquivo falhou: " + erro.getMessage());
+        } finally {
+            if(pasta != null && segmentos != null) {
+                try {
+                    for(int i = 0; i < 2; i++) Files.deleteIfExists(segmentos.caminho(i));
+                    Files.deleteIfExists(segmentos.caminhoEstado());
+                    Files.deleteIfExists(pasta.resolve("estoque.diario"));
+                    Files.delete(pasta);
+                } catch(IOException erro) {
+                    // Arquivos temporários: ignora falha ao remover
+                }
+            }
         }
-        System.out.println("✅ Teste 3 - Cálculo valor total: PASSOU (R$" + String.format("%.2f", valorTotal) + ")");
     }
 } // Fim da classe SistemaEstoque
\ No newline at end of file